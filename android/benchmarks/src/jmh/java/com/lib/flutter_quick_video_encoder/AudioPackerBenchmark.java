@@ -0,0 +1,64 @@
+package com.lib.flutter_quick_video_encoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// packing one chunk of 16 bit pcm into encoder input buffers of whole AAC frames
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AudioPackerBenchmark {
+
+    @Param({"44100", "48000"})
+    public int sampleRate;
+
+    @Param({"1", "2"})
+    public int channels;
+
+    // samples per chunk. 1470 & 1600 are one 30fps frame's worth
+    @Param({"480", "1470", "1600", "8192"})
+    public int chunkSamples;
+
+    // typical AAC encoder input buffer sizes
+    @Param({"4096", "16384"})
+    public int inputBufferSize;
+
+    private byte[] mPcm;
+    private ByteBuffer mInputBuffer;
+    private AudioPacker mPacker;
+    private int mTarget;
+
+    @Setup
+    public void setup() {
+        mPcm = new byte[chunkSamples * channels * 2];
+        new Random(42).nextBytes(mPcm);
+        mInputBuffer = ByteBuffer.allocateDirect(inputBufferSize);
+        mPacker = new AudioPacker(sampleRate, channels);
+        mTarget = mPacker.fillTarget(inputBufferSize);
+    }
+
+    @Benchmark
+    public void pack(Blackhole blackhole) {
+        mPacker.startChunk(-1);
+        int offset = 0;
+        while (offset < mPcm.length) {
+            offset += mPacker.write(mPcm, offset, mPcm.length - offset);
+            while (mPacker.available() >= mTarget) {
+                mInputBuffer.clear();
+                blackhole.consume(mPacker.presentationTimeUs());
+                blackhole.consume(mPacker.read(mInputBuffer, false));
+            }
+        }
+    }
+}
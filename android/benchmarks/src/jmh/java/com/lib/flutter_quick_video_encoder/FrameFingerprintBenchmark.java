@@ -0,0 +1,50 @@
+package com.lib.flutter_quick_video_encoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// hashing one RGBA frame to spot static frames
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FrameFingerprintBenchmark {
+
+    @Param({"720p", "1080p", "4k"})
+    public String resolution;
+
+    // 1 hashes every row
+    @Param({"1", "4", "16"})
+    public int rowStep;
+
+    private byte[] mRgba;
+    private FrameFingerprint mFingerprint;
+
+    @Setup
+    public void setup() {
+        int width;
+        int height;
+        switch (resolution) {
+            case "720p":  width = 1280; height = 720;  break;
+            case "1080p": width = 1920; height = 1080; break;
+            case "4k":    width = 3840; height = 2160; break;
+            default: throw new IllegalArgumentException("unknown resolution: " + resolution);
+        }
+        mRgba = new byte[width * height * 4];
+        new Random(42).nextBytes(mRgba);
+        mFingerprint = new FrameFingerprint(width * 4, rowStep);
+    }
+
+    @Benchmark
+    public long hash() {
+        return mFingerprint.hash(mRgba, mRgba.length);
+    }
+}
@@ -0,0 +1,66 @@
+package com.lib.flutter_quick_video_encoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// RGBA, BGRA or YUV 420 input into YUV 420 planes, per frame
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class YuvConverterBenchmark {
+
+    @Param({"480p", "720p", "1080p", "1440p", "4k"})
+    public String resolution;
+
+    @Param({"I420", "I420_PADDED", "NV12", "NV21", "GENERIC"})
+    public String layout;
+
+    @Param({"1", "2", "4"})
+    public int threads;
+
+    @Param({"RGBA", "BGRA", "I420", "NV12"})
+    public String inputFormat;
+
+    private byte[] mFrame;
+    private FakeImage mImage;
+    private YuvConverter mConverter;
+
+    @Setup
+    public void setup() {
+        int width;
+        int height;
+        switch (resolution) {
+            case "480p":  width = 854;  height = 480;  break;
+            case "720p":  width = 1280; height = 720;  break;
+            case "1080p": width = 1920; height = 1080; break;
+            case "1440p": width = 2560; height = 1440; break;
+            case "4k":    width = 3840; height = 2160; break;
+            default: throw new IllegalArgumentException("unknown resolution: " + resolution);
+        }
+        YuvConverter.InputFormat format = YuvConverter.InputFormat.valueOf(inputFormat);
+        mFrame = new byte[YuvConverter.frameBytes(format, width, height)];
+        new Random(42).nextBytes(mFrame);
+        mImage = new FakeImage(width, height, FakeImage.Layout.valueOf(layout));
+        mConverter = new YuvConverter(width, height, threads, format);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mConverter.close();
+    }
+
+    @Benchmark
+    public void toPlanes() {
+        mConverter.toPlanes(mFrame, mImage.y, mImage.u, mImage.v);
+    }
+}
@@ -0,0 +1,146 @@
+package com.lib.flutter_quick_video_encoder;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Packs pcm chunks of any size into encoder input buffers of whole AAC frames.
+ *
+ * Chunks are copied into a ring buffer, & read out in whole frames of 1024
+ * samples, so each input buffer is as full as it can be. Presentation times
+ * come from the count of samples read so far, so they do not drift, & do not
+ * depend on how the pcm was chunked. A chunk that starts later than the samples
+ * before it (e.g. one was dropped) is preceded by silence to keep that timing.
+ *
+ * Not thread safe. Used by one feed thread.
+ */
+class AudioPacker {
+
+    // samples per channel in one AAC frame
+    static final int SAMPLES_PER_FRAME = 1024;
+
+    private final int mSampleRate;
+    private final int mBytesPerSample;
+    private final int mFrameBytes;
+
+    private byte[] mRing;
+    private int mHead;
+    private int mSize;
+
+    private boolean mStarted;
+    private long mStartUs;
+    private long mSamplesWritten;
+    private long mSamplesRead;
+
+    // bytes of silence to write before the next chunk
+    private long mSilenceBytes;
+
+    // 16 bit pcm, channels interleaved
+    AudioPacker(int sampleRate, int channels) {
+        mSampleRate = sampleRate;
+        mBytesPerSample = channels * 2;
+        mFrameBytes = SAMPLES_PER_FRAME * mBytesPerSample;
+        mRing = new byte[4 * mFrameBytes];
+    }
+
+    int frameBytes() {
+        return mFrameBytes;
+    }
+
+    // buffered bytes
+    int available() {
+        return mSize;
+    }
+
+    /**
+     * Bytes of whole frames that fit in an input buffer of 'capacity' bytes,
+     * & at least one frame. The ring grows so it can hold that many.
+     */
+    int fillTarget(int capacity) {
+        int target = Math.max(mFrameBytes, capacity - capacity % mFrameBytes);
+        if (target > mRing.length) {
+            grow(2 * target);
+        }
+        return target;
+    }
+
+    /**
+     * Call before writing a chunk. The first chunk's 'ptsUs' is the time of the
+     * first sample. A later chunk is timed by the samples before it, unless
+     * 'ptsUs' is later than that, in which case the gap is filled with silence.
+     */
+    void startChunk(long ptsUs) {
+        if (!mStarted) {
+            mStarted = true;
+            mStartUs = Math.max(0, ptsUs);
+            return;
+        }
+        long expected = mSamplesWritten + mSilenceBytes / mBytesPerSample;
+        long gap = (ptsUs - mStartUs) * mSampleRate / 1000000L - expected;
+        // under 1ms is timestamp jitter, not a gap
+        if (gap > mSampleRate / 1000) {
+            mSilenceBytes += gap * mBytesPerSample;
+        }
+    }
+
+    /**
+     * Copy as much of pcm[offset, offset + length) as fits, after any silence
+     * from startChunk(). Returns the bytes of pcm taken, maybe 0 if the ring is full.
+     */
+    int write(byte[] pcm, int offset, int length) {
+        while (mSilenceBytes > 0 && mSize < mRing.length) {
+            int tail = (mHead + mSize) % mRing.length;
+            int toFill = (int) Math.min(mSilenceBytes, Math.min(mRing.length - mSize, mRing.length - tail));
+            Arrays.fill(mRing, tail, tail + toFill, (byte) 0);
+            mSize += toFill;
+            mSilenceBytes -= toFill;
+            mSamplesWritten += toFill / mBytesPerSample;
+        }
+        if (mSilenceBytes > 0) {
+            return 0;
+        }
+
+        int toWrite = Math.min(length, mRing.length - mSize);
+        int tail = (mHead + mSize) % mRing.length;
+        int first = Math.min(toWrite, mRing.length - tail);
+        System.arraycopy(pcm, offset, mRing, tail, first);
+        System.arraycopy(pcm, offset + first, mRing, 0, toWrite - first);
+        mSize += toWrite;
+        mSamplesWritten += toWrite / mBytesPerSample;
+        return toWrite;
+    }
+
+    // presentation time of the next sample read
+    long presentationTimeUs() {
+        return mStartUs + mSamplesRead * 1000000L / mSampleRate;
+    }
+
+    /**
+     * Move whole frames into 'dst', as many as are buffered & fit.
+     * With 'flush', the last partial frame too. Returns the bytes moved.
+     */
+    int read(ByteBuffer dst, boolean flush) {
+        int toRead = Math.min(mSize, dst.remaining());
+        if (!flush || toRead < mSize) {
+            int whole = toRead - toRead % mFrameBytes;
+            // a buffer smaller than a frame still gets whole samples
+            toRead = whole > 0 ? whole : toRead - toRead % mBytesPerSample;
+        }
+        int first = Math.min(toRead, mRing.length - mHead);
+        dst.put(mRing, mHead, first);
+        dst.put(mRing, 0, toRead - first);
+        mHead = (mHead + toRead) % mRing.length;
+        mSize -= toRead;
+        mSamplesRead += toRead / mBytesPerSample;
+        return toRead;
+    }
+
+    private void grow(int capacity) {
+        byte[] ring = new byte[capacity];
+        int first = Math.min(mSize, mRing.length - mHead);
+        System.arraycopy(mRing, mHead, ring, 0, first);
+        System.arraycopy(mRing, 0, ring, first, mSize - first);
+        mRing = ring;
+        mHead = 0;
+    }
+}
@@ -0,0 +1,74 @@
+package com.lib.flutter_quick_video_encoder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Spots video frames identical to the previous one, by a 64 bit hash.
+ *
+ * The frame is hashed 8 bytes at a time, over every 'rowStep'th row & the last
+ * row, so only 1 / rowStep of the frame is read. The plugin defaults to 4, which
+ * still sees anything 4 rows tall, e.g. a text cursor. With a rowStep of 1 every
+ * byte counts. Larger steps are faster, but miss changes that only touch skipped rows.
+ *
+ * Not thread safe. Used by the thread that puts frames.
+ */
+class FrameFingerprint {
+
+    private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private final int mRowBytes;
+    private final int mRowStep;
+
+    private long mLast;
+    private boolean mHasLast;
+
+    // 'rowBytes' is the length of one row of the frame, e.g. width * 4 for RGBA
+    FrameFingerprint(int rowBytes, int rowStep) {
+        mRowBytes = Math.max(1, rowBytes);
+        mRowStep = Math.max(1, rowStep);
+    }
+
+    // hash of frame[0, length)
+    long hash(byte[] frame, int length) {
+        ByteBuffer words = ByteBuffer.wrap(frame, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+        int rows = (length + mRowBytes - 1) / mRowBytes;
+        long h = length;
+        for (int row = 0; row < rows; row += nextStep(row, rows)) {
+            int start = row * mRowBytes;
+            int end = Math.min(length, start + mRowBytes);
+            int i = start;
+            for (; i + 8 <= end; i += 8) {
+                h = mix(h, words.getLong(i));
+            }
+            for (; i < end; i++) {
+                h = mix(h, frame[i]);
+            }
+        }
+        return h;
+    }
+
+    // true if 'hash' matches the last remembered frame
+    boolean isRepeat(long hash) {
+        return mHasLast && hash == mLast;
+    }
+
+    // remember a frame that will be encoded. frames that were dropped must not be,
+    // or the next identical frames would be skipped as repeats of a frame never shown
+    void remember(long hash) {
+        mLast = hash;
+        mHasLast = true;
+    }
+
+    // rows to the next sampled row, landing on the last row at the end
+    private int nextStep(int row, int rows) {
+        int last = rows - 1;
+        return row < last ? Math.min(mRowStep, last - row) : 1;
+    }
+
+    private static long mix(long h, long value) {
+        h ^= value;
+        h *= MULTIPLIER;
+        return h ^ (h >>> 29);
+    }
+}
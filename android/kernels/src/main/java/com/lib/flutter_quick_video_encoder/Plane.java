@@ -0,0 +1,17 @@
+package com.lib.flutter_quick_video_encoder;
+
+import java.nio.ByteBuffer;
+
+// one plane of a YUV image, like android.media.Image.Plane,
+// so the kernels can run & be measured on a plain JVM
+class Plane {
+    final ByteBuffer buffer;
+    final int rowStride;
+    final int pixelStride;
+
+    Plane(ByteBuffer buffer, int rowStride, int pixelStride) {
+        this.buffer = buffer;
+        this.rowStride = rowStride;
+        this.pixelStride = pixelStride;
+    }
+}
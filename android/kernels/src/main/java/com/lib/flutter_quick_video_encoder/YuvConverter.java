@@ -0,0 +1,481 @@
+package com.lib.flutter_quick_video_encoder;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Converts frames straight into the Y, U & V plane buffers of an encoder
+ * input image, in a single pass.
+ *
+ * RGBA & BGRA are converted to YUV in 2x2 blocks: luma per pixel, & chroma
+ * once per block from the block's averaged RGB, with fixed point coefficients
+ * of the BT.601 or BT.709 matrix in limited or full range, precomputed once.
+ * Multiplies beat coefficient tables here, since every table load is bounds
+ * checked. Rows are built in small scratch arrays and written with bulk puts.
+ * There are fast paths for the common layouts (I420, NV12, NV21), and a
+ * generic path that honors any row & pixel stride.
+ *
+ * YUV 420 input (I420, NV12, NV21) is only copied, adapting the strides, &
+ * re-interleaving the chroma if the image's layout differs from the input's.
+ *
+ * With more than one thread, the frame is split into row bands (aligned to
+ * chroma row pairs) that are converted concurrently on a fixed worker pool.
+ * The output is identical to the single threaded path.
+ */
+class YuvConverter {
+
+    // pixel format of the frames given to toPlanes()
+    enum InputFormat {
+        RGBA,
+        BGRA,
+        I420, // Y plane, then U, then V, no padding
+        NV12, // Y plane, then interleaved UVUV..
+        NV21, // Y plane, then interleaved VUVU..
+    }
+
+    // the RGB to YUV matrix
+    enum ColorStandard {
+        BT601, // SD
+        BT709, // HD
+    }
+
+    enum ColorRange {
+        LIMITED, // Y 16-235, UV 16-240
+        FULL,    // 0-255
+    }
+
+    enum ChromaLayout {
+        I420,    // separate U & V planes, pixelStride 1
+        NV12,    // interleaved UVUV.., pixelStride 2
+        NV21,    // interleaved VUVU.., pixelStride 2
+        GENERIC, // anything else
+    }
+
+    private final int width;
+    private final int height;
+    private final int chromaWidth;
+    private final int chromaHeight;
+    private final InputFormat inputFormat;
+
+    // RGB to YUV coefficients in 16.16 fixed point, with offset & rounding.
+    // chroma applies to the sum of a 2x2 block, so shifts 2 more to average
+    private static final int SHIFT = 16;
+    private static final int CHROMA_SHIFT = SHIFT + 2;
+    private int yR, yG, yB, yOffset;
+    private int uR, uG, uB, vR, vG, vB, cOffset;
+
+    // one band per thread. band 0 runs on the calling thread
+    private final Band[] bands;
+    private final ExecutorService workers;
+    private final Semaphore bandsDone = new Semaphore(0);
+
+    // current frame, read by the bands
+    private byte[] frame;
+    private ChromaLayout layout;
+    private ByteBuffer y, u, v;
+    private int yRowStride, yPixelStride;
+    private int uRowStride, uPixelStride;
+    private int vRowStride, vPixelStride;
+
+    // first error thrown by a worker band
+    private volatile RuntimeException bandError;
+
+    YuvConverter(int width, int height) {
+        this(width, height, 1, InputFormat.RGBA);
+    }
+
+    YuvConverter(int width, int height, int threads) {
+        this(width, height, threads, InputFormat.RGBA);
+    }
+
+    YuvConverter(int width, int height, int threads, InputFormat inputFormat) {
+        this(width, height, threads, inputFormat, ColorStandard.BT601, ColorRange.LIMITED);
+    }
+
+    YuvConverter(int width, int height, int threads, InputFormat inputFormat,
+                 ColorStandard standard, ColorRange range) {
+        this.width = width;
+        this.height = height;
+        this.chromaWidth = width / 2;
+        this.chromaHeight = height / 2;
+        this.inputFormat = inputFormat;
+
+        // bands must start on an even row, so each one owns whole chroma rows
+        int rowPairs = (height + 1) / 2;
+        int bandCount = Math.max(1, Math.min(threads, rowPairs));
+        int pairsPerBand = Math.max(1, (rowPairs + bandCount - 1) / bandCount);
+        bandCount = Math.max(1, (rowPairs + pairsPerBand - 1) / pairsPerBand);
+
+        this.bands = new Band[bandCount];
+        for (int n = 0; n < bandCount; n++) {
+            int startRow = n * pairsPerBand * 2;
+            int endRow = Math.min(height, startRow + pairsPerBand * 2);
+            bands[n] = new Band(startRow, endRow);
+        }
+
+        this.workers = bandCount > 1 ? Executors.newFixedThreadPool(bandCount - 1) : null;
+
+        precompute(standard, range);
+    }
+
+    private void precompute(ColorStandard standard, ColorRange range) {
+        double kr = standard == ColorStandard.BT709 ? 0.2126 : 0.299;
+        double kb = standard == ColorStandard.BT709 ? 0.0722 : 0.114;
+        double kg = 1 - kr - kb;
+        boolean full = range == ColorRange.FULL;
+        double yScale = (full ? 1 : 219.0 / 255) * (1 << SHIFT);
+        double cScale = (full ? 1 : 224.0 / 255) * (1 << SHIFT);
+
+        yR = (int) Math.round(yScale * kr);
+        yG = (int) Math.round(yScale * kg);
+        yB = (int) Math.round(yScale * kb);
+        yOffset = ((full ? 0 : 16) << SHIFT) + (1 << (SHIFT - 1));
+
+        // Cb = (B - Y) / (2 - 2kb), Cr = (R - Y) / (2 - 2kr)
+        double cb = cScale / (2 - 2 * kb);
+        double cr = cScale / (2 - 2 * kr);
+        uR = (int) Math.round(-kr * cb);
+        uG = (int) Math.round(-kg * cb);
+        uB = (int) Math.round((1 - kb) * cb);
+        vR = (int) Math.round((1 - kr) * cr);
+        vG = (int) Math.round(-kg * cr);
+        vB = (int) Math.round(-kb * cr);
+        cOffset = (128 << CHROMA_SHIFT) + (1 << (CHROMA_SHIFT - 1));
+    }
+
+    int threadCount() {
+        return bands.length;
+    }
+
+    // bytes of one input frame
+    static int frameBytes(InputFormat format, int width, int height) {
+        switch (format) {
+            case RGBA:
+            case BGRA:
+                return width * height * 4;
+            default:
+                return width * height + 2 * (width / 2) * (height / 2);
+        }
+    }
+
+    // stop the worker threads
+    void close() {
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Figure out how the U & V planes are laid out in memory.
+     *
+     * For semi-planar images both planes view the same memory, offset by one byte.
+     * We confirm that by writing through one plane & reading back through the other.
+     */
+    static ChromaLayout detectLayout(ByteBuffer u, int uRowStride, int uPixelStride,
+                                     ByteBuffer v, int vRowStride, int vPixelStride) {
+        if (uPixelStride == 1 && vPixelStride == 1) {
+            return ChromaLayout.I420;
+        }
+        if (uPixelStride != 2 || vPixelStride != 2 || uRowStride != vRowStride) {
+            return ChromaLayout.GENERIC;
+        }
+        if (u.capacity() < 2 || v.capacity() < 2) {
+            return ChromaLayout.GENERIC;
+        }
+        if (aliases(u, 1, v, 0)) {
+            return ChromaLayout.NV12;
+        }
+        if (aliases(v, 1, u, 0)) {
+            return ChromaLayout.NV21;
+        }
+        return ChromaLayout.GENERIC;
+    }
+
+    // true if a.get(aIdx) & b.get(bIdx) are the same byte of memory
+    private static boolean aliases(ByteBuffer a, int aIdx, ByteBuffer b, int bIdx) {
+        byte original = a.get(aIdx);
+        a.put(aIdx, (byte) 0x55);
+        boolean first = b.get(bIdx) == (byte) 0x55;
+        a.put(aIdx, (byte) 0xAA);
+        boolean second = b.get(bIdx) == (byte) 0xAA;
+        a.put(aIdx, original);
+        return first && second;
+    }
+
+    void toPlanes(byte[] frame, Plane y, Plane u, Plane v) {
+        toPlanes(frame,
+            y.buffer, y.rowStride, y.pixelStride,
+            u.buffer, u.rowStride, u.pixelStride,
+            v.buffer, v.rowStride, v.pixelStride);
+    }
+
+    void toPlanes(byte[] frame,
+                  ByteBuffer y, int yRowStride, int yPixelStride,
+                  ByteBuffer u, int uRowStride, int uPixelStride,
+                  ByteBuffer v, int vRowStride, int vPixelStride) {
+
+        this.frame = frame;
+        this.layout = detectLayout(u, uRowStride, uPixelStride, v, vRowStride, vPixelStride);
+        this.y = y;
+        this.u = u;
+        this.v = v;
+        this.yRowStride = yRowStride;
+        this.yPixelStride = yPixelStride;
+        this.uRowStride = uRowStride;
+        this.uPixelStride = uPixelStride;
+        this.vRowStride = vRowStride;
+        this.vPixelStride = vPixelStride;
+
+        if (bands.length == 1) {
+            bands[0].convert(y, u, v);
+        } else {
+            bandError = null;
+            for (int n = 1; n < bands.length; n++) {
+                workers.execute(bands[n]);
+            }
+            bands[0].run();
+            bandsDone.acquireUninterruptibly(bands.length);
+            if (bandError != null) {
+                throw bandError;
+            }
+        }
+
+        this.frame = null;
+        this.y = null;
+        this.u = null;
+        this.v = null;
+    }
+
+    // a range of rows [startRow, endRow), with its own scratch rows
+    private class Band implements Runnable {
+        final int startRow;
+        final int endRow;
+        final byte[] yRow;
+        final byte[] yRow2;
+        final byte[] uRow;
+        final byte[] vRow;
+        final byte[] uvRow;
+
+        Band(int startRow, int endRow) {
+            this.startRow = startRow;
+            this.endRow = endRow;
+            this.yRow = new byte[width];
+            this.yRow2 = new byte[width];
+            this.uRow = new byte[chromaWidth];
+            this.vRow = new byte[chromaWidth];
+            this.uvRow = new byte[chromaWidth * 2];
+        }
+
+        @Override
+        public void run() {
+            try {
+                // relative puts move the buffer position,
+                // so each band writes through its own views
+                convert(y.duplicate(), u.duplicate(), v.duplicate());
+            } catch (RuntimeException e) {
+                bandError = e;
+            } finally {
+                bandsDone.release();
+            }
+        }
+
+        void convert(ByteBuffer y, ByteBuffer u, ByteBuffer v) {
+            switch (inputFormat) {
+                case RGBA: convertRgb(y, u, v, 0, 2); break;
+                case BGRA: convertRgb(y, u, v, 2, 0); break;
+                default:   copyYuv(y, u, v);          break;
+            }
+        }
+
+        // 'rOffset' & 'bOffset' are the red & blue bytes within each 4 byte pixel
+        private void convertRgb(ByteBuffer y, ByteBuffer u, ByteBuffer v, int rOffset, int bOffset) {
+            byte[] rgba = frame;
+            int yR = YuvConverter.this.yR, yG = YuvConverter.this.yG, yB = YuvConverter.this.yB;
+            int yOffset = YuvConverter.this.yOffset;
+            int uR = YuvConverter.this.uR, uG = YuvConverter.this.uG, uB = YuvConverter.this.uB;
+            int vR = YuvConverter.this.vR, vG = YuvConverter.this.vG, vB = YuvConverter.this.vB;
+            int cOffset = YuvConverter.this.cOffset;
+            byte[] top = yRow;
+            byte[] bottom = yRow2;
+            int rowBytes = width * 4;
+
+            // chroma goes straight into the scratch row of the image's layout:
+            // interleaved for NV12 & NV21, else separate U & V rows
+            boolean interleaved = layout == ChromaLayout.NV12 || layout == ChromaLayout.NV21;
+            byte[] uDst = interleaved ? uvRow : uRow;
+            byte[] vDst = interleaved ? uvRow : vRow;
+            int uStart = layout == ChromaLayout.NV21 ? 1 : 0;
+            int vStart = layout == ChromaLayout.NV12 ? 1 : 0;
+            int cStep = interleaved ? 2 : 1;
+
+            // bands start on even rows, so j & j + 1 share a chroma row
+            for (int j = startRow; j < endRow; j += 2) {
+                if (j + 1 >= endRow) {
+                    // odd height. the last row has no chroma
+                    lumaRow(rgba, j * rowBytes, top, rOffset, bOffset);
+                    writeRow(y, j * yRowStride, yPixelStride, top, 0, width);
+                    break;
+                }
+
+                int p0 = j * rowBytes;
+                int p1 = p0 + rowBytes;
+                int x = 0;
+                int ui = uStart;
+                int vi = vStart;
+                for (int c = 0; c < chromaWidth; c++) {
+                    int r0 = rgba[p0 + rOffset] & 0xFF, g0 = rgba[p0 + 1] & 0xFF, b0 = rgba[p0 + bOffset] & 0xFF;
+                    int r1 = rgba[p0 + 4 + rOffset] & 0xFF, g1 = rgba[p0 + 5] & 0xFF, b1 = rgba[p0 + 4 + bOffset] & 0xFF;
+                    int r2 = rgba[p1 + rOffset] & 0xFF, g2 = rgba[p1 + 1] & 0xFF, b2 = rgba[p1 + bOffset] & 0xFF;
+                    int r3 = rgba[p1 + 4 + rOffset] & 0xFF, g3 = rgba[p1 + 5] & 0xFF, b3 = rgba[p1 + 4 + bOffset] & 0xFF;
+                    p0 += 8;
+                    p1 += 8;
+
+                    // in range by construction, no clamping
+                    top[x] = (byte) ((yR * r0 + yG * g0 + yB * b0 + yOffset) >> SHIFT);
+                    top[x + 1] = (byte) ((yR * r1 + yG * g1 + yB * b1 + yOffset) >> SHIFT);
+                    bottom[x] = (byte) ((yR * r2 + yG * g2 + yB * b2 + yOffset) >> SHIFT);
+                    bottom[x + 1] = (byte) ((yR * r3 + yG * g3 + yB * b3 + yOffset) >> SHIFT);
+                    x += 2;
+
+                    int r = r0 + r1 + r2 + r3;
+                    int g = g0 + g1 + g2 + g3;
+                    int b = b0 + b1 + b2 + b3;
+                    // full range chroma can round up to 256
+                    uDst[ui] = (byte) clamp((uR * r + uG * g + uB * b + cOffset) >> CHROMA_SHIFT);
+                    vDst[vi] = (byte) clamp((vR * r + vG * g + vB * b + cOffset) >> CHROMA_SHIFT);
+                    ui += cStep;
+                    vi += cStep;
+                }
+                if (x < width) {
+                    // odd width. the last column has no chroma
+                    top[x] = luma(rgba, p0, rOffset, bOffset);
+                    bottom[x] = luma(rgba, p1, rOffset, bOffset);
+                }
+
+                writeRow(y, j * yRowStride, yPixelStride, top, 0, width);
+                writeRow(y, (j + 1) * yRowStride, yPixelStride, bottom, 0, width);
+                writeChromaRow(j / 2, u, v);
+            }
+        }
+
+        private void lumaRow(byte[] rgba, int p, byte[] row, int rOffset, int bOffset) {
+            for (int i = 0; i < width; i++, p += 4) {
+                row[i] = luma(rgba, p, rOffset, bOffset);
+            }
+        }
+
+        private byte luma(byte[] rgba, int p, int rOffset, int bOffset) {
+            int r = rgba[p + rOffset] & 0xFF;
+            int g = rgba[p + 1] & 0xFF;
+            int b = rgba[p + bOffset] & 0xFF;
+            return (byte) ((yR * r + yG * g + yB * b + yOffset) >> SHIFT);
+        }
+
+        // YUV 420 input: copy the luma rows, & the chroma rows in the image's layout
+        private void copyYuv(ByteBuffer y, ByteBuffer u, ByteBuffer v) {
+            int chromaStart = width * height;
+            int chromaSize = chromaWidth * chromaHeight;
+            for (int j = startRow; j < endRow; j++) {
+                writeRow(y, j * yRowStride, yPixelStride, frame, j * width, width);
+
+                int row = j / 2;
+                if (j % 2 != 0 || row >= chromaHeight || chromaWidth == 0) {
+                    continue;
+                }
+                if (inputFormat == InputFormat.I420) {
+                    int uIdx = chromaStart + row * chromaWidth;
+                    int vIdx = uIdx + chromaSize;
+                    if (layout == ChromaLayout.I420) {
+                        writeRow(u, row * uRowStride, 1, frame, uIdx, chromaWidth);
+                        writeRow(v, row * vRowStride, 1, frame, vIdx, chromaWidth);
+                        continue;
+                    }
+                    for (int c = 0; c < chromaWidth; c++) {
+                        setChroma(c, frame[uIdx + c], frame[vIdx + c]);
+                    }
+                } else {
+                    int uvIdx = chromaStart + row * chromaWidth * 2;
+                    boolean vFirst = inputFormat == InputFormat.NV21;
+                    if (layout == (vFirst ? ChromaLayout.NV21 : ChromaLayout.NV12)) {
+                        System.arraycopy(frame, uvIdx, uvRow, 0, chromaWidth * 2);
+                    } else {
+                        int uOff = vFirst ? 1 : 0;
+                        int vOff = vFirst ? 0 : 1;
+                        for (int c = 0; c < chromaWidth; c++) {
+                            setChroma(c, frame[uvIdx + 2 * c + uOff], frame[uvIdx + 2 * c + vOff]);
+                        }
+                    }
+                }
+                writeChromaRow(row, u, v);
+            }
+        }
+
+        // put one chroma sample in the scratch rows of the image's layout
+        private void setChroma(int c, byte uu, byte vv) {
+            switch (layout) {
+                case NV12:
+                    uvRow[c * 2] = uu;
+                    uvRow[c * 2 + 1] = vv;
+                    break;
+                case NV21:
+                    uvRow[c * 2] = vv;
+                    uvRow[c * 2 + 1] = uu;
+                    break;
+                default:
+                    uRow[c] = uu;
+                    vRow[c] = vv;
+                    break;
+            }
+        }
+
+        private void writeChromaRow(int row, ByteBuffer u, ByteBuffer v) {
+            if (chromaWidth == 0) {
+                return;
+            }
+            int uPos = row * uRowStride;
+            int vPos = row * vRowStride;
+            int last = (chromaWidth - 1) * 2;
+            switch (layout) {
+                case I420:
+                    u.position(uPos);
+                    u.put(uRow, 0, chromaWidth);
+                    v.position(vPos);
+                    v.put(vRow, 0, chromaWidth);
+                    break;
+                case NV12:
+                    // the U plane ends one byte before the last V sample,
+                    // so write everything but that byte through U
+                    u.position(uPos);
+                    u.put(uvRow, 0, last + 1);
+                    v.put(vPos + last, uvRow[last + 1]);
+                    break;
+                case NV21:
+                    v.position(vPos);
+                    v.put(uvRow, 0, last + 1);
+                    u.put(uPos + last, uvRow[last + 1]);
+                    break;
+                default:
+                    writeRow(u, uPos, uPixelStride, uRow, 0, chromaWidth);
+                    writeRow(v, vPos, vPixelStride, vRow, 0, chromaWidth);
+                    break;
+            }
+        }
+    }
+
+    private static void writeRow(ByteBuffer buffer, int pos, int pixelStride, byte[] row, int offset, int count) {
+        if (pixelStride == 1) {
+            buffer.position(pos);
+            buffer.put(row, offset, count);
+        } else {
+            for (int i = 0; i < count; i++) {
+                buffer.put(pos + i * pixelStride, row[offset + i]);
+            }
+        }
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+}
@@ -0,0 +1,65 @@
+package com.lib.flutter_quick_video_encoder;
+
+import java.nio.ByteBuffer;
+
+// YUV 420 planes laid out like the images encoders hand out.
+// used by the kernel tests & the benchmarks
+class FakeImage {
+
+    enum Layout {
+        I420,        // tight planar
+        I420_PADDED, // planar, rows padded to 64 bytes
+        NV12,        // U & V interleaved, views of the same memory
+        NV21,        // V & U interleaved, views of the same memory
+        GENERIC,     // pixelStride 2, but separate memory. the slow path
+    }
+
+    final Plane y;
+    final Plane u;
+    final Plane v;
+
+    FakeImage(int width, int height, Layout layout) {
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        switch (layout) {
+            case I420:
+                y = plane(width, height, 1);
+                u = plane(chromaWidth, chromaHeight, 1);
+                v = plane(chromaWidth, chromaHeight, 1);
+                break;
+            case I420_PADDED:
+                y = plane(align(width, 64), height, 1);
+                u = plane(align(chromaWidth, 64), chromaHeight, 1);
+                v = plane(align(chromaWidth, 64), chromaHeight, 1);
+                break;
+            case NV12:
+            case NV21: {
+                y = plane(width, height, 1);
+                int rowStride = chromaWidth * 2;
+                ByteBuffer uv = ByteBuffer.allocateDirect(rowStride * chromaHeight);
+                ByteBuffer first = uv.duplicate();
+                first.limit(Math.max(0, uv.capacity() - 1));
+                ByteBuffer second = uv.duplicate();
+                second.position(Math.min(1, uv.capacity()));
+                Plane a = new Plane(first.slice(), rowStride, 2);
+                Plane b = new Plane(second.slice(), rowStride, 2);
+                u = layout == Layout.NV12 ? a : b;
+                v = layout == Layout.NV12 ? b : a;
+                break;
+            }
+            default:
+                y = plane(width, height, 1);
+                u = plane(chromaWidth * 2, chromaHeight, 2);
+                v = plane(chromaWidth * 2, chromaHeight, 2);
+                break;
+        }
+    }
+
+    private static Plane plane(int rowStride, int rows, int pixelStride) {
+        return new Plane(ByteBuffer.allocateDirect(rowStride * rows), rowStride, pixelStride);
+    }
+
+    private static int align(int value, int alignment) {
+        return (value + alignment - 1) / alignment * alignment;
+    }
+}
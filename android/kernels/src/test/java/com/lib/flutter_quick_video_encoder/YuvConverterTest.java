@@ -0,0 +1,193 @@
+package com.lib.flutter_quick_video_encoder;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class YuvConverterTest {
+
+    // even, odd & tiny sizes. odd widths & heights have a luma only column or row
+    private static final int[][] SIZES = {{64, 48}, {33, 9}, {11, 7}, {10, 6}, {2, 2}, {1, 1}};
+
+    private static final YuvConverter.InputFormat[] RGB_FORMATS = {
+        YuvConverter.InputFormat.RGBA, YuvConverter.InputFormat.BGRA,
+    };
+
+    private static final YuvConverter.InputFormat[] YUV_FORMATS = {
+        YuvConverter.InputFormat.I420, YuvConverter.InputFormat.NV12, YuvConverter.InputFormat.NV21,
+    };
+
+    @Test
+    public void rgbMatchesFloatReference() {
+        for (int[] size : SIZES) {
+            for (YuvConverter.ColorStandard standard : YuvConverter.ColorStandard.values()) {
+                for (YuvConverter.ColorRange range : YuvConverter.ColorRange.values()) {
+                    for (YuvConverter.InputFormat format : RGB_FORMATS) {
+                        for (FakeImage.Layout layout : FakeImage.Layout.values()) {
+                            checkAgainstReference(size[0], size[1], format, standard, range, layout);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void bandsMatchSerial() {
+        for (int[] size : SIZES) {
+            for (YuvConverter.InputFormat format : YuvConverter.InputFormat.values()) {
+                for (FakeImage.Layout layout : FakeImage.Layout.values()) {
+                    byte[] frame = randomFrame(format, size[0], size[1]);
+                    FakeImage serial = convert(frame, size[0], size[1], 1, format,
+                        YuvConverter.ColorStandard.BT709, YuvConverter.ColorRange.LIMITED, layout);
+                    for (int threads : new int[] {2, 3, 4}) {
+                        FakeImage banded = convert(frame, size[0], size[1], threads, format,
+                            YuvConverter.ColorStandard.BT709, YuvConverter.ColorRange.LIMITED, layout);
+                        String what = format + " " + layout + " " + size[0] + "x" + size[1] + " threads " + threads;
+                        assertArrayEquals(what + " y", bytes(serial.y), bytes(banded.y));
+                        assertArrayEquals(what + " u", bytes(serial.u), bytes(banded.u));
+                        assertArrayEquals(what + " v", bytes(serial.v), bytes(banded.v));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void yuvInputIsCopied() {
+        for (int[] size : SIZES) {
+            int width = size[0];
+            int height = size[1];
+            int chromaWidth = width / 2;
+            int chromaHeight = height / 2;
+            for (YuvConverter.InputFormat format : YUV_FORMATS) {
+                for (FakeImage.Layout layout : FakeImage.Layout.values()) {
+                    byte[] frame = randomFrame(format, width, height);
+                    FakeImage image = convert(frame, width, height, 1, format,
+                        YuvConverter.ColorStandard.BT601, YuvConverter.ColorRange.LIMITED, layout);
+                    String what = format + " " + layout + " " + width + "x" + height;
+                    for (int row = 0; row < height; row++) {
+                        for (int col = 0; col < width; col++) {
+                            assertEquals(what + " y", frame[row * width + col], sample(image.y, col, row));
+                        }
+                    }
+                    int chroma = width * height;
+                    for (int row = 0; row < chromaHeight; row++) {
+                        for (int col = 0; col < chromaWidth; col++) {
+                            int i = row * chromaWidth + col;
+                            byte u;
+                            byte v;
+                            if (format == YuvConverter.InputFormat.I420) {
+                                u = frame[chroma + i];
+                                v = frame[chroma + chromaWidth * chromaHeight + i];
+                            } else {
+                                byte first = frame[chroma + 2 * i];
+                                byte second = frame[chroma + 2 * i + 1];
+                                u = format == YuvConverter.InputFormat.NV12 ? first : second;
+                                v = format == YuvConverter.InputFormat.NV12 ? second : first;
+                            }
+                            assertEquals(what + " u", u, sample(image.u, col, row));
+                            assertEquals(what + " v", v, sample(image.v, col, row));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // every sample within 1 of a floating point conversion. chroma averages each 2x2 block
+    private static void checkAgainstReference(int width, int height, YuvConverter.InputFormat format,
+                                              YuvConverter.ColorStandard standard,
+                                              YuvConverter.ColorRange range, FakeImage.Layout layout) {
+        byte[] frame = randomFrame(format, width, height);
+        // the corners of the RGB cube, where rounding & clamping are tightest
+        for (int i = 0; i < Math.min(width * height, 8); i++) {
+            frame[i * 4] = (byte) ((i & 1) != 0 ? 255 : 0);
+            frame[i * 4 + 1] = (byte) ((i & 2) != 0 ? 255 : 0);
+            frame[i * 4 + 2] = (byte) ((i & 4) != 0 ? 255 : 0);
+        }
+        FakeImage image = convert(frame, width, height, 1, format, standard, range, layout);
+
+        boolean bt709 = standard == YuvConverter.ColorStandard.BT709;
+        boolean full = range == YuvConverter.ColorRange.FULL;
+        double kr = bt709 ? 0.2126 : 0.299;
+        double kb = bt709 ? 0.0722 : 0.114;
+        double kg = 1 - kr - kb;
+        double yScale = full ? 1 : 219.0 / 255;
+        double cScale = full ? 1 : 224.0 / 255;
+        int rOffset = format == YuvConverter.InputFormat.RGBA ? 0 : 2;
+        int bOffset = 2 - rOffset;
+        String what = format + " " + standard + " " + range + " " + layout + " " + width + "x" + height;
+
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                int p = (row * width + col) * 4;
+                double luma = kr * (frame[p + rOffset] & 0xFF) + kg * (frame[p + 1] & 0xFF) +
+                    kb * (frame[p + bOffset] & 0xFF);
+                double expected = (full ? 0 : 16) + yScale * luma;
+                assertWithinOne(what + " y at " + col + "," + row, expected, sample(image.y, col, row));
+            }
+        }
+        for (int row = 0; row < height / 2; row++) {
+            for (int col = 0; col < width / 2; col++) {
+                double r = 0;
+                double g = 0;
+                double b = 0;
+                for (int dy = 0; dy < 2; dy++) {
+                    for (int dx = 0; dx < 2; dx++) {
+                        int p = ((2 * row + dy) * width + 2 * col + dx) * 4;
+                        r += (frame[p + rOffset] & 0xFF) / 4.0;
+                        g += (frame[p + 1] & 0xFF) / 4.0;
+                        b += (frame[p + bOffset] & 0xFF) / 4.0;
+                    }
+                }
+                double luma = kr * r + kg * g + kb * b;
+                double cb = Math.min(255, 128 + cScale * (b - luma) / (2 - 2 * kb));
+                double cr = Math.min(255, 128 + cScale * (r - luma) / (2 - 2 * kr));
+                assertWithinOne(what + " u at " + col + "," + row, cb, sample(image.u, col, row));
+                assertWithinOne(what + " v at " + col + "," + row, cr, sample(image.v, col, row));
+            }
+        }
+    }
+
+    private static FakeImage convert(byte[] frame, int width, int height, int threads,
+                                     YuvConverter.InputFormat format, YuvConverter.ColorStandard standard,
+                                     YuvConverter.ColorRange range, FakeImage.Layout layout) {
+        FakeImage image = new FakeImage(width, height, layout);
+        YuvConverter converter = new YuvConverter(width, height, threads, format, standard, range);
+        try {
+            converter.toPlanes(frame, image.y, image.u, image.v);
+        } finally {
+            converter.close();
+        }
+        return image;
+    }
+
+    private static byte[] randomFrame(YuvConverter.InputFormat format, int width, int height) {
+        byte[] frame = new byte[YuvConverter.frameBytes(format, width, height)];
+        new Random(width * 31 + height).nextBytes(frame);
+        return frame;
+    }
+
+    private static byte sample(Plane plane, int col, int row) {
+        return plane.buffer.get(row * plane.rowStride + col * plane.pixelStride);
+    }
+
+    private static byte[] bytes(Plane plane) {
+        ByteBuffer buffer = plane.buffer.duplicate();
+        buffer.clear();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static void assertWithinOne(String what, double expected, byte actual) {
+        int value = actual & 0xFF;
+        assertTrue(what + ": expected " + expected + ", got " + value, Math.abs(value - Math.round(expected)) <= 1);
+    }
+}
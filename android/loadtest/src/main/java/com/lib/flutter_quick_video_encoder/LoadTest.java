@@ -0,0 +1,295 @@
+package com.lib.flutter_quick_video_encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives the pipelined engine at a target frame rate, with simulated encoders
+ * & muxer, and reports throughput, queue stalls & end to end latency.
+ * Conversion, the input queues, every stage thread & the muxer bookkeeping are
+ * the real ones, so a Linux box can stress them without a phone.
+ *
+ * Frames are put like the plugin does: the next one only after the previous
+ * is accepted, which with the block policy waits for room in the input queue.
+ *
+ * options, "--name value":
+ *   width 1280, height 720, fps 30, seconds 10, inputFormat rgba, threads 1
+ *   audio true, queueDepth 5, overflow block, muxQueueDepth 8, stagingBytes 4MB
+ *   latencyMs 10, jitterMs 0, sampleBytes 20000, keyFrameBytes 80000, gop 60
+ *   formatDelay 0, csdInFormat true, encoderFailAfter -1
+ *   muxLatencyMs 0, muxFailAfter -1, stats true
+ */
+public class LoadTest {
+
+    private static final Map<String, String> DEFAULTS = new HashMap<>();
+    static {
+        DEFAULTS.put("width", "1280");
+        DEFAULTS.put("height", "720");
+        DEFAULTS.put("fps", "30");
+        DEFAULTS.put("seconds", "10");
+        DEFAULTS.put("inputFormat", "rgba");
+        DEFAULTS.put("threads", "1");
+        DEFAULTS.put("audio", "true");
+        DEFAULTS.put("queueDepth", "5");
+        DEFAULTS.put("overflow", "block");
+        DEFAULTS.put("muxQueueDepth", "8");
+        DEFAULTS.put("stagingBytes", String.valueOf(4 * 1024 * 1024));
+        DEFAULTS.put("latencyMs", "10");
+        DEFAULTS.put("jitterMs", "0");
+        DEFAULTS.put("sampleBytes", "20000");
+        DEFAULTS.put("keyFrameBytes", "80000");
+        DEFAULTS.put("gop", "60");
+        DEFAULTS.put("formatDelay", "0");
+        DEFAULTS.put("csdInFormat", "true");
+        DEFAULTS.put("encoderFailAfter", "-1");
+        DEFAULTS.put("muxLatencyMs", "0");
+        DEFAULTS.put("muxFailAfter", "-1");
+        DEFAULTS.put("stats", "true");
+    }
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int CHANNELS = 2;
+
+    private final Map<String, String> mOptions;
+    private final int mFps;
+    private final int mFrames;
+
+    // put time of each video frame, by frame index
+    private final long[] mPutNs;
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+    private final LatencyHistogram mStalls = new LatencyHistogram();
+    private final AtomicInteger mVideoSamples = new AtomicInteger();
+    private volatile long mLastSampleNs;
+
+    private int mLateFrames;
+    private int mRejectedFrames;
+
+    LoadTest(Map<String, String> options) {
+        mOptions = options;
+        mFps = intOption("fps");
+        mFrames = intOption("seconds") * mFps;
+        mPutNs = new long[mFrames];
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>(DEFAULTS);
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String name = args[i].replaceFirst("^--", "");
+            if (!DEFAULTS.containsKey(name)) {
+                throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+            options.put(name, args[i + 1]);
+        }
+        boolean ok = new LoadTest(options).run();
+        System.exit(ok ? 0 : 1);
+    }
+
+    // true if every frame was encoded & the file finalized
+    boolean run() throws Exception {
+        int width = intOption("width");
+        int height = intOption("height");
+        boolean audio = Boolean.parseBoolean(mOptions.get("audio"));
+        YuvConverter.InputFormat inputFormat =
+            YuvConverter.InputFormat.valueOf(mOptions.get("inputFormat").toUpperCase(Locale.ROOT));
+
+        SimulatedEncoder.Config videoConfig = new SimulatedEncoder.Config();
+        videoConfig.width = width;
+        videoConfig.height = height;
+        videoConfig.keyFrameInterval = intOption("gop");
+        videoConfig.latencyUs = intOption("latencyMs") * 1000L;
+        videoConfig.latencyJitterUs = intOption("jitterMs") * 1000L;
+        videoConfig.sampleBytes = intOption("sampleBytes");
+        videoConfig.keyFrameBytes = intOption("keyFrameBytes");
+        videoConfig.formatDelayFrames = intOption("formatDelay");
+        videoConfig.csdInFormat = Boolean.parseBoolean(mOptions.get("csdInFormat"));
+        videoConfig.failAfterSamples = intOption("encoderFailAfter");
+        SimulatedEncoder videoEncoder = new SimulatedEncoder(videoConfig);
+
+        SimulatedMuxer muxer = new SimulatedMuxer(intOption("muxLatencyMs") * 1000L, intOption("muxFailAfter"),
+            this::onSample);
+        YuvConverter converter = new YuvConverter(width, height, intOption("threads"), inputFormat);
+        SampleStagingBuffer stagingBuffer = new SampleStagingBuffer(intOption("stagingBytes"),
+            SampleStagingBuffer.OverflowPolicy.FAIL);
+        PipelinedEngine engine = new PipelinedEngine(mFps, muxer, converter, stagingBuffer,
+            intOption("queueDepth"), 0, overflowPolicy(mOptions.get("overflow")), intOption("muxQueueDepth"));
+        if (Boolean.parseBoolean(mOptions.get("stats"))) {
+            engine.enableStats();
+        }
+        engine.addEncoder(EncodeEngine.VIDEO, videoEncoder);
+        if (audio) {
+            SimulatedEncoder.Config audioConfig = new SimulatedEncoder.Config();
+            audioConfig.video = false;
+            audioConfig.mimeType = MediaFormat.MIMETYPE_AUDIO_AAC;
+            audioConfig.sampleRate = SAMPLE_RATE;
+            audioConfig.channels = CHANNELS;
+            audioConfig.latencyUs = 500;
+            audioConfig.sampleBytes = 372;
+            audioConfig.outputBuffers = 8;
+            engine.addEncoder(EncodeEngine.AUDIO, new SimulatedEncoder(audioConfig));
+            engine.setAudioFormat(SAMPLE_RATE, CHANNELS);
+        }
+        engine.start();
+
+        // two frames, alternated, so every frame differs from the one before
+        int frameBytes = YuvConverter.frameBytes(inputFormat, width, height);
+        byte[][] frames = {new byte[frameBytes], new byte[frameBytes]};
+        for (int i = 0; i < frameBytes; i++) {
+            frames[0][i] = (byte) (i * 31);
+            frames[1][i] = (byte) (i * 17 + 5);
+        }
+        byte[] pcm = new byte[SAMPLE_RATE / mFps * CHANNELS * 2];
+
+        String error = null;
+        long startNs = System.nanoTime();
+        long frameNs = 1000000000L / mFps;
+        try {
+            for (int i = 0; i < mFrames; i++) {
+                // pace to the target frame rate
+                long dueNs = startNs + i * frameNs;
+                long nowNs = System.nanoTime();
+                if (nowNs < dueNs) {
+                    LockSupport.parkNanos(dueNs - nowNs);
+                } else if (nowNs - dueNs > frameNs) {
+                    mLateFrames++;
+                }
+
+                mPutNs[i] = System.nanoTime();
+                InputData video = engine.inputPool().acquire(InputData.DataType.VIDEO);
+                video.data = frames[i % 2];
+                video.length = frameBytes;
+                put(engine, video);
+
+                if (audio) {
+                    InputData chunk = engine.inputPool().acquire(InputData.DataType.AUDIO);
+                    chunk.data = pcm;
+                    chunk.length = pcm.length;
+                    put(engine, chunk);
+                }
+            }
+            engine.finish();
+        } catch (Exception e) {
+            error = e.toString();
+            engine.close();
+        }
+        long endNs = System.nanoTime();
+
+        report(engine, muxer, videoEncoder, startNs, endNs, error);
+        return error == null && muxer.stopped() && mVideoSamples.get() + engine.droppedFrames(EncodeEngine.VIDEO) +
+            mRejectedFrames == mFrames;
+    }
+
+    // put a frame & wait until it is accepted, like the plugin's caller does
+    private void put(EncodeEngine engine, InputData inputData) throws Exception {
+        CompletableFuture<Void> accepted = new CompletableFuture<>();
+        long startNs = System.nanoTime();
+        try {
+            engine.put(inputData, error -> {
+                if (error != null) {
+                    accepted.completeExceptionally(error);
+                } else {
+                    accepted.complete(null);
+                }
+            });
+        } catch (InputQueue.QueueFullException e) {
+            mRejectedFrames++;
+            return;
+        }
+        boolean stalled = !accepted.isDone();
+        accepted.get();
+        if (stalled) {
+            mStalls.record(System.nanoTime() - startNs);
+        }
+    }
+
+    // muxing thread. put to muxed latency of video frames
+    private void onSample(int track, MediaFormat format, MediaCodec.BufferInfo info) {
+        if (!format.getString(MediaFormat.KEY_MIME).startsWith("video/")) {
+            return;
+        }
+        long nowNs = System.nanoTime();
+        int frame = (int) Math.round(info.presentationTimeUs * mFps / 1e6);
+        if (frame >= 0 && frame < mFrames) {
+            mLatency.record(nowNs - mPutNs[frame]);
+        }
+        mVideoSamples.incrementAndGet();
+        mLastSampleNs = nowNs;
+    }
+
+    private void report(EncodeEngine engine, SimulatedMuxer muxer, SimulatedEncoder videoEncoder,
+                        long startNs, long endNs, String error) {
+        double seconds = (endNs - startNs) / 1e9;
+        double encodeSeconds = mLastSampleNs > 0 ? (mLastSampleNs - startNs) / 1e9 : seconds;
+
+        Map<String, Object> report = new TreeMap<>();
+        report.put("options", new TreeMap<>(mOptions));
+        report.put("frames", mFrames);
+        report.put("videoSamples", mVideoSamples.get());
+        report.put("encoderSamples", videoEncoder.outputSamples());
+        report.put("muxedSamples", muxer.samples());
+        report.put("muxedBytes", muxer.bytes());
+        report.put("outOfOrderSamples", muxer.outOfOrderSamples());
+        report.put("droppedFrames", engine.droppedFrames(EncodeEngine.VIDEO));
+        report.put("rejectedFrames", mRejectedFrames);
+        report.put("lateFrames", mLateFrames);
+        report.put("seconds", round(seconds));
+        report.put("targetFps", mFps);
+        report.put("throughputFps", round(mVideoSamples.get() / encodeSeconds));
+        report.put("stalls", summary(mStalls));
+        report.put("latency", summary(mLatency));
+        if (engine.stats() != null) {
+            Map<String, Object> stages = new TreeMap<>();
+            @SuppressWarnings("unchecked")
+            Map<String, Map<String, Object>> engineStages =
+                (Map<String, Map<String, Object>>) engine.stats().toMap().get("stages");
+            for (Map.Entry<String, Map<String, Object>> stage : engineStages.entrySet()) {
+                stages.put(stage.getKey(), summaryOf(stage.getValue()));
+            }
+            report.put("stages", stages);
+        }
+        report.put("error", error);
+
+        for (Map.Entry<String, Object> entry : report.entrySet()) {
+            System.out.println(entry.getKey() + ": " + entry.getValue());
+        }
+    }
+
+    // count, mean & percentiles in ms
+    private static Map<String, Object> summary(LatencyHistogram histogram) {
+        return summaryOf(histogram.toMap());
+    }
+
+    private static Map<String, Object> summaryOf(Map<String, Object> histogram) {
+        Map<String, Object> summary = new TreeMap<>();
+        summary.put("count", histogram.get("count"));
+        for (String key : new String[] {"meanUs", "p50Us", "p90Us", "p99Us", "maxUs"}) {
+            long us = (Long) histogram.get(key);
+            summary.put(key.replace("Us", "Ms"), round(us / 1000.0));
+        }
+        return summary;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+
+    private int intOption(String name) {
+        return Integer.parseInt(mOptions.get(name));
+    }
+
+    private static InputQueue.OverflowPolicy overflowPolicy(String name) {
+        switch (name) {
+            case "fail": return InputQueue.OverflowPolicy.FAIL;
+            case "dropOldest": return InputQueue.OverflowPolicy.DROP_OLDEST;
+            case "dropNewest": return InputQueue.OverflowPolicy.DROP_NEWEST;
+            default: return InputQueue.OverflowPolicy.BLOCK;
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package com.lib.flutter_quick_video_encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A stand-in encoder with scripted timing, sizes & failures, so the engine's
+ * queueing, threading & timestamp logic can run on a plain JVM.
+ *
+ * Frames are encoded one at a time, in queue order: each is ready 'latencyUs'
+ * (+/- 'latencyJitterUs') after it was queued or after the frame before it was
+ * ready, whichever is later. An input buffer is free again once its frame is
+ * encoded. Output buffers are held until released, & the encoder holds at most
+ * 'outputBuffers' + 'formatDelayFrames' encoded frames, so a slow muxer backs
+ * up into the encoder & then the input queues, like on a device.
+ *
+ * Video input buffers are I420, so conversion is real. Output is zeros:
+ * only sizes, timestamps & flags mean anything.
+ */
+class SimulatedEncoder implements Encoder {
+
+    // behavior of one encoder. defaults are a 1080p video encoder
+    static class Config {
+        String mimeType = MediaFormat.MIMETYPE_VIDEO_AVC;
+        boolean video = true;
+        // video
+        int width = 1920;
+        int height = 1080;
+        int keyFrameInterval = 60;
+        // audio
+        int sampleRate = 44100;
+        int channels = 2;
+        int inputBufferBytes = 8192;
+
+        int inputBuffers = 4;
+        int outputBuffers = 4;
+        long latencyUs = 10000;
+        long latencyJitterUs = 0;
+        // mean sample size, varying +/- 50%. key frames are always 'keyFrameBytes'
+        int sampleBytes = 20000;
+        int keyFrameBytes = 80000;
+        // frames taken in before the output format is announced & output starts
+        int formatDelayFrames = 0;
+        // false: the codec config comes as a CODEC_CONFIG buffer after the format
+        boolean csdInFormat = true;
+        // dequeueOutputBuffer throws after this many samples, or -1 to never fail
+        int failAfterSamples = -1;
+        long seed = 1;
+    }
+
+    private static final byte[] AVC_CONFIG = {
+        0, 0, 0, 1, 0x67, 0x42, (byte) 0xc0, 0x28, (byte) 0xda, 0x01, (byte) 0xe0, 0x08, (byte) 0x9f, (byte) 0x96,
+        0, 0, 0, 1, 0x68, (byte) 0xce, 0x0f, (byte) 0xc8,
+    };
+
+    // a frame being encoded
+    private static class Frame {
+        int inputIndex;
+        long ptsUs;
+        boolean endOfStream;
+        long readyNs;
+        boolean inputFreed;
+    }
+
+    private final Config mConfig;
+    private final Random mRandom;
+
+    private final ByteBuffer[] mInputs;
+    private final Plane[][] mInputPlanes;
+    private final ByteBuffer[] mOutputs;
+
+    // guarded by 'this'
+    private final ArrayDeque<Integer> mFreeInputs = new ArrayDeque<>();
+    private final ArrayDeque<Integer> mFreeOutputs = new ArrayDeque<>();
+    private final ArrayDeque<Frame> mEncoding = new ArrayDeque<>();
+    // frames encoded but not yet output
+    private int mEncodedFrames;
+    private long mLastReadyNs;
+    private int mQueuedFrames;
+    private int mOutputSamples;
+    private boolean mEndOfStreamQueued;
+    private boolean mFormatSent;
+    private boolean mConfigSent;
+    private boolean mSyncFrameRequested;
+    private boolean mStopped;
+
+    SimulatedEncoder(Config config) {
+        mConfig = config;
+        mRandom = new Random(config.seed);
+
+        int inputBytes = config.video ?
+            YuvConverter.frameBytes(YuvConverter.InputFormat.I420, config.width, config.height) :
+            config.inputBufferBytes;
+        mInputs = new ByteBuffer[config.inputBuffers];
+        mInputPlanes = new Plane[config.inputBuffers][];
+        for (int i = 0; i < config.inputBuffers; i++) {
+            mInputs[i] = ByteBuffer.allocateDirect(inputBytes);
+            if (config.video) {
+                mInputPlanes[i] = i420Planes(mInputs[i], config.width, config.height);
+            }
+            mFreeInputs.add(i);
+        }
+
+        int outputBytes = Math.max(config.keyFrameBytes, config.sampleBytes * 3 / 2 + 1);
+        mOutputs = new ByteBuffer[config.outputBuffers];
+        for (int i = 0; i < config.outputBuffers; i++) {
+            mOutputs[i] = ByteBuffer.allocateDirect(Math.max(outputBytes, AVC_CONFIG.length));
+            mFreeOutputs.add(i);
+        }
+    }
+
+    @Override
+    public synchronized int dequeueInputBuffer(long timeoutUs) {
+        long deadlineNs = System.nanoTime() + timeoutUs * 1000;
+        while (true) {
+            long nextReadyNs = encode();
+            if (!mFreeInputs.isEmpty()) {
+                return mFreeInputs.poll();
+            }
+            long waitUntilNs = Math.min(deadlineNs, nextReadyNs);
+            boolean woken = await(waitUntilNs);
+            if ((!woken && waitUntilNs == deadlineNs) || Thread.currentThread().isInterrupted()) {
+                return MediaCodec.INFO_TRY_AGAIN_LATER;
+            }
+        }
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mInputs[index];
+    }
+
+    @Override
+    public Plane[] getInputPlanes(int index) {
+        if (!mConfig.video) {
+            throw new IllegalStateException("audio encoders have no input planes");
+        }
+        return mInputPlanes[index];
+    }
+
+    @Override
+    public synchronized void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        checkRunning();
+        Frame frame = new Frame();
+        frame.inputIndex = index;
+        frame.ptsUs = presentationTimeUs;
+        frame.endOfStream = (flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+
+        long latencyUs = mConfig.latencyUs;
+        if (mConfig.latencyJitterUs > 0) {
+            latencyUs += (long) ((mRandom.nextDouble() * 2 - 1) * mConfig.latencyJitterUs);
+        }
+        frame.readyNs = Math.max(System.nanoTime(), mLastReadyNs) + Math.max(0, latencyUs) * 1000;
+        mLastReadyNs = frame.readyNs;
+
+        mEncoding.add(frame);
+        if (frame.endOfStream) {
+            mEndOfStreamQueued = true;
+        } else {
+            mQueuedFrames++;
+        }
+        notifyAll();
+    }
+
+    @Override
+    public synchronized int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        long deadlineNs = System.nanoTime() + timeoutUs * 1000;
+        while (true) {
+            checkRunning();
+            long nextReadyNs = encode();
+            if (mConfig.failAfterSamples >= 0 && mOutputSamples >= mConfig.failAfterSamples) {
+                throw new IllegalStateException("simulated encoder failure after " + mOutputSamples + " samples");
+            }
+
+            if (!mFormatSent) {
+                if (mQueuedFrames >= mConfig.formatDelayFrames || mEndOfStreamQueued) {
+                    mFormatSent = true;
+                    return MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+                }
+            } else if (!mFreeOutputs.isEmpty()) {
+                if (!mConfig.csdInFormat && !mConfigSent) {
+                    mConfigSent = true;
+                    int index = mFreeOutputs.poll();
+                    byte[] config = codecConfig();
+                    mOutputs[index].clear();
+                    mOutputs[index].put(config);
+                    info.set(0, config.length, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+                    return index;
+                }
+                Frame frame = mEncoding.peek();
+                if (frame != null && frame.inputFreed) {
+                    mEncoding.poll();
+                    mEncodedFrames--;
+                    int index = mFreeOutputs.poll();
+                    mOutputs[index].clear();
+                    if (frame.endOfStream) {
+                        info.set(0, 0, frame.ptsUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    } else {
+                        setSample(info, frame.ptsUs);
+                        mOutputSamples++;
+                    }
+                    return index;
+                }
+            }
+
+            // wait for the next frame to be ready, a free buffer, or the timeout
+            long waitUntilNs = Math.min(deadlineNs, nextReadyNs);
+            boolean woken = await(waitUntilNs);
+            if ((!woken && waitUntilNs == deadlineNs) || Thread.currentThread().isInterrupted()) {
+                return MediaCodec.INFO_TRY_AGAIN_LATER;
+            }
+        }
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return mOutputs[index];
+    }
+
+    @Override
+    public synchronized void releaseOutputBuffer(int index) {
+        mFreeOutputs.add(index);
+        notifyAll();
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        MediaFormat format = mConfig.video ?
+            MediaFormat.createVideoFormat(mConfig.mimeType, mConfig.width, mConfig.height) :
+            MediaFormat.createAudioFormat(mConfig.mimeType, mConfig.sampleRate, mConfig.channels);
+        if (mConfig.csdInFormat) {
+            format.setByteBuffer("csd-0", ByteBuffer.wrap(codecConfig()));
+        }
+        return format;
+    }
+
+    @Override
+    public synchronized void requestSyncFrame() {
+        mSyncFrameRequested = true;
+    }
+
+    @Override
+    public synchronized void stop() {
+        mStopped = true;
+        mEncoding.clear();
+        notifyAll();
+    }
+
+    @Override
+    public void release() {
+        stop();
+    }
+
+    // samples output so far
+    synchronized int outputSamples() {
+        return mOutputSamples;
+    }
+
+    /**
+     * Finish the frames that are ready, freeing their input buffers, as long
+     * as the encoder has room to hold them. Returns when the next frame will be
+     * ready, or Long.MAX_VALUE if none can be.
+     */
+    private long encode() {
+        long nowNs = System.nanoTime();
+        int capacity = mConfig.outputBuffers + mConfig.formatDelayFrames;
+        for (Frame frame : mEncoding) {
+            if (frame.inputFreed) {
+                continue;
+            }
+            if (mEncodedFrames >= capacity) {
+                return Long.MAX_VALUE;
+            }
+            if (frame.readyNs > nowNs) {
+                return frame.readyNs;
+            }
+            frame.inputFreed = true;
+            mEncodedFrames++;
+            mFreeInputs.add(frame.inputIndex);
+            notifyAll();
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private void setSample(MediaCodec.BufferInfo info, long ptsUs) {
+        boolean keyFrame = !mConfig.video || mSyncFrameRequested ||
+            (mConfig.keyFrameInterval > 0 && mOutputSamples % mConfig.keyFrameInterval == 0) ||
+            mOutputSamples == 0;
+        int size;
+        if (keyFrame && mConfig.video) {
+            size = mConfig.keyFrameBytes;
+            mSyncFrameRequested = false;
+        } else {
+            size = mConfig.sampleBytes / 2 + mRandom.nextInt(mConfig.sampleBytes + 1);
+        }
+        info.set(0, Math.max(1, size), ptsUs, keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+    }
+
+    // SPS & PPS for video, an AAC LC AudioSpecificConfig for audio
+    private byte[] codecConfig() {
+        if (mConfig.video) {
+            return AVC_CONFIG;
+        }
+        int frequencyIndex = mConfig.sampleRate == 48000 ? 3 : 4;
+        return new byte[] {
+            (byte) ((2 << 3) | (frequencyIndex >> 1)),
+            (byte) (((frequencyIndex & 1) << 7) | (mConfig.channels << 3)),
+        };
+    }
+
+    private void checkRunning() {
+        if (mStopped) {
+            throw new IllegalStateException("encoder was stopped");
+        }
+    }
+
+    // wait on 'this' until notified or the deadline. false once the deadline has passed
+    private boolean await(long deadlineNs) {
+        long remainingNs = deadlineNs - System.nanoTime();
+        if (remainingNs <= 0) {
+            return false;
+        }
+        try {
+            TimeUnit.NANOSECONDS.timedWait(this, remainingNs);
+        } catch (InterruptedException e) {
+            // like MediaCodec, not interruptible. the engine checks the flag itself
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    private static Plane[] i420Planes(ByteBuffer buffer, int width, int height) {
+        int ySize = width * height;
+        int chromaWidth = width / 2;
+        int chromaSize = chromaWidth * (height / 2);
+        return new Plane[] {
+            new Plane(slice(buffer, 0, ySize), width, 1),
+            new Plane(slice(buffer, ySize, chromaSize), chromaWidth, 1),
+            new Plane(slice(buffer, ySize + chromaSize, chromaSize), chromaWidth, 1),
+        };
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(offset);
+        dup.limit(offset + length);
+        return dup.slice();
+    }
+}
@@ -0,0 +1,116 @@
+package com.lib.flutter_quick_video_encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A muxer that writes nothing, with a scripted write latency & failure.
+ * Checks what a real muxer would reject: samples before start(), empty samples,
+ * & timestamps going backwards within a track.
+ */
+class SimulatedMuxer implements Muxer {
+
+    // told about every sample written, on the muxing thread
+    interface Listener {
+        void onSample(int track, MediaFormat format, MediaCodec.BufferInfo info);
+    }
+
+    private final long mWriteLatencyUs;
+    private final int mFailAfterSamples;
+    private final Listener mListener;
+
+    private final List<MediaFormat> mFormats = new ArrayList<>();
+    private long[] mLastPtsUs;
+    private boolean mStarted;
+    private boolean mStopped;
+    private int mSamples;
+    private long mBytes;
+    private int mOutOfOrderSamples;
+
+    /**
+     * @param writeLatencyUs time each writeSampleData takes
+     * @param failAfterSamples writeSampleData throws after this many samples, or -1 to never fail
+     */
+    SimulatedMuxer(long writeLatencyUs, int failAfterSamples, Listener listener) {
+        mWriteLatencyUs = writeLatencyUs;
+        mFailAfterSamples = failAfterSamples;
+        mListener = listener;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        if (mStarted) {
+            throw new IllegalStateException("addTrack after start");
+        }
+        mFormats.add(format);
+        return mFormats.size() - 1;
+    }
+
+    @Override
+    public void start() {
+        mLastPtsUs = new long[mFormats.size()];
+        Arrays.fill(mLastPtsUs, Long.MIN_VALUE);
+        mStarted = true;
+    }
+
+    @Override
+    public void writeSampleData(int track, ByteBuffer buffer, MediaCodec.BufferInfo info) throws IOException {
+        if (!mStarted || mStopped) {
+            throw new IllegalStateException("writeSampleData while not started");
+        }
+        if (info.size <= 0 || buffer.remaining() != info.size) {
+            throw new IllegalArgumentException("bad sample size " + info.size + " on track " + track);
+        }
+        if (mFailAfterSamples >= 0 && mSamples >= mFailAfterSamples) {
+            throw new IOException("simulated muxer failure after " + mSamples + " samples");
+        }
+        if (info.presentationTimeUs < mLastPtsUs[track]) {
+            mOutOfOrderSamples++;
+        }
+        mLastPtsUs[track] = info.presentationTimeUs;
+        if (mWriteLatencyUs > 0) {
+            LockSupport.parkNanos(mWriteLatencyUs * 1000);
+        }
+        mSamples++;
+        mBytes += info.size;
+        if (mListener != null) {
+            mListener.onSample(track, mFormats.get(track), info);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (!mStarted) {
+            throw new IllegalStateException("stop before start");
+        }
+        mStopped = true;
+    }
+
+    @Override
+    public void release() {
+    }
+
+    boolean stopped() {
+        return mStopped;
+    }
+
+    int samples() {
+        return mSamples;
+    }
+
+    long bytes() {
+        return mBytes;
+    }
+
+    // samples whose pts was before the previous one on their track
+    int outOfOrderSamples() {
+        return mOutOfOrderSamples;
+    }
+}
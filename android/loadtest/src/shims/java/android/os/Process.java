@@ -0,0 +1,12 @@
+package android.os;
+
+// thread priorities are left to the jvm
+public final class Process {
+    public static final int THREAD_PRIORITY_DEFAULT = 0;
+
+    private Process() {
+    }
+
+    public static void setThreadPriority(int priority) {
+    }
+}
@@ -0,0 +1,273 @@
+package com.lib.flutter_quick_video_encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Encodes using MediaCodec's asynchronous callback mode. Requires API 23.
+ *
+ *   channel thread  --> [input queue per track] --+
+ *                                                 +--> callback thread --> encoders --> Muxer
+ *   encoders: input buffer available -------------+
+ *
+ * Every codec callback runs on one dedicated handler thread. An input buffer
+ * is filled as soon as the codec offers it & a frame is waiting, and output is
+ * written to the muxer the moment it is ready, so nothing is polled & the
+ * encoder never builds up queued output.
+ */
+class AsyncEngine extends EncodeEngine {
+
+    // how long blocking calls wait before re-checking for errors
+    private static final long POLL_TIMEOUT_MS = 10;
+
+    private final HandlerThread mCallbackThread;
+    private final Handler mHandler;
+
+    // only touched by the callback thread
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<Integer>[] mFreeInputBuffers = new ArrayDeque[] {
+        new ArrayDeque<Integer>(), new ArrayDeque<Integer>()
+    };
+    private InputData mCurrentAudio;
+    private int mCurrentAudioOffset;
+    // STOP was taken from the audio queue / end of stream was queued
+    private boolean mAudioStopped;
+    private boolean mAudioEnded;
+    private int mEndedCount;
+
+    // completes when every encoder has output end of stream
+    private final CompletableFuture<Void> mEndOfStream = new CompletableFuture<>();
+
+    private final Runnable mFeedVideo = () -> feed(VIDEO);
+    private final Runnable mFeedAudio = () -> feed(AUDIO);
+
+    // see EncodeEngine for the parameters
+    AsyncEngine(int fps, Muxer muxer, YuvConverter converter, SampleStagingBuffer stagingBuffer,
+                int inputQueueDepth, long inputQueueBytes, InputQueue.OverflowPolicy overflowPolicy) {
+        super(fps, muxer, converter, stagingBuffer, inputQueueDepth, inputQueueBytes, overflowPolicy);
+
+        mCallbackThread = new HandlerThread("fqve-codec-callbacks");
+        mCallbackThread.start();
+        mHandler = new Handler(mCallbackThread.getLooper());
+    }
+
+    // callback mode needs the platform codec
+    @Override
+    void addEncoder(int track, Encoder encoder) {
+        super.addEncoder(track, encoder);
+        // must be set before configure()
+        ((MediaCodecEncoder) encoder).codec().setCallback(new Callback(track), mHandler);
+    }
+
+    @Override
+    void start() {
+        // the codecs drive everything from their callbacks,
+        // & frames are converted on the callback thread
+        mHandler.post(this::applyConversionPriority);
+    }
+
+    @Override
+    void finish() throws Exception {
+        checkError();
+        queueStop();
+
+        // wait for the encoders to drain
+        while (true) {
+            try {
+                mEndOfStream.get(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                break;
+            } catch (TimeoutException e) {
+                checkError();
+            }
+        }
+
+        mCallbackThread.quitSafely();
+        mCallbackThread.join();
+        release();
+
+        // Complete successfully
+        mResult.complete(null);
+    }
+
+    @Override
+    void close() throws InterruptedException {
+        fail(new IllegalStateException("encoder was closed"));
+        mCallbackThread.quitSafely();
+        mCallbackThread.join();
+        release();
+    }
+
+    @Override
+    protected void onInputQueued(int track) {
+        // wake up the callback thread, in case input buffers are waiting
+        mHandler.post(track == VIDEO ? mFeedVideo : mFeedAudio);
+    }
+
+    private void fail(Exception e) {
+        if (mResult.completeExceptionally(e)) {
+            // release queued frames & fail waiting ones
+            closeInputQueues(e);
+        }
+    }
+
+    ////////////////////////////
+    // callback thread
+
+    // fill as many free input buffers as we have frames for
+    private void feed(int track) {
+        if (mResult.isDone()) {
+            return;
+        }
+        try {
+            if (track == VIDEO) {
+                feedVideo();
+            } else {
+                feedAudio();
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error feeding encoder", e);
+            fail(e);
+        }
+    }
+
+    private void feedVideo() {
+        Encoder encoder = mEncoders[VIDEO];
+        ArrayDeque<Integer> freeBuffers = mFreeInputBuffers[VIDEO];
+        while (!freeBuffers.isEmpty()) {
+            InputData inputData = mInputQueues[VIDEO].poll();
+            if (inputData == null) {
+                return;
+            }
+            int inIdx = freeBuffers.poll();
+            if (inputData.type == InputData.DataType.STOP) {
+                signalEndOfStream(encoder, inIdx);
+                continue;
+            }
+            try {
+                // Presentation time, set by put()
+                long presentationTime = inputData.ptsUs;
+
+                // Convert RGBA straight into the input image & queue it
+                fillImage(encoder, inIdx, inputData.data, presentationTime);
+            } finally {
+                mInputPool.release(inputData);
+            }
+        }
+    }
+
+    // input buffers are only queued once full of whole frames, or at the end
+    private void feedAudio() {
+        Encoder encoder = mEncoders[AUDIO];
+        ArrayDeque<Integer> freeBuffers = mFreeInputBuffers[AUDIO];
+        while (!freeBuffers.isEmpty() && !mAudioEnded) {
+            int target = mAudioPacker.fillTarget(encoder.getInputBuffer(freeBuffers.peek()).capacity());
+
+            // top up the packer. a chunk can span several input buffers
+            while (!mAudioStopped && mAudioPacker.available() < target) {
+                if (mCurrentAudio == null) {
+                    mCurrentAudio = mInputQueues[AUDIO].poll();
+                    if (mCurrentAudio == null) {
+                        return;
+                    }
+                    if (mCurrentAudio.type == InputData.DataType.STOP) {
+                        mAudioStopped = true;
+                        mCurrentAudio = null;
+                        break;
+                    }
+                    mCurrentAudioOffset = 0;
+                    mAudioPacker.startChunk(mCurrentAudio.ptsUs);
+                }
+                int length = mCurrentAudio.length;
+                mCurrentAudioOffset += mAudioPacker.write(mCurrentAudio.data, mCurrentAudioOffset,
+                    length - mCurrentAudioOffset);
+                if (mCurrentAudioOffset >= length) {
+                    mInputPool.release(mCurrentAudio);
+                    mCurrentAudio = null;
+                }
+            }
+
+            // after STOP, the last partial frame, then end of stream
+            int inIdx = freeBuffers.poll();
+            if (mAudioPacker.available() > 0) {
+                queuePackedAudio(encoder, inIdx, mAudioStopped);
+            } else {
+                signalEndOfStream(encoder, inIdx);
+                mAudioEnded = true;
+            }
+        }
+    }
+
+    private void signalEndOfStream(Encoder encoder, int inIdx) {
+        // No data, but signal end of stream through the buffer flag.
+        encoder.queueInputBuffer(inIdx, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+    }
+
+    private class Callback extends MediaCodec.Callback {
+        private final int track;
+
+        Callback(int track) {
+            this.track = track;
+        }
+
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            mFreeInputBuffers[track].add(index);
+            feed(track);
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            if (mResult.isDone()) {
+                return;
+            }
+            try {
+                try {
+                    ByteBuffer encodedData = codec.getOutputBuffer(index);
+                    if (encodedData == null) {
+                        throw new RuntimeException("encoderOutputBuffer " + index + " was null");
+                    }
+                    writeSample(track, encodedData, info);
+                } finally {
+                    codec.releaseOutputBuffer(index, false);
+                }
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    mEndedCount++;
+                    if (mEndedCount == expectedTrackCount()) {
+                        mEndOfStream.complete(null);
+                    }
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Error writing encoder output", e);
+                fail(e);
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            if (mResult.isDone()) {
+                return;
+            }
+            try {
+                AsyncEngine.this.onOutputFormatChanged(track, format);
+            } catch (Exception e) {
+                Log.e(TAG, "Error adding muxer track", e);
+                fail(e);
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Log.e(TAG, "Encoder error", e);
+            fail(e);
+        }
+    }
+}
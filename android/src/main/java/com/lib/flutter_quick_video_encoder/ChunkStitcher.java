@@ -0,0 +1,235 @@
+package com.lib.flutter_quick_video_encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Joins chunk files, encoded in parallel by separate sessions, into one file
+ * without re-encoding.
+ *
+ * Compressed samples are copied in order, with each chunk's timestamps shifted
+ * to start one frame after the previous chunk's last video frame. Every chunk
+ * starts with a key frame, since each was its own encoder's first output.
+ *
+ * The chunks' tracks must match: same mime types, & same codec config, as
+ * encoders set up alike produce. Audio samples that would overlap the previous
+ * chunk's (AAC encoders pad the end of each chunk) are dropped.
+ */
+class ChunkStitcher {
+    private static final String TAG = "[FQVE-Android]";
+
+    private static final int DEFAULT_SAMPLE_BYTES = 2 * 1024 * 1024;
+
+    private final List<String> mInputs;
+
+    // by output track: format, & the last pts written
+    private final List<MediaFormat> mFormats = new ArrayList<>();
+    private final List<String> mMimeTypes = new ArrayList<>();
+    private long[] mLastPtsUs;
+    private int mVideoTrack = -1;
+
+    private int mSamples;
+    private int mDroppedSamples;
+
+    ChunkStitcher(List<String> inputs) {
+        mInputs = inputs;
+    }
+
+    /**
+     * The MediaMuxer.OutputFormat the chunks were written in, by their video
+     * codec: webm for vp9, like the sessions that encoded them, else mp4.
+     */
+    static int outputFormat(List<String> inputs) throws IOException {
+        if (inputs.isEmpty()) {
+            throw new IllegalArgumentException("no chunks to stitch");
+        }
+        MediaExtractor extractor = open(inputs.get(0));
+        try {
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                if (MediaFormat.MIMETYPE_VIDEO_VP9.equals(extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME))) {
+                    return MediaMuxer.OutputFormat.MUXER_OUTPUT_WEBM;
+                }
+            }
+            return MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4;
+        } finally {
+            extractor.release();
+        }
+    }
+
+    /**
+     * Copy every chunk into the muxer, then stop it.
+     * Returns {chunks, samples, droppedSamples, durationUs}.
+     */
+    Map<String, Object> stitch(Muxer muxer) throws IOException {
+        if (mInputs.isEmpty()) {
+            throw new IllegalArgumentException("no chunks to stitch");
+        }
+
+        // the first chunk decides the tracks, the others must match it
+        MediaExtractor first = open(mInputs.get(0));
+        int maxSampleBytes = DEFAULT_SAMPLE_BYTES;
+        try {
+            for (int i = 0; i < first.getTrackCount(); i++) {
+                MediaFormat format = first.getTrackFormat(i);
+                String mime = format.getString(MediaFormat.KEY_MIME);
+                if (mime.startsWith("video/")) {
+                    mVideoTrack = mFormats.size();
+                }
+                if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+                    maxSampleBytes = Math.max(maxSampleBytes, format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
+                }
+                mFormats.add(format);
+                mMimeTypes.add(mime);
+                muxer.addTrack(format);
+            }
+        } finally {
+            first.release();
+        }
+        if (mVideoTrack < 0) {
+            throw new IllegalArgumentException("chunks have no video track");
+        }
+        mLastPtsUs = new long[mFormats.size()];
+        Arrays.fill(mLastPtsUs, Long.MIN_VALUE);
+
+        muxer.start();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(maxSampleBytes);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        long nextStartUs = 0;
+        for (int chunk = 0; chunk < mInputs.size(); chunk++) {
+            nextStartUs = copyChunk(chunk, muxer, buffer, info, nextStartUs);
+        }
+        muxer.stop();
+
+        Map<String, Object> report = new HashMap<>();
+        report.put("chunks", mInputs.size());
+        report.put("samples", mSamples);
+        report.put("droppedSamples", mDroppedSamples);
+        report.put("durationUs", nextStartUs);
+        return report;
+    }
+
+    // copy one chunk, starting its video at 'startUs'. returns where the next chunk starts
+    private long copyChunk(int chunk, Muxer muxer, ByteBuffer buffer, MediaCodec.BufferInfo info,
+                           long startUs) throws IOException {
+        String path = mInputs.get(chunk);
+        MediaExtractor extractor = open(path);
+        try {
+            // chunk track -> output track, by mime type
+            int[] outputTrack = new int[extractor.getTrackCount()];
+            for (int i = 0; i < outputTrack.length; i++) {
+                MediaFormat format = extractor.getTrackFormat(i);
+                outputTrack[i] = matchTrack(format, path);
+                extractor.selectTrack(i);
+            }
+
+            long shiftUs = startUs - firstVideoPts(path);
+            long lastVideoPtsUs = Long.MIN_VALUE;
+            long lastVideoDeltaUs = 0;
+            while (true) {
+                int size = extractor.readSampleData(buffer, 0);
+                if (size < 0) {
+                    break;
+                }
+                int track = outputTrack[extractor.getSampleTrackIndex()];
+                long ptsUs = extractor.getSampleTime() + shiftUs;
+                int flags = (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0 ?
+                    MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+                extractor.advance();
+
+                if (track == mVideoTrack) {
+                    if (ptsUs > lastVideoPtsUs) {
+                        if (lastVideoPtsUs != Long.MIN_VALUE) {
+                            lastVideoDeltaUs = ptsUs - lastVideoPtsUs;
+                        }
+                        lastVideoPtsUs = ptsUs;
+                    }
+                } else if (ptsUs <= mLastPtsUs[track]) {
+                    // overlaps the previous chunk's audio
+                    mDroppedSamples++;
+                    continue;
+                }
+                mLastPtsUs[track] = Math.max(mLastPtsUs[track], ptsUs);
+
+                buffer.position(0);
+                buffer.limit(size);
+                info.set(0, size, ptsUs, flags);
+                muxer.writeSampleData(track, buffer, info);
+                buffer.clear();
+                mSamples++;
+            }
+
+            if (lastVideoPtsUs == Long.MIN_VALUE) {
+                throw new IllegalStateException("chunk has no video samples: " + path);
+            }
+            if (lastVideoDeltaUs == 0) {
+                lastVideoDeltaUs = frameDurationUs(mFormats.get(mVideoTrack));
+            }
+            Log.i(TAG, "stitched chunk " + chunk + ": " + path);
+            return lastVideoPtsUs + lastVideoDeltaUs;
+        } finally {
+            extractor.release();
+        }
+    }
+
+    // the output track for a chunk's track. throws if the chunk does not match the first
+    private int matchTrack(MediaFormat format, String path) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        int track = mMimeTypes.indexOf(mime);
+        if (track < 0) {
+            throw new IllegalArgumentException("chunk has an extra " + mime + " track: " + path);
+        }
+        MediaFormat expected = mFormats.get(track);
+        for (String csd : new String[] {"csd-0", "csd-1"}) {
+            ByteBuffer a = expected.containsKey(csd) ? expected.getByteBuffer(csd) : null;
+            ByteBuffer b = format.containsKey(csd) ? format.getByteBuffer(csd) : null;
+            if (a == null ? b != null : !a.equals(b)) {
+                throw new IllegalArgumentException("chunk was encoded with a different " + mime +
+                    " codec config: " + path);
+            }
+        }
+        return track;
+    }
+
+    // pts of a chunk's first video sample
+    private long firstVideoPts(String path) throws IOException {
+        MediaExtractor extractor = open(path);
+        try {
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                if (extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME).startsWith("video/")) {
+                    extractor.selectTrack(i);
+                    return Math.max(0, extractor.getSampleTime());
+                }
+            }
+            return 0;
+        } finally {
+            extractor.release();
+        }
+    }
+
+    private static long frameDurationUs(MediaFormat format) {
+        int fps = format.containsKey(MediaFormat.KEY_FRAME_RATE) ? format.getInteger(MediaFormat.KEY_FRAME_RATE) : 30;
+        return 1000000L / Math.max(1, fps);
+    }
+
+    private static MediaExtractor open(String path) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(path);
+        } catch (IOException e) {
+            extractor.release();
+            throw e;
+        }
+        return extractor;
+    }
+}
@@ -0,0 +1,228 @@
+package com.lib.flutter_quick_video_encoder;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The device's encoders & what they support, by mime type.
+ *
+ * Scanning MediaCodecList is slow, so the index is built once per process.
+ * For each mime type, hardware encoders come first, then in platform order,
+ * so the first match is also the fastest.
+ */
+class CodecIndex {
+    private static final String TAG = "[FQVE-Android]";
+
+    private static CodecIndex sInstance;
+
+    // one encoder, for one mime type
+    static class Codec {
+        final String name;
+        final String mimeType;
+        final boolean hardwareAccelerated;
+        final int maxInstances;
+        final int[] colorFormats;
+        final MediaCodecInfo.CodecProfileLevel[] profileLevels;
+        final MediaCodecInfo.EncoderCapabilities encoderCapabilities;
+
+        // video only, otherwise null
+        final Range<Integer> widths;
+        final Range<Integer> heights;
+        final Range<Integer> frameRates;
+        final MediaCodecInfo.VideoCapabilities videoCapabilities;
+
+        // audio only, otherwise null
+        final Range<Integer>[] sampleRates;
+
+        Codec(String mimeType, MediaCodecInfo info, MediaCodecInfo.CodecCapabilities caps) {
+            name = info.getName();
+            this.mimeType = mimeType;
+            hardwareAccelerated = isHardwareAccelerated(info);
+            maxInstances = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? caps.getMaxSupportedInstances() : 1;
+            colorFormats = caps.colorFormats != null ? caps.colorFormats : new int[0];
+            profileLevels = caps.profileLevels != null ? caps.profileLevels : new MediaCodecInfo.CodecProfileLevel[0];
+            encoderCapabilities = caps.getEncoderCapabilities();
+
+            videoCapabilities = caps.getVideoCapabilities();
+            widths = videoCapabilities != null ? videoCapabilities.getSupportedWidths() : null;
+            heights = videoCapabilities != null ? videoCapabilities.getSupportedHeights() : null;
+            frameRates = videoCapabilities != null ? videoCapabilities.getSupportedFrameRates() : null;
+
+            MediaCodecInfo.AudioCapabilities audio = caps.getAudioCapabilities();
+            sampleRates = audio != null ? audio.getSupportedSampleRateRanges() : null;
+        }
+
+        boolean supportsColorFormat(int colorFormat) {
+            for (int format : colorFormats) {
+                if (format == colorFormat) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean supportsProfile(int profile) {
+            for (MediaCodecInfo.CodecProfileLevel level : profileLevels) {
+                if (level.profile == profile) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // the highest level listed for the profile, or 0 if the profile is not listed
+        int maxLevel(int profile) {
+            int max = 0;
+            for (MediaCodecInfo.CodecProfileLevel level : profileLevels) {
+                if (level.profile == profile) {
+                    max = Math.max(max, level.level);
+                }
+            }
+            return max;
+        }
+
+        boolean supportsSizeAndRate(int width, int height, int fps) {
+            if (videoCapabilities == null) {
+                return false;
+            }
+            return videoCapabilities.areSizeAndRateSupported(width, height, fps);
+        }
+
+        boolean supportsSampleRate(int sampleRate) {
+            if (sampleRates == null) {
+                return false;
+            }
+            for (Range<Integer> range : sampleRates) {
+                if (range.contains(sampleRate)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // encoders by lowercase mime type
+    private final Map<String, List<Codec>> mEncoders = new HashMap<>();
+
+    static synchronized CodecIndex get() {
+        if (sInstance == null) {
+            sInstance = new CodecIndex();
+        }
+        return sInstance;
+    }
+
+    private CodecIndex() {
+        long start = System.nanoTime();
+        MediaCodecList codecList = new MediaCodecList(MediaCodecList.ALL_CODECS);
+        for (MediaCodecInfo info : codecList.getCodecInfos()) {
+            if (!info.isEncoder()) {
+                continue;
+            }
+            for (String type : info.getSupportedTypes()) {
+                String key = type.toLowerCase(Locale.US);
+                List<Codec> codecs = mEncoders.get(key);
+                if (codecs == null) {
+                    codecs = new ArrayList<>();
+                    mEncoders.put(key, codecs);
+                }
+                try {
+                    codecs.add(new Codec(key, info, info.getCapabilitiesForType(type)));
+                } catch (Exception e) {
+                    Log.e(TAG, "Error reading capabilities of " + info.getName(), e);
+                }
+            }
+        }
+
+        // hardware first. the sort is stable, so platform order is kept otherwise
+        for (List<Codec> codecs : mEncoders.values()) {
+            Collections.sort(codecs, (a, b) -> Boolean.compare(b.hardwareAccelerated, a.hardwareAccelerated));
+        }
+
+        Log.i(TAG, "codec index built in " + (System.nanoTime() - start) / 1000000 + "ms");
+    }
+
+    // every encoder for the mime type, fastest first
+    List<Codec> encoders(String mimeType) {
+        List<Codec> codecs = mEncoders.get(mimeType.toLowerCase(Locale.US));
+        return codecs != null ? codecs : Collections.<Codec>emptyList();
+    }
+
+    /**
+     * The fastest encoder that accepts the color format, size & frame rate.
+     * If none accepts the size & rate, the fastest that accepts the color format,
+     * and configure() has the final say. null if no encoder has the color format.
+     */
+    Codec findVideoEncoder(String mimeType, int colorFormat, int width, int height, int fps) {
+        Codec fallback = null;
+        for (Codec codec : encoders(mimeType)) {
+            if (!codec.supportsColorFormat(colorFormat)) {
+                continue;
+            }
+            if (codec.supportsSizeAndRate(width, height, fps)) {
+                return codec;
+            }
+            if (fallback == null) {
+                fallback = codec;
+            }
+        }
+        return fallback;
+    }
+
+    /**
+     * A hardware encoder that accepts the color format, size & frame rate, or null.
+     * Unlike findVideoEncoder, nothing less is accepted.
+     */
+    Codec findHardwareVideoEncoder(String mimeType, int colorFormat, int width, int height, int fps) {
+        for (Codec codec : encoders(mimeType)) {
+            if (codec.hardwareAccelerated &&
+                codec.supportsColorFormat(colorFormat) &&
+                codec.supportsSizeAndRate(width, height, fps)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The fastest encoder that accepts the sample rate & lists the profile.
+     * Some encoders do not list every profile they accept, so if none lists it,
+     * the fastest that accepts the sample rate. null if none does.
+     */
+    Codec findAudioEncoder(String mimeType, int sampleRate, int profile) {
+        Codec fallback = null;
+        for (Codec codec : encoders(mimeType)) {
+            if (!codec.supportsSampleRate(sampleRate)) {
+                continue;
+            }
+            if (codec.supportsProfile(profile)) {
+                return codec;
+            }
+            if (fallback == null) {
+                fallback = codec;
+            }
+        }
+        return fallback;
+    }
+
+    // API 29 reports this directly. Before that, go by the well known software codec names
+    private static boolean isHardwareAccelerated(MediaCodecInfo info) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return info.isHardwareAccelerated();
+        }
+        String name = info.getName().toLowerCase(Locale.US);
+        return !(name.startsWith("omx.google.") ||
+                 name.startsWith("c2.android.") ||
+                 name.startsWith("omx.ffmpeg.") ||
+                 name.contains(".sw."));
+    }
+}
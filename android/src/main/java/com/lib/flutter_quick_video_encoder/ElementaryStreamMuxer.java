@@ -0,0 +1,227 @@
+package com.lib.flutter_quick_video_encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Writes encoder output as raw elementary streams, for pipelines that remux
+ * elsewhere: video as Annex-B H.264 / HEVC, audio as ADTS AAC, each to its own file.
+ *
+ * The parameter sets (SPS & PPS, & VPS for HEVC) from the codec config are
+ * written at the start & again before every key frame, so the stream can be
+ * cut at any key frame. Neither format stores timestamps.
+ *
+ * Samples are copied from the codec's direct buffers into a direct batch
+ * buffer per stream, which is written to its FileChannel when full.
+ */
+class ElementaryStreamMuxer implements Muxer {
+    private static final String TAG = "[FQVE-Android]";
+
+    private static final int BATCH_BYTES = 256 * 1024;
+    private static final int ADTS_HEADER_SIZE = 7;
+
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    // the AAC sampling frequency index of each rate
+    private static final int[] AAC_SAMPLE_RATES = {
+        96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+    };
+
+    private final FileChannel mVideoChannel;
+    private final FileChannel mAudioChannel;
+    private final Stream[] mStreams = new Stream[2];
+    private int mTrackCount;
+
+    // one output file
+    private static class Stream {
+        final FileChannel channel;
+        final boolean isVideo;
+        final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_BYTES);
+
+        // video: parameter sets with start codes, & whether they were just written
+        byte[] parameterSets;
+        boolean parameterSetsWritten;
+        // audio: ADTS header fields, from the AudioSpecificConfig
+        int adtsProfile;
+        int adtsFrequencyIndex;
+        int adtsChannels;
+
+        Stream(FileChannel channel, boolean isVideo) {
+            this.channel = channel;
+            this.isVideo = isVideo;
+        }
+
+        void flush() throws IOException {
+            batch.flip();
+            while (batch.hasRemaining()) {
+                channel.write(batch);
+            }
+            batch.clear();
+        }
+
+        // make room for 'n' bytes. false if they can never fit
+        boolean reserve(int n) throws IOException {
+            if (batch.remaining() < n) {
+                flush();
+            }
+            return batch.remaining() >= n;
+        }
+    }
+
+    /**
+     * @param videoChannel where video is written, or null if there is no video
+     * @param audioChannel where audio is written, or null if there is no audio.
+     *                     both are closed by release()
+     */
+    ElementaryStreamMuxer(FileChannel videoChannel, FileChannel audioChannel) {
+        mVideoChannel = videoChannel;
+        mAudioChannel = audioChannel;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        Stream stream;
+        if (MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime) || MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mime)) {
+            stream = new Stream(mVideoChannel, true);
+            stream.parameterSets = parameterSets(format);
+        } else if (MediaFormat.MIMETYPE_AUDIO_AAC.equals(mime)) {
+            stream = new Stream(mAudioChannel, false);
+            setAdtsConfig(stream, format);
+        } else {
+            throw new IllegalArgumentException("elementary streams do not support " + mime);
+        }
+        if (stream.channel == null) {
+            throw new IllegalStateException("no output file for " + mime);
+        }
+        mStreams[mTrackCount] = stream;
+        return mTrackCount++;
+    }
+
+    @Override
+    public void start() throws IOException {
+        for (int i = 0; i < mTrackCount; i++) {
+            Stream stream = mStreams[i];
+            if (stream.isVideo) {
+                stream.batch.put(stream.parameterSets);
+                stream.parameterSetsWritten = true;
+            }
+        }
+    }
+
+    @Override
+    public void writeSampleData(int track, ByteBuffer buffer, MediaCodec.BufferInfo info) throws IOException {
+        Stream stream = mStreams[track];
+        buffer.position(info.offset);
+        buffer.limit(info.offset + info.size);
+
+        if (stream.isVideo) {
+            // repeat the parameter sets so each key frame starts a decodable stream
+            boolean keyFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+            if (keyFrame && !stream.parameterSetsWritten) {
+                stream.reserve(stream.parameterSets.length);
+                stream.batch.put(stream.parameterSets);
+            }
+            stream.parameterSetsWritten = false;
+        } else {
+            stream.reserve(ADTS_HEADER_SIZE);
+            putAdtsHeader(stream, info.size);
+        }
+
+        if (stream.reserve(info.size)) {
+            stream.batch.put(buffer);
+        } else {
+            // bigger than a batch. write it straight from the codec buffer
+            stream.flush();
+            while (buffer.hasRemaining()) {
+                stream.channel.write(buffer);
+            }
+        }
+    }
+
+    @Override
+    public void stop() throws IOException {
+        for (int i = 0; i < mTrackCount; i++) {
+            mStreams[i].flush();
+        }
+    }
+
+    @Override
+    public void release() {
+        for (FileChannel channel : new FileChannel[] {mVideoChannel, mAudioChannel}) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error closing elementary stream", e);
+                }
+            }
+        }
+    }
+
+    // the codec config's nal units, each after a start code
+    private static byte[] parameterSets(MediaFormat format) {
+        List<byte[]> nalUnits = NalUnits.split(format.getByteBuffer("csd-0"), format.getByteBuffer("csd-1"));
+        if (nalUnits.isEmpty()) {
+            throw new IllegalStateException("video output format has no codec config");
+        }
+        int size = 0;
+        for (byte[] nal : nalUnits) {
+            size += START_CODE.length + nal.length;
+        }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        for (byte[] nal : nalUnits) {
+            out.put(START_CODE);
+            out.put(nal);
+        }
+        return out.array();
+    }
+
+    // ADTS fields from the AudioSpecificConfig in csd-0
+    private static void setAdtsConfig(Stream stream, MediaFormat format) {
+        ByteBuffer csd = format.getByteBuffer("csd-0");
+        if (csd != null && csd.remaining() >= 2) {
+            int b0 = csd.get(csd.position()) & 0xff;
+            int b1 = csd.get(csd.position() + 1) & 0xff;
+            stream.adtsProfile = (b0 >> 3) - 1;
+            stream.adtsFrequencyIndex = ((b0 & 0x07) << 1) | (b1 >> 7);
+            stream.adtsChannels = (b1 >> 3) & 0x0f;
+        } else {
+            // AAC LC, from the format's keys
+            stream.adtsProfile = 1;
+            stream.adtsFrequencyIndex = frequencyIndex(format.getInteger(MediaFormat.KEY_SAMPLE_RATE));
+            stream.adtsChannels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        }
+        if (stream.adtsFrequencyIndex >= AAC_SAMPLE_RATES.length) {
+            throw new IllegalArgumentException("ADTS does not support this sample rate");
+        }
+    }
+
+    private static int frequencyIndex(int sampleRate) {
+        for (int i = 0; i < AAC_SAMPLE_RATES.length; i++) {
+            if (AAC_SAMPLE_RATES[i] == sampleRate) {
+                return i;
+            }
+        }
+        return AAC_SAMPLE_RATES.length;
+    }
+
+    // MPEG-4, no CRC, one raw data block
+    private static void putAdtsHeader(Stream stream, int size) {
+        int frameLength = size + ADTS_HEADER_SIZE;
+        ByteBuffer b = stream.batch;
+        b.put((byte) 0xff);
+        b.put((byte) 0xf1);
+        b.put((byte) ((stream.adtsProfile << 6) | (stream.adtsFrequencyIndex << 2) | (stream.adtsChannels >> 2)));
+        b.put((byte) (((stream.adtsChannels & 0x03) << 6) | (frameLength >> 11)));
+        b.put((byte) (frameLength >> 3));
+        b.put((byte) (((frameLength & 0x07) << 5) | 0x1f));
+        b.put((byte) 0xfc);
+    }
+}
@@ -0,0 +1,507 @@
+package com.lib.flutter_quick_video_encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Drives the encoders & muxer for one output file.
+ *
+ * Subclasses decide how frames reach the encoders & how output reaches the muxer.
+ * Muxer bookkeeping (track setup, samples that arrive before the muxer starts)
+ * & teardown live here, and must only be called from one thread at a time.
+ */
+abstract class EncodeEngine {
+    protected static final String TAG = "[FQVE-Android]";
+
+    static final int VIDEO = 0;
+    static final int AUDIO = 1;
+
+    protected final int mFps;
+    protected final Encoder[] mEncoders = new Encoder[2];
+    protected final Muxer mMuxer;
+    protected final YuvConverter mYuvConverter;
+    protected final InputDataPool mInputPool;
+    protected final InputQueue[] mInputQueues = new InputQueue[2];
+
+    // signal encoding success or error
+    protected final CompletableFuture<Void> mResult = new CompletableFuture<>();
+
+    // null unless stats are enabled
+    protected EncodeStats mStats;
+
+    // nice value of the thread that converts & feeds video, see setConversionPriority
+    private int mConversionPriority = Process.THREAD_PRIORITY_DEFAULT;
+
+    // video frames & audio samples accepted so far, including dropped ones,
+    // but not ones rejected with an error. only touched by the thread that calls put()
+    private int mVideoFrameIdx;
+    private long mAudioSamplesPut;
+
+    // static frame skipping, null unless enabled. only touched by the thread that calls put()
+    private FrameFingerprint mFingerprint;
+    // the newest skipped frame, encoded at finish if nothing changed after it
+    private InputData mHeldRepeat;
+    private long mStaticFrames;
+
+    // 16 bit pcm format, see setAudioFormat
+    private int mAudioSampleRate;
+    private int mAudioBytesPerSample;
+
+    // packs audio chunks into input buffers. only touched by the audio feed thread
+    protected AudioPacker mAudioPacker;
+
+    // only touched by the thread that writes to the muxer
+    private final int[] mTrackIndex = {-1, -1};
+    private int mTrackCount;
+    private final MediaFormat[] mPendingFormats = new MediaFormat[2];
+    private boolean mMuxerStarted;
+    private final SampleStagingBuffer mStagingBuffer;
+    // the staging buffer dropped video up to its end. skip video until a key frame
+    private boolean mVideoNeedsKeyFrame;
+    private long mVideoSkipped;
+
+    private boolean mReleased;
+
+    /**
+     * @param inputQueueDepth max frames waiting per track
+     * @param inputQueueBytes max bytes waiting per track, or 0 for no limit
+     * @param overflowPolicy what put() does when a track's queue is full
+     */
+    EncodeEngine(int fps, Muxer muxer, YuvConverter converter, SampleStagingBuffer stagingBuffer,
+                 int inputQueueDepth, long inputQueueBytes, InputQueue.OverflowPolicy overflowPolicy) {
+        mFps = fps;
+        mMuxer = muxer;
+        mYuvConverter = converter;
+        mStagingBuffer = stagingBuffer;
+
+        // per track: queued & parked entries + one being filled + one being encoded,
+        // plus the held static frame
+        mInputPool = new InputDataPool(2 * (2 * inputQueueDepth + 2) + 1);
+        for (int track = 0; track < 2; track++) {
+            mInputQueues[track] = new InputQueue(inputQueueDepth, inputQueueBytes, overflowPolicy, mInputPool);
+        }
+    }
+
+    /**
+     * Register an encoder. Called after the codec is created,
+     * but before it is configured & started.
+     */
+    void addEncoder(int track, Encoder encoder) {
+        mEncoders[track] = encoder;
+    }
+
+    // the audio track's pcm format. called with addEncoder(AUDIO)
+    void setAudioFormat(int sampleRate, int channels) {
+        mAudioSampleRate = sampleRate;
+        mAudioBytesPerSample = channels * 2;
+        mAudioPacker = new AudioPacker(sampleRate, channels);
+    }
+
+    // begin encoding. encoders have been started
+    abstract void start();
+
+    /**
+     * Queue a frame for encoding. Never blocks: the listener is told once the
+     * frame is accepted, which depends on the overflow policy (see InputQueue).
+     * On error the entry is returned to the pool & the error is thrown.
+     */
+    void put(InputData inputData, InputQueue.Listener listener) throws Exception {
+        int track = trackOf(inputData);
+        try {
+            checkError();
+            checkTrackEnabled(inputData);
+            if (track == AUDIO && inputData.length % mAudioBytesPerSample != 0) {
+                throw new IllegalArgumentException("audio length must be whole samples: " + inputData.length);
+            }
+        } catch (Exception e) {
+            mInputPool.release(inputData);
+            throw e;
+        }
+
+        // frames without a pts are timed by the frames or samples before them,
+        // so a dropped frame leaves a gap instead of speeding up the rest.
+        // a rejected frame does not, so retrying it keeps its time
+        long samples = track == AUDIO ? inputData.length / mAudioBytesPerSample : 0;
+        if (inputData.ptsUs < 0) {
+            inputData.ptsUs = track == VIDEO ?
+                mVideoFrameIdx * 1000000L / mFps :
+                mAudioSamplesPut * 1000000L / mAudioSampleRate;
+        }
+
+        // an unchanged frame is not converted or encoded. the frame before it
+        // lasts until the next change, since samples are timed by pts
+        boolean fingerprinted = track == VIDEO && mFingerprint != null;
+        long hash = 0;
+        if (fingerprinted) {
+            hash = mFingerprint.hash(inputData.data, inputData.length);
+            if (mFingerprint.isRepeat(hash)) {
+                if (mHeldRepeat != null) {
+                    mInputPool.release(mHeldRepeat);
+                }
+                mHeldRepeat = inputData;
+                mStaticFrames++;
+                advanceClock(track, samples);
+                listener.onAccepted(null);
+                return;
+            }
+        }
+
+        InputQueue queue = mInputQueues[track];
+        if (mStats != null) {
+            mStats.recordQueueLength(track, queue.size());
+            long start = System.nanoTime();
+            InputQueue.Listener timed = listener;
+            listener = error -> {
+                stageEnd(EncodeStats.Stage.PUT_BLOCKED, start);
+                timed.onAccepted(error);
+            };
+        }
+        boolean queued = queue.offer(inputData, listener);
+        advanceClock(track, samples);
+        onInputQueued(track);
+
+        // only a frame that will be encoded is compared against. if it was dropped,
+        // the held repeat is still the newest frame shown
+        if (fingerprinted && queued) {
+            mFingerprint.remember(hash);
+            if (mHeldRepeat != null) {
+                mInputPool.release(mHeldRepeat);
+                mHeldRepeat = null;
+            }
+        }
+    }
+
+    /**
+     * Admit the frames of one message before putting any of them, so a batch
+     * is accepted or rejected whole. Indexed by track: the frames & bytes that
+     * the next puts will bring. Throws if a track's queue has no room for them.
+     */
+    void admit(int[] frames, long[] bytes) throws Exception {
+        checkError();
+        for (int track = 0; track < 2; track++) {
+            if (frames[track] > 0 && mEncoders[track] == null) {
+                throw new IllegalStateException((track == VIDEO ? "video" : "audio") + " was not enabled in setup");
+            }
+            mInputQueues[track].checkRoom(frames[track], bytes[track]);
+        }
+        for (int track = 0; track < 2; track++) {
+            mInputQueues[track].admit(frames[track]);
+        }
+    }
+
+    // a frame was accepted or dropped, so the next one follows it
+    private void advanceClock(int track, long samples) {
+        if (track == VIDEO) {
+            mVideoFrameIdx++;
+        } else {
+            mAudioSamplesPut += samples;
+        }
+    }
+
+    // a frame or STOP was queued for 'track'
+    protected void onInputQueued(int track) {
+    }
+
+    // queue STOP on every track, after any waiting frames
+    protected void queueStop() {
+        if (mHeldRepeat != null) {
+            // the video ended on unchanged frames. encode the last, so it lasts until its pts
+            InputData last = mHeldRepeat;
+            mHeldRepeat = null;
+            try {
+                mInputQueues[VIDEO].offer(last, error -> { });
+                onInputQueued(VIDEO);
+                mStaticFrames--;
+            } catch (Exception e) {
+                Log.w(TAG, "could not queue the last static frame", e);
+            }
+        }
+        for (int track = 0; track < 2; track++) {
+            if (mEncoders[track] != null) {
+                mInputQueues[track].offerStop();
+                onInputQueued(track);
+            }
+        }
+    }
+
+    // release queued frames & fail waiting ones
+    protected void closeInputQueues(Exception error) {
+        for (InputQueue queue : mInputQueues) {
+            queue.close(error);
+        }
+    }
+
+    // drain every stage, finalize the file, & wait for it
+    abstract void finish() throws Exception;
+
+    // stop & release everything, without finalizing the file
+    abstract void close() throws InterruptedException;
+
+    InputDataPool inputPool() {
+        return mInputPool;
+    }
+
+    // frames dropped by the overflow policy
+    long droppedFrames(int track) {
+        return mInputQueues[track].droppedCount();
+    }
+
+    // ask the video encoder for a key frame soon. any thread
+    void requestSyncFrame() {
+        Encoder encoder = mEncoders[VIDEO];
+        if (encoder != null && !mReleased) {
+            try {
+                encoder.requestSyncFrame();
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "could not request a sync frame", e);
+            }
+        }
+    }
+
+    // frames skipped as unchanged
+    long staticFrames() {
+        return mStaticFrames;
+    }
+
+    /**
+     * Skip video frames identical to the previous one. Must be called before start().
+     * @param rowBytes bytes per row of an input frame
+     * @param rowStep hash every rowStep'th row, see FrameFingerprint
+     */
+    void enableStaticFrameSkip(int rowBytes, int rowStep) {
+        mFingerprint = new FrameFingerprint(rowBytes, rowStep);
+    }
+
+    /**
+     * Linux nice value (-20 to 19) of the thread that converts video frames
+     * into the encoder's input, i.e. the video feed thread or codec callback thread.
+     * Higher values yield more to the UI. Must be called before start().
+     */
+    void setConversionPriority(int priority) {
+        mConversionPriority = priority;
+    }
+
+    // called by the conversion thread, before its first frame
+    protected void applyConversionPriority() {
+        Process.setThreadPriority(mConversionPriority);
+    }
+
+    // collect stats. must be called before start()
+    void enableStats() {
+        mStats = new EncodeStats();
+    }
+
+    // null unless stats are enabled
+    EncodeStats stats() {
+        return mStats;
+    }
+
+    // throws if encoding has failed
+    void checkError() throws Exception {
+        if (mResult.isDone()) {
+            mResult.get();
+        }
+    }
+
+    protected static int trackOf(InputData inputData) {
+        return inputData.type == InputData.DataType.VIDEO ? VIDEO : AUDIO;
+    }
+
+    protected void checkTrackEnabled(InputData inputData) {
+        if (mEncoders[trackOf(inputData)] == null) {
+            throw new IllegalStateException(inputData.type + " was not enabled in setup");
+        }
+    }
+
+    protected int expectedTrackCount() {
+        return (mEncoders[VIDEO] != null ? 1 : 0) + (mEncoders[AUDIO] != null ? 1 : 0);
+    }
+
+    ////////////////////////////
+    // stats
+
+    // start timing a stage. free when stats are off
+    protected long stageStart() {
+        return mStats != null ? System.nanoTime() : 0;
+    }
+
+    protected void stageEnd(EncodeStats.Stage stage, long start) {
+        if (mStats != null) {
+            mStats.record(stage, System.nanoTime() - start);
+        }
+    }
+
+    ////////////////////////////
+    // input
+
+    // fill an audio input buffer with whole frames from the packer, timed by its sample count
+    protected void queuePackedAudio(Encoder encoder, int inIdx, boolean flush) {
+        ByteBuffer buf = encoder.getInputBuffer(inIdx);
+        buf.clear();
+        long presentationTime = mAudioPacker.presentationTimeUs();
+        int size = mAudioPacker.read(buf, flush);
+        encoder.queueInputBuffer(inIdx, 0, size, presentationTime, 0);
+    }
+
+    /**
+     * Convert or copy a frame straight into the input buffer's planes, & queue it.
+     * Stats: CONVERSION is the conversion alone, FILL_IMAGE the rest, i.e.
+     * getting the input image & queueing it.
+     */
+    protected void fillImage(Encoder encoder, int inIdx, byte[] frame, long presentationTimeUs) {
+        long start = stageStart();
+        int size = encoder.getInputBuffer(inIdx).capacity();
+        Plane[] planes = encoder.getInputPlanes(inIdx);
+        long conversionStart = stageStart();
+        mYuvConverter.toPlanes(frame, planes[0], planes[1], planes[2]);
+        long conversionEnd = stageStart();
+        encoder.queueInputBuffer(inIdx, 0, size, presentationTimeUs, 0);
+        if (mStats != null) {
+            long conversion = conversionEnd - conversionStart;
+            mStats.record(EncodeStats.Stage.CONVERSION, conversion);
+            mStats.record(EncodeStats.Stage.FILL_IMAGE, System.nanoTime() - start - conversion);
+        }
+    }
+
+    ////////////////////////////
+    // muxing
+
+    /**
+     * Most encoders put their codec config in csd-0 of the output format
+     * (SPS & PPS for AVC, VPS, SPS & PPS for HEVC, the config OBUs for AV1).
+     * Some only send it as a CODEC_CONFIG buffer after the format, so without
+     * csd-0 the track is added once that buffer, or the first sample, arrives.
+     */
+    protected void onOutputFormatChanged(int track, MediaFormat format) throws IOException {
+        if (!format.containsKey("csd-0")) {
+            mPendingFormats[track] = format;
+            return;
+        }
+        addTrack(track, format);
+    }
+
+    private void addTrack(int track, MediaFormat format) throws IOException {
+        Log.i(TAG, "calling mMuxer.addTrack()");
+        mTrackIndex[track] = mMuxer.addTrack(format);
+        mTrackCount++;
+        if (mTrackCount == expectedTrackCount()) {
+            Log.i(TAG, "calling mMuxer.start()");
+            mMuxer.start();
+            mMuxerStarted = true;
+            writePendingSamples();
+        }
+    }
+
+    /**
+     * Write an encoded sample. The caller still owns & releases the codec buffer.
+     * Codec config is only used if the output format lacked it, see onOutputFormatChanged.
+     */
+    protected void writeSample(int track, ByteBuffer buffer, MediaCodec.BufferInfo info) throws IOException {
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            MediaFormat format = mPendingFormats[track];
+            if (format != null && info.size > 0) {
+                ByteBuffer csd = ByteBuffer.allocate(info.size);
+                buffer.position(info.offset);
+                buffer.limit(info.offset + info.size);
+                csd.put(buffer);
+                csd.flip();
+                format.setByteBuffer("csd-0", csd);
+                mPendingFormats[track] = null;
+                addTrack(track, format);
+            }
+            return;
+        }
+        if (info.size == 0) {
+            return;
+        }
+        if (mPendingFormats[track] != null) {
+            // no codec config at all. the muxer goes by the format's keys
+            MediaFormat format = mPendingFormats[track];
+            mPendingFormats[track] = null;
+            addTrack(track, format);
+        }
+        if (track == VIDEO && mVideoNeedsKeyFrame) {
+            if ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0) {
+                mVideoSkipped++;
+                return;
+            }
+            Log.w(TAG, "video resumed at a key frame, after skipping " + mVideoSkipped + " samples");
+            mVideoNeedsKeyFrame = false;
+        }
+        if (mStats != null) {
+            mStats.recordSample(track, info.size, info.presentationTimeUs);
+        }
+        if (mMuxerStarted) {
+            buffer.position(info.offset);
+            buffer.limit(info.offset + info.size);
+            long start = stageStart();
+            mMuxer.writeSampleData(mTrackIndex[track], buffer, info);
+            stageEnd(EncodeStats.Stage.MUXER_WRITE, start);
+        } else {
+            // the other track's format is not known yet. keep a copy
+            mStagingBuffer.add(track, buffer, info);
+        }
+    }
+
+    private void writePendingSamples() throws IOException {
+        mStagingBuffer.drainTo((track, buffer, info) -> {
+            long start = stageStart();
+            mMuxer.writeSampleData(mTrackIndex[track], buffer, info);
+            stageEnd(EncodeStats.Stage.MUXER_WRITE, start);
+        });
+        // the file must not start on a frame that depends on dropped ones
+        if (mStagingBuffer.videoNeedsKeyFrame()) {
+            mVideoNeedsKeyFrame = true;
+            requestSyncFrame();
+        }
+    }
+
+    // stop the encoders, & finalize the file if encoding succeeded
+    protected synchronized void release() {
+        if (mReleased) {
+            return;
+        }
+        mReleased = true;
+        if (mStats != null) {
+            mStats.finished();
+        }
+        for (int track = 0; track < 2; track++) {
+            Encoder encoder = mEncoders[track];
+            if (encoder != null) {
+                try {
+                    encoder.stop();
+                } catch (Exception e) {
+                    Log.e(TAG, "Error stopping encoder", e);
+                }
+                encoder.release();
+            }
+        }
+        if (mMuxer != null) {
+            try {
+                if (mMuxerStarted && !mResult.isCompletedExceptionally()) {
+                    mMuxer.stop();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Error finalizing the file", e);
+            } finally {
+                mMuxer.release();
+            }
+        }
+        if (mYuvConverter != null) {
+            mYuvConverter.close();
+        }
+        if (mHeldRepeat != null) {
+            mInputPool.release(mHeldRepeat);
+            mHeldRepeat = null;
+        }
+
+        Log.i(TAG, "input pool allocations: " + mInputPool.allocationCount() +
+            " (capacity " + mInputPool.capacity() + ")");
+    }
+}
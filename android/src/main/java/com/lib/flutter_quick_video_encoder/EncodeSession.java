@@ -0,0 +1,20 @@
+package com.lib.flutter_quick_video_encoder;
+
+// one output file being encoded. sessions have their own codecs,
+// muxer, queues & threads, so several can run at the same time
+class EncodeSession {
+    final int id;
+    final int width;
+    final int height;
+    // bytes of one video frame in the input pixel format
+    final int frameBytes;
+    final EncodeEngine engine;
+
+    EncodeSession(int id, int width, int height, int frameBytes, EncodeEngine engine) {
+        this.id = id;
+        this.width = width;
+        this.height = height;
+        this.frameBytes = frameBytes;
+        this.engine = engine;
+    }
+}
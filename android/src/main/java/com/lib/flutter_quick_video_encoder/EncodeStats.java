@@ -0,0 +1,118 @@
+package com.lib.flutter_quick_video_encoder;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Where a session spends its time. Only created when stats are enabled in
+ * setup, so when they are off every recording point is a single null check.
+ *
+ * Written by the pipeline threads, read by getStats() from any thread.
+ */
+class EncodeStats {
+
+    // pipeline stages with a latency histogram
+    enum Stage {
+        // RGBA to YUV, see YuvConverter
+        CONVERSION("conversion"),
+        // get the input image & queue it, excluding the conversion
+        FILL_IMAGE("fillImage"),
+        // waiting for the encoder to free an input buffer. pipelined engine only
+        INPUT_DEQUEUE("inputDequeue"),
+        // handing an encoded sample to the mux thread. pipelined engine only
+        OUTPUT_DRAIN("outputDrain"),
+        // MediaMuxer.writeSampleData
+        MUXER_WRITE("muxerWrite"),
+        // put() until the frame is accepted by a full input queue
+        PUT_BLOCKED("putBlocked");
+
+        final String key;
+
+        Stage(String key) {
+            this.key = key;
+        }
+    }
+
+    private final LatencyHistogram[] mStages = new LatencyHistogram[Stage.values().length];
+
+    private final long mStartNs = System.nanoTime();
+
+    // input queue length seen by put(), per track
+    private final AtomicLongArray mQueueSamples = new AtomicLongArray(2);
+    private final AtomicLongArray mQueueSum = new AtomicLongArray(2);
+    private final AtomicLongArray mQueueMax = new AtomicLongArray(2);
+
+    // encoded output, per track
+    private final AtomicLongArray mSamples = new AtomicLongArray(2);
+    private final AtomicLongArray mBytes = new AtomicLongArray(2);
+    private final AtomicLongArray mFirstPtsUs = new AtomicLongArray(new long[] {-1, -1});
+    private final AtomicLongArray mLastPtsUs = new AtomicLongArray(new long[] {-1, -1});
+
+    // set once the last sample is written
+    private final AtomicLong mEndNs = new AtomicLong();
+
+    EncodeStats() {
+        for (int i = 0; i < mStages.length; i++) {
+            mStages[i] = new LatencyHistogram();
+        }
+    }
+
+    void record(Stage stage, long nanos) {
+        mStages[stage.ordinal()].record(nanos);
+    }
+
+    void recordQueueLength(int track, int length) {
+        mQueueSamples.incrementAndGet(track);
+        mQueueSum.addAndGet(track, length);
+        long max;
+        while (length > (max = mQueueMax.get(track)) && !mQueueMax.compareAndSet(track, max, length)) {
+            // retry
+        }
+    }
+
+    void recordSample(int track, int size, long ptsUs) {
+        mSamples.incrementAndGet(track);
+        mBytes.addAndGet(track, size);
+        mFirstPtsUs.compareAndSet(track, -1, ptsUs);
+        mLastPtsUs.set(track, ptsUs);
+    }
+
+    void finished() {
+        mEndNs.compareAndSet(0, System.nanoTime());
+    }
+
+    Map<String, Object> toMap() {
+        Map<String, Object> map = new HashMap<>();
+
+        Map<String, Object> stages = new HashMap<>();
+        for (Stage stage : Stage.values()) {
+            stages.put(stage.key, mStages[stage.ordinal()].toMap());
+        }
+        map.put("stages", stages);
+
+        long endNs = mEndNs.get() != 0 ? mEndNs.get() : System.nanoTime();
+        double elapsedSec = (endNs - mStartNs) / 1e9;
+        map.put("elapsedMs", (endNs - mStartNs) / 1000000);
+
+        String[] names = {"video", "audio"};
+        for (int track = 0; track < 2; track++) {
+            Map<String, Object> t = new HashMap<>();
+            long queueSamples = mQueueSamples.get(track);
+            t.put("inputQueueMean", queueSamples > 0 ? (double) mQueueSum.get(track) / queueSamples : 0.0);
+            t.put("inputQueueMax", mQueueMax.get(track));
+            t.put("samples", mSamples.get(track));
+            t.put("bytes", mBytes.get(track));
+
+            // bitrate over the media duration encoded so far
+            long durationUs = mLastPtsUs.get(track) - mFirstPtsUs.get(track);
+            t.put("bitrate", durationUs > 0 ? mBytes.get(track) * 8 * 1000000 / durationUs : 0L);
+
+            // encoded samples per second of wall time
+            t.put("fps", elapsedSec > 0 ? mSamples.get(track) / elapsedSec : 0.0);
+            map.put(names[track], t);
+        }
+        return map;
+    }
+}
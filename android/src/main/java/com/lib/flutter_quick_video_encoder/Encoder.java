@@ -0,0 +1,43 @@
+package com.lib.flutter_quick_video_encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One encoder, as the engines drive it. Same contract as MediaCodec in
+ * synchronous mode: dequeue an input buffer, fill & queue it, then dequeue,
+ * write & release output buffers. Status codes & flags are MediaCodec's.
+ *
+ * The codec is configured & started before it is handed to the engine,
+ * which stops & releases it. See MediaCodecEncoder for the platform codec.
+ */
+interface Encoder {
+
+    // an input buffer index, or MediaCodec.INFO_TRY_AGAIN_LATER
+    int dequeueInputBuffer(long timeoutUs);
+
+    ByteBuffer getInputBuffer(int index);
+
+    // the Y, U & V planes of a video input buffer
+    Plane[] getInputPlanes(int index);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    // an output buffer index, or a MediaCodec.INFO_* status
+    int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs);
+
+    ByteBuffer getOutputBuffer(int index);
+
+    void releaseOutputBuffer(int index);
+
+    MediaFormat getOutputFormat();
+
+    // ask for a key frame soon. any thread
+    void requestSyncFrame();
+
+    void stop();
+
+    void release();
+}
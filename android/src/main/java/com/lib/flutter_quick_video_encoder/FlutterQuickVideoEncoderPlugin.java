@@ -1,48 +1,39 @@
 package com.lib.flutter_quick_video_encoder;
 
-import android.media.Image;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import io.flutter.embedding.engine.plugins.FlutterPlugin;
+import io.flutter.plugin.common.BasicMessageChannel;
+import io.flutter.plugin.common.BinaryCodec;
 import io.flutter.plugin.common.BinaryMessenger;
+import io.flutter.plugin.common.EventChannel;
 import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
-
-class InputData {
-    enum DataType { VIDEO, AUDIO, STOP }
-    public DataType type;
-    public byte[] data;
-
-    public InputData(DataType type, byte[] data) {
-        this.type = type;
-        this.data = data;
-    }
-}
-
-class EncodedData {
-    public ByteBuffer byteBuffer;
-    public MediaCodec.BufferInfo bufferInfo;
-
-    public EncodedData(ByteBuffer byteBuffer, MediaCodec.BufferInfo bufferInfo) {
-        this.byteBuffer = byteBuffer;
-        this.bufferInfo = bufferInfo;
-    }
-}
+import io.flutter.plugin.common.StandardMethodCodec;
 
 public class FlutterQuickVideoEncoderPlugin implements
     FlutterPlugin,
@@ -50,42 +41,296 @@ public class FlutterQuickVideoEncoderPlugin implements
 {
     private static final String TAG = "[FQVE-Android]";
     private static final String CHANNEL_NAME = "flutter_quick_video_encoder/methods";
+    private static final String FRAME_CHANNEL_NAME = "flutter_quick_video_encoder/frames";
+    private static final String STATS_CHANNEL_NAME = "flutter_quick_video_encoder/stats";
+
+    // frame channel message layout (little endian):
+    //   [0]     frame type
+    //   [1..3]  reserved
+    //   [4..7]  session id, int32
+    //   [8..15] presentation time in microseconds, int64. -1 = from frame index
+    //   [16..]  rgba pixels or pcm samples
+    //
+    // batch messages (type 3) carry several frames:
+    //   [0]     3
+    //   [1..3]  reserved
+    //   [4..7]  session id, int32
+    //   [8..11] frame count, int32
+    //   [12..15] reserved
+    //   then a frame table, 16 bytes per frame:
+    //     [0]     frame type, video or audio
+    //     [1..3]  reserved
+    //     [4..7]  length in bytes, int32
+    //     [8..15] presentation time in microseconds, int64
+    //   then every frame's bytes, in table order
+    private static final int FRAME_HEADER_SIZE = 16;
+    private static final int FRAME_TABLE_ENTRY_SIZE = 16;
+    private static final int FRAME_TYPE_VIDEO = 1;
+    private static final int FRAME_TYPE_AUDIO = 2;
+    private static final int FRAME_TYPE_BATCH = 3;
+
+    // default max frames waiting per track
+    private static final int INPUT_QUEUE_DEPTH = 5;
+
+    // max encoded samples waiting to be muxed
+    private static final int MUX_QUEUE_DEPTH = 16;
+
+    // default target length of a fragmented mp4 fragment
+    private static final int FRAGMENT_DURATION_MS = 2000;
+
+    // the session used when none is given, i.e. the static dart api
+    private static final int DEFAULT_SESSION_ID = 0;
+
+    // default rows between rows hashed by static frame skipping, see FrameFingerprint
+    private static final int STATIC_FRAME_ROW_STEP = 4;
+
+    // what VideoCodec.auto tries before avc, most efficient first
+    private static final String[] AUTO_VIDEO_MIME_TYPES = {
+        MediaFormat.MIMETYPE_VIDEO_AV1,
+        MediaFormat.MIMETYPE_VIDEO_HEVC,
+        MediaFormat.MIMETYPE_VIDEO_VP9,
+    };
 
     private MethodChannel mMethodChannel;
-    private int mWidth;
-    private int mHeight;
-    private int mFps;
-    private boolean mMuxerStarted;
-    private MediaCodec mVideoEncoder;
-    private MediaCodec mAudioEncoder;
-    private MediaMuxer mMediaMuxer;
-    private int mVideoFrameIdx;
-    private int mAudioFrameIdx;
-    private int mVideoTrackIndex;
-    private int mAudioTrackIndex;
-    private int mTrackCount;
-    private int mAudioChannels;
-    private Queue<EncodedData> videoQueue = new LinkedList<>();
-    private Queue<EncodedData> audioQueue = new LinkedList<>();
-
-    // input queue for video, audio, and stop signals
-    private BlockingQueue<InputData> inputQueue = new LinkedBlockingQueue<>(5);
-
-    // signal encoding success or error
-    private CompletableFuture<Void> processingResult;
-
-    private Thread processingThread;
+    private BasicMessageChannel<ByteBuffer> mFrameChannel;
+    private EventChannel mStatsChannel;
+
+    // threads:
+    //  - method & frame channel handlers run in order on one background task queue,
+    //    so codec setup & frame copies never block the main thread
+    //  - finish waits for the pipeline to drain on a finisher thread, so the
+    //    task queue keeps serving other sessions meanwhile
+    //  - frames are converted to YUV on the engine's video feed thread (pipelined)
+    //    or codec callback thread (callback), at setup's conversionPriority,
+    //    with conversionThreads - 1 helpers for large frames
+    //  - stats events are sent from the main thread
+    private ExecutorService mFinisher;
+
+    // files being encoded, by session id
+    private final Map<Integer, EncodeSession> mSessions = new ConcurrentHashMap<>();
+
+    // sessions whose finish is draining, by session id. they still hold their codecs
+    private final Map<Integer, EncodeSession> mFinishing = new ConcurrentHashMap<>();
+
+    // max sessions at once by video mime type ("" for audio only), derived from codec capabilities
+    private final Map<String, Integer> mMaxSessions = new ConcurrentHashMap<>();
+
+    // stats of the last finished session with each id
+    private final Map<Integer, Map<String, Object>> mFinishedStats = new ConcurrentHashMap<>();
+
+    // periodic stats events, on the main thread
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private EventChannel.EventSink mStatsSink;
+    private long mStatsIntervalMs;
+    private final Runnable mSendStats = this::sendStats;
 
     @Override
     public void onAttachedToEngine(FlutterPluginBinding binding) {
         BinaryMessenger messenger = binding.getBinaryMessenger();
-        mMethodChannel = new MethodChannel(messenger, CHANNEL_NAME);
+
+        // one serial queue for both channels, so calls & frames keep their order
+        BinaryMessenger.TaskQueue taskQueue = messenger.makeBackgroundTaskQueue();
+        mFinisher = Executors.newCachedThreadPool(r -> new Thread(r, "fqve-finish"));
+
+        mMethodChannel = new MethodChannel(messenger, CHANNEL_NAME, StandardMethodCodec.INSTANCE, taskQueue);
         mMethodChannel.setMethodCallHandler(this);
+
+        // frames are sent as raw bytes. INSTANCE_DIRECT hands us the engine's
+        // own direct buffer, instead of decoding into a map & byte[] per frame
+        mFrameChannel = new BasicMessageChannel<>(messenger, FRAME_CHANNEL_NAME, BinaryCodec.INSTANCE_DIRECT, taskQueue);
+        mFrameChannel.setMessageHandler(this::onFrameMessage);
+
+        mStatsChannel = new EventChannel(messenger, STATS_CHANNEL_NAME);
+        mStatsChannel.setStreamHandler(new EventChannel.StreamHandler() {
+            @Override
+            public void onListen(Object arguments, EventChannel.EventSink events) {
+                Integer intervalMs = arguments instanceof Map ? (Integer) ((Map<?, ?>) arguments).get("intervalMs") : null;
+                mStatsIntervalMs = intervalMs != null ? intervalMs : 1000;
+                mStatsSink = events;
+                mMainHandler.removeCallbacks(mSendStats);
+                mMainHandler.postDelayed(mSendStats, mStatsIntervalMs);
+            }
+
+            @Override
+            public void onCancel(Object arguments) {
+                mStatsSink = null;
+                mMainHandler.removeCallbacks(mSendStats);
+            }
+        });
     }
 
     @Override
     public void onDetachedFromEngine(FlutterPluginBinding binding) {
         mMethodChannel.setMethodCallHandler(null);
+        mFrameChannel.setMessageHandler(null);
+        mStatsChannel.setStreamHandler(null);
+        mStatsSink = null;
+        mMainHandler.removeCallbacks(mSendStats);
+
+        // nobody can finish these anymore
+        for (EncodeSession session : mSessions.values()) {
+            try {
+                session.engine.close();
+            } catch (Exception e) {
+                Log.e(TAG, "Error closing session " + session.id, e);
+            }
+        }
+        mSessions.clear();
+
+        // finishing sessions are left to complete their files
+        mFinisher.shutdown();
+    }
+
+    /**
+     * Handles a frame, or a batch of frames, sent on the binary frame channel.
+     *
+     * The message buffer is owned by the engine & freed once we return,
+     * so each payload is copied once into a pooled frame buffer. Converting
+     * straight from the message would hold this thread until the feed thread
+     * reaches the frame, so conversion could no longer overlap the next frame's
+     * transfer. On the dart side, frames from allocateFrame are not copied.
+     * Replies once every frame is accepted (see InputQueue), with null
+     * on success, or a utf8 error: the error code, a newline & the message.
+     */
+    private void onFrameMessage(ByteBuffer message, BasicMessageChannel.Reply<ByteBuffer> reply) {
+        PendingReply pending = new PendingReply() {
+            @Override
+            void onSuccess() {
+                reply.reply(null);
+            }
+
+            @Override
+            void onError(Exception error) {
+                byte[] bytes = (errorCode(error) + "\n" + error).getBytes(Charset.forName("UTF-8"));
+                ByteBuffer errorBuffer = ByteBuffer.allocateDirect(bytes.length);
+                errorBuffer.put(bytes);
+                errorBuffer.flip();
+                reply.reply(errorBuffer);
+            }
+        };
+        try {
+            if (message == null || message.remaining() < FRAME_HEADER_SIZE) {
+                throw new IllegalArgumentException("invalid frame message");
+            }
+
+            message.order(ByteOrder.LITTLE_ENDIAN);
+            int start = message.position();
+            int frameType = message.get(start);
+            int sessionId = message.getInt(start + 4);
+
+            EncodeSession session = getSession(sessionId);
+
+            // if processing error, throw exception
+            session.engine.checkError();
+
+            if (frameType == FRAME_TYPE_BATCH) {
+                enqueueBatch(session, message, start, pending);
+            } else {
+                long ptsUs = message.getLong(start + 8);
+                int size = message.remaining() - FRAME_HEADER_SIZE;
+                InputData.DataType type = frameDataType(session, frameType, size);
+                int track = type == InputData.DataType.VIDEO ? EncodeEngine.VIDEO : EncodeEngine.AUDIO;
+                int[] frames = new int[2];
+                long[] bytes = new long[2];
+                frames[track] = 1;
+                bytes[track] = size;
+                session.engine.admit(frames, bytes);
+                enqueueFrame(session.engine, type, ptsUs, message, start + FRAME_HEADER_SIZE, size, pending);
+            }
+
+            pending.sent();
+        } catch (Exception e) {
+            Log.e(TAG, "Error handling frame", e);
+            pending.fail(e);
+        }
+    }
+
+    // enqueue every frame of a batch, in order. the whole table is checked & the
+    // frames admitted first, so the batch is accepted or rejected whole
+    private void enqueueBatch(EncodeSession session, ByteBuffer message, int start,
+                              PendingReply pending) throws Exception {
+        int count = message.getInt(start + 8);
+        int tableStart = start + FRAME_HEADER_SIZE;
+        long tableSize = (long) count * FRAME_TABLE_ENTRY_SIZE;
+        if (count < 0 || tableSize > message.limit() - tableStart) {
+            throw new IllegalArgumentException("invalid frame count: " + count);
+        }
+
+        // validate
+        long total = 0;
+        int[] frames = new int[2];
+        long[] bytes = new long[2];
+        for (int i = 0; i < count; i++) {
+            int entry = tableStart + i * FRAME_TABLE_ENTRY_SIZE;
+            int size = message.getInt(entry + 4);
+            if (size < 0) {
+                throw new IllegalArgumentException("invalid frame length: " + size);
+            }
+            int track = frameDataType(session, message.get(entry), size) == InputData.DataType.VIDEO ?
+                EncodeEngine.VIDEO : EncodeEngine.AUDIO;
+            frames[track]++;
+            bytes[track] += size;
+            total += size;
+        }
+        int offset = tableStart + count * FRAME_TABLE_ENTRY_SIZE;
+        if (total != message.limit() - offset) {
+            throw new IllegalArgumentException("frame table does not match message length");
+        }
+        session.engine.admit(frames, bytes);
+
+        // enqueue
+        for (int i = 0; i < count; i++) {
+            int entry = tableStart + i * FRAME_TABLE_ENTRY_SIZE;
+            int size = message.getInt(entry + 4);
+            long ptsUs = message.getLong(entry + 8);
+            InputData.DataType type = message.get(entry) == FRAME_TYPE_VIDEO ?
+                InputData.DataType.VIDEO : InputData.DataType.AUDIO;
+            enqueueFrame(session.engine, type, ptsUs, message, offset, size, pending);
+            offset += size;
+        }
+    }
+
+    private static InputData.DataType frameDataType(EncodeSession session, int frameType, int size) {
+        if (frameType == FRAME_TYPE_VIDEO) {
+            if (size != session.frameBytes) {
+                throw new IllegalArgumentException("invalid video frame length: " + size);
+            }
+            return InputData.DataType.VIDEO;
+        } else if (frameType == FRAME_TYPE_AUDIO) {
+            return InputData.DataType.AUDIO;
+        } else {
+            throw new IllegalArgumentException("unknown frame type: " + frameType);
+        }
+    }
+
+    // copy one frame out of the message & queue it for encoding
+    private static void enqueueFrame(EncodeEngine engine, InputData.DataType type, long ptsUs,
+                                     ByteBuffer message, int offset, int size,
+                                     PendingReply pending) throws Exception {
+        // Get a recycled InputData
+        InputData inputData = engine.inputPool().acquire(type, size);
+        inputData.ptsUs = ptsUs;
+
+        // copy payload
+        message.position(offset);
+        message.get(inputData.frameBuffer, 0, size);
+
+        // Put InputData into the input queue. never blocks
+        pending.expect();
+        engine.put(inputData, pending);
+    }
+
+    // error code reported to dart
+    private static String errorCode(Exception e) {
+        return e instanceof InputQueue.QueueFullException ? "QueueFull" : "androidException";
+    }
+
+    private static void replyError(MethodChannel.Result result, Exception e) {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        e.printStackTrace(pw);
+        String stackTrace = sw.toString();
+        result.error(errorCode(e), e.toString(), stackTrace);
     }
 
     @Override
@@ -97,15 +342,27 @@ public class FlutterQuickVideoEncoderPlugin implements
                     result.success(null);
                     break;
                 }
+                case "maxSessions":
+                {
+                    result.success(maxSessions(stringArgument(call, "videoCodec", "avc")));
+                    break;
+                }
+                case "activeSessions":
+                {
+                    result.success(mSessions.size() + mFinishing.size());
+                    break;
+                }
+                case "getStats":
+                {
+                    result.success(getStats(intArgument(call, "sessionId", DEFAULT_SESSION_ID)));
+                    break;
+                }
                 case "setup":
                 {
-                    // Clear queues
-                    inputQueue.clear();
-                    videoQueue.clear();
-                    audioQueue.clear();
+                    int sessionId = intArgument(call, "sessionId", DEFAULT_SESSION_ID);
 
                     // reset
-                    stopProcessingThread();
+                    closeSession(sessionId);
 
                     // Extract parameters
                     int width =         call.argument("width");
@@ -116,64 +373,171 @@ public class FlutterQuickVideoEncoderPlugin implements
                     int audioBitrate =  call.argument("audioBitrate");
                     int sampleRate =    call.argument("sampleRate");
                     String filepath =   call.argument("filepath");
+                    int conversionThreads = intArgument(call, "conversionThreads", 1);
+                    String engineName = call.argument("androidEngine");
+                    int stagingBufferBytes = intArgument(call, "stagingBufferBytes",
+                        SampleStagingBuffer.DEFAULT_CAPACITY_BYTES);
+                    String stagingOverflow = call.argument("stagingOverflow");
+                    Boolean collectStats = call.argument("collectStats");
+                    int inputQueueDepth = intArgument(call, "inputQueueDepth", INPUT_QUEUE_DEPTH);
+                    Number inputQueueBytes = call.argument("inputQueueBytes");
+                    String overflowPolicy = call.argument("overflowPolicy");
+                    String profileLevel = call.argument("profileLevel");
+                    Map<String, Object> videoSettings = call.argument("videoSettings");
+                    String videoCodecName = call.argument("videoCodec");
+                    String container = stringArgument(call, "container", "mp4");
+                    boolean fragmented = "fragmentedMp4".equals(container);
+                    String audioFilepath = call.argument("audioFilepath");
+                    int fragmentDurationMs = intArgument(call, "fragmentDurationMs", FRAGMENT_DURATION_MS);
+                    int segmentDurationMs = intArgument(call, "segmentDurationMs", 0);
+                    Number segmentBytes = call.argument("segmentBytes");
+                    int keepSegments = intArgument(call, "keepSegments", 0);
+                    YuvConverter.InputFormat inputFormat = inputFormat(call.argument("inputFormat"));
+                    Boolean skipStaticFrames = call.argument("skipStaticFrames");
+                    int conversionPriority = intArgument(call, "conversionPriority", Process.THREAD_PRIORITY_DEFAULT);
+                    int staticFrameRowStep = intArgument(call, "staticFrameRowStep", STATIC_FRAME_ROW_STEP);
+                    YuvConverter.ColorStandard colorStandard = colorStandard(call.argument("colorStandard"), width, height);
+                    YuvConverter.ColorRange colorRange = "full".equals(call.argument("colorRange")) ?
+                        YuvConverter.ColorRange.FULL : YuvConverter.ColorRange.LIMITED;
+                    boolean segmented = segmentDurationMs > 0 || (segmentBytes != null && segmentBytes.longValue() > 0);
+
+                    MediaCodec videoEncoder = null;
+                    MediaCodec audioEncoder = null;
+                    boolean hasVideo = width != 0 && height != 0;
+                    boolean hasAudio = audioChannels != 0 && sampleRate != 0;
+                    Map<String, Object> videoReport = null;
+
+                    if (segmented && "elementary".equals(container)) {
+                        result.error("UnsupportedContainer", "segmented output requires mp4 or fragmentedMp4", null);
+                        return;
+                    }
 
-                    // save
-                    mFps = fps;
-                    mHeight = height;
-                    mWidth = width;
-                    mAudioChannels = audioChannels;
+                    // pick the video encoder first, since the codec decides the container
+                    CodecIndex.Codec videoCodec = null;
+                    if (hasVideo) {
+                        int colorFormat = getColorFormat();
+                        String mimeType = videoMimeType(videoCodecName, container, hasAudio, colorFormat, width, height, fps);
+                        String unsupported = checkVideoMimeType(mimeType, container, hasAudio);
+                        if (unsupported != null) {
+                            result.error("UnsupportedCodec", unsupported, null);
+                            return;
+                        }
 
-                    // reset
-                    mVideoFrameIdx = 0;
-                    mAudioFrameIdx = 0;
-                    mMuxerStarted = false;
-                    mTrackCount = 0;
+                        // the fastest encoder that supports the color format
+                        videoCodec = CodecIndex.get().findVideoEncoder(mimeType, colorFormat, width, height, fps);
+                        if (videoCodec == null) {
+                            result.error("UnsupportedColorFormat", "COLOR_FormatYUV420Flexible is not supported", null);
+                            return;
+                        }
+                    }
+
+                    // respect the device's encoder instance limit for this codec
+                    int maxSessions = maxSessionsOf(videoCodec != null ? videoCodec.mimeType : null);
+                    if (mSessions.size() + mFinishing.size() >= maxSessions) {
+                        result.error("TooManySessions",
+                            "at most " + maxSessions + " sessions can encode at once", null);
+                        return;
+                    }
 
-                    // Initialize the MediaMuxer
-                    Log.i(TAG, "calling new MediaMuxer()");
-                    mMediaMuxer = new MediaMuxer(filepath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+                    // Initialize the muxer, or one per segment
+                    Muxer muxer;
+                    SegmentedMuxer segmentedMuxer = null;
+                    String videoMimeType = videoCodec != null ? videoCodec.mimeType : null;
+                    if (segmented) {
+                        Log.i(TAG, "calling new SegmentedMuxer()");
+                        segmentedMuxer = new SegmentedMuxer(filepath,
+                            path -> createMuxer(container, path, null, videoMimeType, hasAudio, fragmentDurationMs),
+                            segmentDurationMs * 1000L, segmentBytes != null ? segmentBytes.longValue() : 0, keepSegments);
+                        muxer = segmentedMuxer;
+                    } else {
+                        muxer = createMuxer(container, filepath, audioFilepath, videoMimeType, hasAudio, fragmentDurationMs);
+                    }
+
+                    // Create the engine. it owns the muxer & encoders from here on
+                    YuvConverter converter = hasVideo ?
+                        new YuvConverter(width, height, conversionThreads, inputFormat, colorStandard, colorRange) : null;
+                    SampleStagingBuffer stagingBuffer = new SampleStagingBuffer(stagingBufferBytes,
+                        "dropOldest".equals(stagingOverflow) ?
+                            SampleStagingBuffer.OverflowPolicy.DROP_OLDEST :
+                            SampleStagingBuffer.OverflowPolicy.FAIL);
+                    EncodeEngine engine = createEngine(engineName, fps, muxer, converter, stagingBuffer,
+                        inputQueueDepth, inputQueueBytes != null ? inputQueueBytes.longValue() : 0,
+                        overflowPolicy(overflowPolicy));
+                    mSessions.put(sessionId, new EncodeSession(sessionId, width, height,
+                        YuvConverter.frameBytes(inputFormat, width, height), engine));
+                    if (segmentedMuxer != null) {
+                        // so segments start close to their target duration
+                        segmentedMuxer.setSyncFrameRequest(engine::requestSyncFrame);
+                    }
+                    mFinishedStats.remove(sessionId);
+                    engine.setConversionPriority(conversionPriority);
+                    if (collectStats != null && collectStats) {
+                        // before the encoders start, since callbacks begin right away
+                        engine.enableStats();
+                    }
+                    if (hasVideo && skipStaticFrames != null && skipStaticFrames) {
+                        boolean rgb = inputFormat == YuvConverter.InputFormat.RGBA ||
+                            inputFormat == YuvConverter.InputFormat.BGRA;
+                        engine.enableStaticFrameSkip(rgb ? width * 4 : width, staticFrameRowStep);
+                    }
 
                     // setup video?
-                    if (width != 0 && height != 0) {
+                    if (hasVideo) {
 
-                        // color format
-                        int colorFormat = getColorFormat();
-                        if (isColorFormatSupported("video/avc", colorFormat) == false) {
-                            result.error("UnsupportedColorFormat", "COLOR_FormatYUV420Flexible is not supported", null);
-                            return;
-                        }
-                            
                         // Video format
-                        Log.i(TAG, "calling MediaFormat.createVideoFormat()");
-                        MediaFormat videoFormat = MediaFormat.createVideoFormat("video/avc", width, height);
+                        Log.i(TAG, "calling MediaFormat.createVideoFormat() " + videoCodec.mimeType);
+                        MediaFormat videoFormat = MediaFormat.createVideoFormat(videoCodec.mimeType, width, height);
                         videoFormat.setInteger(MediaFormat.KEY_BIT_RATE, videoBitrate);
                         videoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, fps);
-                        videoFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
-                        videoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
-                        //videoFormat.setInteger(MediaFormat.KEY_LATENCY, 1);
+                        videoFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, getColorFormat());
+
+                        // profile, rate control & latency, as far as the codec supports them
+                        VideoEncoderSettings settings = new VideoEncoderSettings(profileLevel, videoSettings);
+                        videoReport = settings.applyTo(videoFormat, videoCodec, width, height);
+
+                        // tell players how to convert back to RGB
+                        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                            videoFormat.setInteger(MediaFormat.KEY_COLOR_STANDARD, colorStandard == YuvConverter.ColorStandard.BT709 ?
+                                MediaFormat.COLOR_STANDARD_BT709 : MediaFormat.COLOR_STANDARD_BT601_NTSC);
+                            videoFormat.setInteger(MediaFormat.KEY_COLOR_RANGE, colorRange == YuvConverter.ColorRange.FULL ?
+                                MediaFormat.COLOR_RANGE_FULL : MediaFormat.COLOR_RANGE_LIMITED);
+                            videoFormat.setInteger(MediaFormat.KEY_COLOR_TRANSFER, MediaFormat.COLOR_TRANSFER_SDR_VIDEO);
+                        }
+                        videoReport.put("colorStandard", colorStandard.name().toLowerCase(Locale.ROOT));
+                        videoReport.put("colorRange", colorRange.name().toLowerCase(Locale.ROOT));
+
+                        // fragmented mp4 needs samples in presentation order
+                        if (fragmented && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                            videoFormat.setInteger(MediaFormat.KEY_MAX_B_FRAMES, 0);
+                        }
 
-                        
                         // Video encoder
-                        mVideoEncoder = MediaCodec.createEncoderByType("video/avc");
-                        Log.i(TAG, "calling mVideoEncoder.configure()");
-                        mVideoEncoder.configure(videoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                        Log.i(TAG, "calling MediaCodec.createByCodecName() " + videoCodec.name +
+                            (videoCodec.hardwareAccelerated ? " (hardware)" : " (software)"));
+                        videoEncoder = MediaCodec.createByCodecName(videoCodec.name);
+                        engine.addEncoder(EncodeEngine.VIDEO, new MediaCodecEncoder(videoEncoder));
+                        Log.i(TAG, "calling videoEncoder.configure()");
+                        videoEncoder.configure(videoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
 
                         // start
                         try {
-                            Log.i(TAG, "calling mVideoEncoder.start()");
-                            mVideoEncoder.start();
+                            Log.i(TAG, "calling videoEncoder.start()");
+                            videoEncoder.start();
                         } catch (Exception e) {
+                            closeSession(sessionId);
                             result.error("Hardware", "Could not start video encoder. Check logs.", null);
                             return;
                         }
                     }
 
                     // setup audio?
-                    if (audioChannels != 0 && sampleRate != 0) {
+                    if (hasAudio) {
 
                         // check audio support
                         int audioProfile = MediaCodecInfo.CodecProfileLevel.AACObjectLC;
-                        if (!isAudioFormatSupported(MediaFormat.MIMETYPE_AUDIO_AAC, sampleRate, audioProfile)) {
+                        CodecIndex.Codec audioCodec = CodecIndex.get().findAudioEncoder(MediaFormat.MIMETYPE_AUDIO_AAC, sampleRate, audioProfile);
+                        if (audioCodec == null) {
+                            closeSession(sessionId);
                             result.error("UnsupportedAudioFormat", "AAC audio is not supported", null);
                             return;
                         }
@@ -185,85 +549,62 @@ public class FlutterQuickVideoEncoderPlugin implements
                         audioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, audioProfile);
 
                         // Audio encoder
-                        mAudioEncoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
-                        Log.i(TAG, "calling mAudioEncoder.configure()");
-                        mAudioEncoder.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                        Log.i(TAG, "calling MediaCodec.createByCodecName() " + audioCodec.name);
+                        audioEncoder = MediaCodec.createByCodecName(audioCodec.name);
+                        engine.addEncoder(EncodeEngine.AUDIO, new MediaCodecEncoder(audioEncoder));
+                        engine.setAudioFormat(sampleRate, audioChannels);
+                        Log.i(TAG, "calling audioEncoder.configure()");
+                        audioEncoder.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
 
                         // start
                         try {
-                            Log.i(TAG, "calling mAudioEncoder.start()");
-                            mAudioEncoder.start();
+                            Log.i(TAG, "calling audioEncoder.start()");
+                            audioEncoder.start();
                         } catch (Exception e) {
+                            closeSession(sessionId);
                             result.error("Hardware", "Could not start audio encoder. Check logs.", null);
                             return;
                         }
                     }
 
-                    // Start thread
-                    startProcessingThread();
+                    // Start encoding
+                    engine.start();
 
-                    // success
-                    result.success(null);
+                    // success. report the video settings that were applied
+                    result.success(videoReport);
 
                     break;
                 }
-                case "appendVideoFrame":
+                case "droppedFrames":
                 {
-                    // if processing error, throw exception
-                    if (processingResult.isDone()) {
-                        processingResult.get();
-                    }
-
-                    byte[] rawRgba = call.argument("rawRgba");
-
-                    // Convert RGBA to YUV420
-                    // Perf: we get better results doing this here on the Platform thread,
-                    // as opposed to doing it in the processing thread.
-                    byte[] yuv420 = rgbaToYuv420Planar(rawRgba, mWidth, mHeight);
-
-                    // Create InputData
-                    InputData inputData = new InputData(InputData.DataType.VIDEO, yuv420);
-
-                    // Put InputData into inputQueue (blocks if full)
-                    inputQueue.put(inputData);
-
-                    // Return immediately
-                    result.success(null);
+                    EncodeEngine engine = getSession(call).engine;
+                    Map<String, Object> dropped = new HashMap<>();
+                    dropped.put("video", engine.droppedFrames(EncodeEngine.VIDEO));
+                    dropped.put("audio", engine.droppedFrames(EncodeEngine.AUDIO));
+                    dropped.put("staticVideo", engine.staticFrames());
+                    dropped.put("poolAllocations", engine.inputPool().allocationCount());
+                    result.success(dropped);
                     break;
                 }
-                case "appendAudioFrame":
+                case "stitch":
                 {
-                    // if processing error, throw exception
-                    if (processingResult.isDone()) {
-                        processingResult.get();
-                    }
-
-                    byte[] rawPcmArray = call.argument("rawPcm");
-
-                    // Create InputData
-                    InputData inputData = new InputData(InputData.DataType.AUDIO, rawPcmArray);
+                    List<String> inputs = call.argument("inputs");
+                    String filepath = call.argument("filepath");
+                    Boolean deleteInputs = call.argument("deleteInputs");
 
-                    // Put InputData into inputQueue (blocks if full)
-                    inputQueue.put(inputData);
-
-                    // Return immediately
-                    result.success(null);
+                    // copies every sample, so off the task queue, like finish
+                    mFinisher.execute(() -> stitch(inputs, filepath, deleteInputs != null && deleteInputs, result));
                     break;
                 }
                 case "finish":
                 {
-                    // if processing error, throw exception
-                    if (processingResult.isDone()) {
-                        processingResult.get();
-                    }
+                    // the session ends here, whether or not finishing succeeds
+                    EncodeSession session = getSession(call);
+                    mSessions.remove(session.id);
+                    mFinishing.put(session.id, session);
 
-                    // Send STOP signal
-                    inputQueue.put(new InputData(InputData.DataType.STOP, null));
-
-                    // Wait for processingResult to complete
-                    processingResult.get();
-
-                    result.success(null);
+                    // drain off the task queue, & reply when done
+                    mFinisher.execute(() -> finishSession(session, result));
                     break;
                 }
                 default:
@@ -271,384 +612,313 @@ public class FlutterQuickVideoEncoderPlugin implements
                     break;
             }
         } catch (Exception e) {
-            StringWriter sw = new StringWriter();
-            PrintWriter pw = new PrintWriter(sw);
-            e.printStackTrace(pw);
-            String stackTrace = sw.toString();
-            result.error("androidException", e.toString(), stackTrace);
-            return;
-        }
-    }
-
-    private void stopProcessingThread() throws InterruptedException {
-        if (processingThread != null && processingThread.isAlive()) {
-            inputQueue.put(new InputData(InputData.DataType.STOP, null));
-            processingThread.join(); 
-        }
-    }
-
-    private void startProcessingThread() {
-        processingResult = new CompletableFuture<>();
-        processingThread = new Thread(() -> {
-            try {
-                while (true) {
-                    InputData inputData = inputQueue.take(); // Blocks if queue is empty
-                    if (inputData.type == InputData.DataType.STOP) {
-                        // Finish processing
-                        break;
-                    } else if (inputData.type == InputData.DataType.VIDEO) {
-                        byte[] yuv420 = inputData.data;
-                        feedVideoEncoder(yuv420);
-                        drainEncoder(mVideoEncoder, false);
-                    } else if (inputData.type == InputData.DataType.AUDIO) {
-                        byte[] rawPcmArray = inputData.data;
-                        feedAudioEncoder(rawPcmArray);
-                        drainEncoder(mAudioEncoder, false);
-                    }
-                }
-                // Finalize encoders
-                if (mVideoEncoder != null) {
-                    drainEncoder(mVideoEncoder, true);
-                    mVideoEncoder.stop();
-                    mVideoEncoder.release();
-                    mVideoEncoder = null;
+            if (call.method.equals("setup")) {
+                try {
+                    closeSession(intArgument(call, "sessionId", DEFAULT_SESSION_ID));
+                } catch (Exception e2) {
+                    Log.e(TAG, "Error closing engine", e2);
                 }
-                if (mAudioEncoder != null) {
-                    drainEncoder(mAudioEncoder, true);
-                    mAudioEncoder.stop();
-                    mAudioEncoder.release();
-                    mAudioEncoder = null;
-                }
-                if (mMediaMuxer != null) {
-                    if (mMuxerStarted) {
-                        mMediaMuxer.stop();
-                    }
-                    mMediaMuxer.release();
-                    mMediaMuxer = null;
-                }
-
-                // Complete successfully
-                processingResult.complete(null);
-
-            } catch (Exception e) {
-                Log.e(TAG, "Error in processing thread", e);
-                processingResult.completeExceptionally(e);
-                inputQueue.clear();  // release input threads
             }
-        });
-        processingThread.start();
-    }
-
-    private void feedVideoEncoder(byte[] yuv420) throws Exception {
-        // Calculate presentation time
-        long presentationTime = mVideoFrameIdx * 1000000L / mFps;
-
-        // Dequeue input buffer
-        int inIdx = mVideoEncoder.dequeueInputBuffer(-1);
-        if (inIdx >= 0) {
-            // Get buffer size
-            ByteBuffer buffer = mVideoEncoder.getInputBuffer(inIdx);
-            int size = buffer.capacity();
-
-            // Get input image
-            Image image = mVideoEncoder.getInputImage(inIdx);
-
-            // Fill image with YUV data
-            fillImage(image, yuv420, mWidth, mHeight);
-
-            // Queue input buffer
-            mVideoEncoder.queueInputBuffer(inIdx, 0, size, presentationTime, 0);
+            replyError(result, e);
+            return;
         }
-
-        // Increment frame index
-        mVideoFrameIdx++;
     }
 
-    private void feedAudioEncoder(byte[] rawPcmArray) throws Exception {
-        int offset = 0;
-        while (offset < rawPcmArray.length) {
-            int inIdx = mAudioEncoder.dequeueInputBuffer(-1);
-            if (inIdx >= 0) {
-                ByteBuffer buf = mAudioEncoder.getInputBuffer(inIdx);
-                buf.clear();
-
-                // Push as many bytes as the encoder allows
-                int remaining = buf.remaining();
-                int toWrite = Math.min(rawPcmArray.length - offset, remaining);
-                buf.put(rawPcmArray, offset, toWrite);
-
-                // Calculate presentation time
-                long beginTime = mAudioFrameIdx * 1000000L / mFps;
-                long duration = 1000000L / mFps;
-                long presentationTime = beginTime + (duration * offset / rawPcmArray.length);
-
-                // queue
-                mAudioEncoder.queueInputBuffer(inIdx, 0, toWrite, presentationTime, 0);
-
-                offset += toWrite;
+    /**
+     * "pipelined" (default): dedicated feed, drain & mux threads, see PipelinedEngine
+     * "callback": MediaCodec async callbacks, see AsyncEngine. Requires API 23
+     */
+    private EncodeEngine createEngine(String name, int fps, Muxer muxer, YuvConverter converter,
+                                      SampleStagingBuffer stagingBuffer, int inputQueueDepth,
+                                      long inputQueueBytes, InputQueue.OverflowPolicy overflowPolicy) {
+        if ("callback".equals(name)) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                return new AsyncEngine(fps, muxer, converter, stagingBuffer,
+                    inputQueueDepth, inputQueueBytes, overflowPolicy);
             }
+            Log.w(TAG, "callback engine requires API 23. using pipelined engine");
         }
-
-        // Increment frame index
-        mAudioFrameIdx++;
+        return new PipelinedEngine(fps, muxer, converter, stagingBuffer,
+            inputQueueDepth, inputQueueBytes, overflowPolicy, MUX_QUEUE_DEPTH);
     }
 
-    private boolean isColorFormatSupported(String mimeType, int desiredColorFormat) {
-        MediaCodecInfo codecInfo = getCodecInfo(mimeType);
-        if (codecInfo == null) {
-            return false;
-        }
-
-        MediaCodecInfo.CodecCapabilities capabilities = codecInfo.getCapabilitiesForType(mimeType);
-        for (int colorFormat : capabilities.colorFormats) {
-            if (colorFormat == desiredColorFormat) {
-                return true;
+    /**
+     * The muxer for one output file, for a dart ContainerFormat name.
+     * "mp4" uses MediaMuxer, which writes vp9 to webm.
+     * 'videoMimeType' is null without video.
+     */
+    private static Muxer createMuxer(String container, String filepath, String audioFilepath,
+                                     String videoMimeType, boolean hasAudio, int fragmentDurationMs) throws IOException {
+        boolean hasVideo = videoMimeType != null;
+        if ("fragmentedMp4".equals(container)) {
+            Log.i(TAG, "calling new FragmentedMp4Muxer()");
+            return new FragmentedMp4Muxer(new FileOutputStream(filepath).getChannel(), fragmentDurationMs * 1000L);
+        } else if ("elementary".equals(container)) {
+            // video to filepath. audio too if there is no video, else next to it
+            if (hasVideo && hasAudio && audioFilepath == null) {
+                audioFilepath = filepath + ".aac";
             }
+            Log.i(TAG, "calling new ElementaryStreamMuxer()");
+            return new ElementaryStreamMuxer(
+                hasVideo ? new FileOutputStream(filepath).getChannel() : null,
+                hasAudio ? new FileOutputStream(hasVideo ? audioFilepath : filepath).getChannel() : null);
         }
-
-        return false;
+        int outputFormat = MediaFormat.MIMETYPE_VIDEO_VP9.equals(videoMimeType) ?
+            MediaMuxer.OutputFormat.MUXER_OUTPUT_WEBM :
+            MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4;
+        Log.i(TAG, "calling new MediaMuxer()");
+        return new MediaMuxerAdapter(filepath, outputFormat);
     }
 
-    private boolean isAudioFormatSupported(String mimeType, int sampleRate, int profile) {
-        MediaCodecInfo codecInfo = getCodecInfo(mimeType);
-        if (codecInfo == null) {
-            return false;
+    // "rgba" (default), "bgra", "i420", "nv12" or "nv21"
+    private static YuvConverter.InputFormat inputFormat(String name) {
+        if (name == null) {
+            return YuvConverter.InputFormat.RGBA;
         }
+        return YuvConverter.InputFormat.valueOf(name.toUpperCase(Locale.ROOT));
+    }
 
-        MediaCodecInfo.CodecCapabilities capabilities = codecInfo.getCapabilitiesForType(mimeType);
-
-        // Check if sample rate is supported
-        boolean isSampleRateSupported = false;
-        for (int rate : capabilities.getAudioCapabilities().getSupportedSampleRates()) {
-            if (rate == sampleRate) {
-                isSampleRateSupported = true;
-                break;
-            }
+    // "bt601", "bt709", or null for bt709 from 720p up & bt601 below
+    private static YuvConverter.ColorStandard colorStandard(String name, int width, int height) {
+        if (name == null) {
+            boolean hd = Math.max(width, height) >= 1280 || Math.min(width, height) >= 720;
+            return hd ? YuvConverter.ColorStandard.BT709 : YuvConverter.ColorStandard.BT601;
         }
+        return YuvConverter.ColorStandard.valueOf(name.toUpperCase(Locale.ROOT));
+    }
 
-        // Check if profile is supported
-        boolean isProfileSupported = (capabilities.profileLevels != null);
-        for (MediaCodecInfo.CodecProfileLevel level : capabilities.profileLevels) {
-            if (level.profile == profile) {
-                isProfileSupported = true;
-                break;
-            }
+    // "block" (default), "fail", "dropOldest" or "dropNewest"
+    private static InputQueue.OverflowPolicy overflowPolicy(String name) {
+        if ("fail".equals(name)) {
+            return InputQueue.OverflowPolicy.FAIL;
+        } else if ("dropOldest".equals(name)) {
+            return InputQueue.OverflowPolicy.DROP_OLDEST;
+        } else if ("dropNewest".equals(name)) {
+            return InputQueue.OverflowPolicy.DROP_NEWEST;
         }
-
-        return isSampleRateSupported && isProfileSupported;
+        return InputQueue.OverflowPolicy.BLOCK;
     }
 
-    private MediaCodecInfo getCodecInfo(String mimeType) {
-        MediaCodecList codecList = new MediaCodecList(MediaCodecList.ALL_CODECS);
-        for (MediaCodecInfo codecInfo : codecList.getCodecInfos()) {
-            if (!codecInfo.isEncoder()) {
-                continue;
+    // copy the chunks' samples into one file, without re-encoding. on the finisher thread
+    private static void stitch(List<String> inputs, String filepath, boolean deleteInputs,
+                               MethodChannel.Result result) {
+        try {
+            Map<String, Object> report;
+            Muxer muxer = new MediaMuxerAdapter(filepath, ChunkStitcher.outputFormat(inputs));
+            try {
+                report = new ChunkStitcher(inputs).stitch(muxer);
+            } finally {
+                muxer.release();
             }
-            String[] types = codecInfo.getSupportedTypes();
-            for (String type : types) {
-                if (type.equalsIgnoreCase(mimeType)) {
-                    return codecInfo;
+            if (deleteInputs) {
+                for (String input : inputs) {
+                    if (!new File(input).delete()) {
+                        Log.w(TAG, "could not delete chunk " + input);
+                    }
                 }
             }
+            result.success(report);
+        } catch (Exception e) {
+            Log.e(TAG, "Error stitching " + filepath, e);
+            replyError(result, e);
         }
-        return null;
     }
 
-    private byte[] rgbaToYuv420Planar(byte[] rgba, int width, int height) {
-        final int frameSize = width * height;
-
-        int yIndex = 0;
-        int uIndex = frameSize;
-        int vIndex = frameSize + (frameSize / 4);
-
-        byte[] yuv420 = new byte[width * height * 3 / 2];
-
-        int r, g, b, y, u, v;
-        for (int j = 0; j < height; j++) {
-            for (int i = 0; i < width; i++) {
-                r = rgba[j * width * 4 + i * 4] & 0xFF;
-                g = rgba[j * width * 4 + i * 4 + 1] & 0xFF;
-                b = rgba[j * width * 4 + i * 4 + 2] & 0xFF;
-
-                // RGB to YUV formula
-                y = ((66 * r + 129 * g + 25 * b + 128) >> 8) + 16;
-                u = ((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128;
-                v = ((112 * r - 94 * g - 18 * b + 128) >> 8) + 128;
-
-                yuv420[yIndex++] = (byte) Math.max(0, Math.min(255, y));
-                if (j % 2 == 0 && i % 2 == 0) {
-                    yuv420[uIndex++] = (byte) Math.max(0, Math.min(255, u));
-                    yuv420[vIndex++] = (byte) Math.max(0, Math.min(255, v));
+    // Send STOP through the pipeline & wait for it to drain. on the finisher thread
+    private void finishSession(EncodeSession session, MethodChannel.Result result) {
+        try {
+            try {
+                session.engine.finish();
+            } catch (Exception e) {
+                session.engine.close();
+                throw e;
+            } finally {
+                Map<String, Object> stats = statsMap(session.engine);
+                if (stats != null) {
+                    mFinishedStats.put(session.id, stats);
                 }
+                // a newer session may reuse the id & be finishing too
+                mFinishing.remove(session.id, session);
             }
+            result.success(null);
+        } catch (Exception e) {
+            Log.e(TAG, "Error finishing session " + session.id, e);
+            replyError(result, e);
         }
-
-        return yuv420;
     }
 
-    private void fillImage(Image image, byte[] yuv420, int width, int height) {
-        Image.Plane[] planes = image.getPlanes();
-
-        // Fill Y plane
-        ByteBuffer yBuffer = planes[0].getBuffer();
-        int yRowStride = planes[0].getRowStride();
-        int yPixelStride = planes[0].getPixelStride();
-        int yOffset = 0;
-        for (int i = 0; i < height; i++) {
-            int yPos = i * yRowStride;
-            yBuffer.position(yPos);
-            for (int j = 0; j < width; j++) {
-                yBuffer.put(yPos + j * yPixelStride, yuv420[yOffset++]);
-            }
+    // null if the session did not collect stats
+    private Map<String, Object> getStats(int sessionId) {
+        EncodeSession session = mSessions.get(sessionId);
+        if (session == null) {
+            session = mFinishing.get(sessionId);
         }
+        if (session == null) {
+            return mFinishedStats.get(sessionId);
+        }
+        return statsMap(session.engine);
+    }
 
-        // Fill U plane
-        ByteBuffer uBuffer = planes[1].getBuffer();
-        int uRowStride = planes[1].getRowStride();
-        int uPixelStride = planes[1].getPixelStride();
-        int uHeight = height / 2;
-        int uWidth = width / 2;
-        int uOffset = width * height;
-        for (int i = 0; i < uHeight; i++) {
-            int uPos = i * uRowStride;
-            uBuffer.position(uPos);
-            for (int j = 0; j < uWidth; j++) {
-                uBuffer.put(uPos + j * uPixelStride, yuv420[uOffset++]);
-            }
+    // the engine's stats & its input pool's allocations, or null unless collecting stats
+    private static Map<String, Object> statsMap(EncodeEngine engine) {
+        EncodeStats stats = engine.stats();
+        if (stats == null) {
+            return null;
         }
+        Map<String, Object> map = stats.toMap();
+        map.put("poolAllocations", engine.inputPool().allocationCount());
+        return map;
+    }
 
-        // Fill V plane
-        ByteBuffer vBuffer = planes[2].getBuffer();
-        int vRowStride = planes[2].getRowStride();
-        int vPixelStride = planes[2].getPixelStride();
-        int vHeight = height / 2;
-        int vWidth = width / 2;
-        int vOffset = width * height + (width / 2) * (height / 2);
-        for (int i = 0; i < vHeight; i++) {
-            int vPos = i * vRowStride;
-            vBuffer.position(vPos);
-            for (int j = 0; j < vWidth; j++) {
-                vBuffer.put(vPos + j * vPixelStride, yuv420[vOffset++]);
+    // send the stats of every session that collects them, & schedule the next send
+    private void sendStats() {
+        if (mStatsSink == null) {
+            return;
+        }
+        Map<Integer, Object> event = new HashMap<>();
+        for (EncodeSession session : mSessions.values()) {
+            Map<String, Object> stats = statsMap(session.engine);
+            if (stats != null) {
+                event.put(session.id, stats);
             }
         }
+        mStatsSink.success(event);
+        mMainHandler.postDelayed(mSendStats, mStatsIntervalMs);
     }
 
-    private int getColorFormat() {
-        return MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible;
+    private void closeSession(int sessionId) throws InterruptedException {
+        EncodeSession session = mSessions.remove(sessionId);
+        if (session != null) {
+            session.engine.close();
+        }
     }
 
-    private void signalEndOfStream(MediaCodec encoder) {
-        try {
-            int inputBufferIndex = encoder.dequeueInputBuffer(-1);
-            if (inputBufferIndex >= 0) {
-                // No data, but signal end of stream through the buffer flag.
-                encoder.queueInputBuffer(inputBufferIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error signaling end of stream: ", e);
-            // Handle error
-        }
+    private EncodeSession getSession(MethodCall call) {
+        return getSession(intArgument(call, "sessionId", DEFAULT_SESSION_ID));
     }
 
-    private int expectedTrackCount() {
-        if (mAudioChannels > 0 && mWidth > 0) {
-            return 2;
-        } else {
-            return 1;
+    private EncodeSession getSession(int sessionId) {
+        EncodeSession session = mSessions.get(sessionId);
+        if (session == null) {
+            throw new IllegalStateException("session " + sessionId + " is not setup");
         }
+        return session;
     }
 
-    private void processQueues() {
-        for (int i = 0; i < 2; i++) {
-            Queue<EncodedData> queue = i == 0 ? videoQueue : audioQueue;
-            int trackIndex = i == 0 ? mVideoTrackIndex : mAudioTrackIndex;
-            while (!queue.isEmpty()) {
-                EncodedData data = queue.poll(); // Retrieve and remove the head of the queue
-                ByteBuffer byteBuffer = data.byteBuffer;
-                MediaCodec.BufferInfo bufferInfo = data.bufferInfo;
-
-                byteBuffer.position(bufferInfo.offset);
-                byteBuffer.limit(bufferInfo.offset + bufferInfo.size);
-                mMediaMuxer.writeSampleData(trackIndex, byteBuffer, bufferInfo); // Write data to the MediaMuxer
+    // max sessions at once for a dart VideoCodec name. "auto" may pick any of
+    // its candidates, so it gets the smallest of their limits
+    private int maxSessions(String codecName) {
+        if (!"auto".equals(codecName)) {
+            return maxSessionsOf(namedVideoMimeType(codecName));
+        }
+        int max = maxSessionsOf(MediaFormat.MIMETYPE_VIDEO_AVC);
+        for (String mimeType : AUTO_VIDEO_MIME_TYPES) {
+            if (!CodecIndex.get().encoders(mimeType).isEmpty()) {
+                max = Math.min(max, maxSessionsOf(mimeType));
             }
         }
+        return max;
     }
 
     /**
-     * Extracts all pending data from the specified encoder & feed it to the muxer.
-     *
-     * @param encoder The MediaCodec encoder to drain.
-     * @param trackIndex The muxer track index associated with this encoder.
-     * @param endOfStream If true, signals end-of-stream to the encoder.
+     * How many sessions with this video mime type (null for audio only) can
+     * encode at once. Every session holds its own encoder instances, so this is
+     * the smallest instance limit of the video & audio encoders we would pick.
+     * Before API 23 the limit is unknown, so 1.
      */
-    private void drainEncoder(MediaCodec encoder, boolean endOfStream) {
-        final int TIMEOUT_USEC = endOfStream ? 10000 : 0;
-        if (endOfStream) {
-            signalEndOfStream(encoder);
+    private int maxSessionsOf(String videoMimeType) {
+        String key = videoMimeType != null ? videoMimeType : "";
+        Integer cached = mMaxSessions.get(key);
+        if (cached != null) {
+            return cached;
         }
+        int max = Integer.MAX_VALUE;
+        String[] mimeTypes = videoMimeType != null ?
+            new String[] {videoMimeType, MediaFormat.MIMETYPE_AUDIO_AAC} :
+            new String[] {MediaFormat.MIMETYPE_AUDIO_AAC};
+        for (String mimeType : mimeTypes) {
+            List<CodecIndex.Codec> encoders = CodecIndex.get().encoders(mimeType);
+            if (!encoders.isEmpty()) {
+                max = Math.min(max, encoders.get(0).maxInstances);
+            }
+        }
+        max = Math.max(1, max == Integer.MAX_VALUE ? 1 : max);
+        mMaxSessions.put(key, max);
+        Log.i(TAG, "max concurrent sessions for " + (videoMimeType != null ? videoMimeType : "audio") + ": " + max);
+        return max;
+    }
 
-        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-
-        while (true) {
-            int encoderStatus = encoder.dequeueOutputBuffer(bufferInfo, TIMEOUT_USEC);
-
-            if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER)
-            {
-                if (!endOfStream) {
-                    break; // Exit the loop if not EOS
-                }
-            } 
-            else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED)
-            {
-                MediaFormat newFormat = encoder.getOutputFormat();
-                Log.i(TAG, "calling mMediaMuxer.addTrack()");
-                if (encoder == mVideoEncoder) {
-                    mVideoTrackIndex = mMediaMuxer.addTrack(newFormat);
-                } else {
-                    mAudioTrackIndex = mMediaMuxer.addTrack(newFormat);
-                }
-                mTrackCount++;
-                if (mTrackCount == expectedTrackCount()) {
-                    Log.i(TAG, "calling mMediaMuxer.start()");
-                    mMediaMuxer.start();
-                    mMuxerStarted = true;
+    /**
+     * The video mime type for a dart VideoCodec name. "auto" picks the most
+     * efficient codec with a hardware encoder for the size & frame rate,
+     * that the muxer can write. Otherwise, or if none has one, avc.
+     */
+    private static String videoMimeType(String name, String container, boolean hasAudio, int colorFormat,
+                                        int width, int height, int fps) {
+        if ("auto".equals(name)) {
+            for (String mimeType : AUTO_VIDEO_MIME_TYPES) {
+                if (checkVideoMimeType(mimeType, container, hasAudio) == null &&
+                    CodecIndex.get().findHardwareVideoEncoder(mimeType, colorFormat, width, height, fps) != null) {
+                    Log.i(TAG, "auto video codec: " + mimeType);
+                    return mimeType;
                 }
             }
-            else if (encoderStatus < 0)
-            {
-                // Ignore unexpected status.
-                Log.e(TAG, "encoderStatus < 0");
-            } 
-            else 
-            {
-                ByteBuffer encodedData = encoder.getOutputBuffer(encoderStatus);
-                if (encodedData == null) {
-                    throw new RuntimeException("encoderOutputBuffer " + encoderStatus + " was null");
-                }
+        }
+        return MediaFormat.MIMETYPE_VIDEO_AVC;
+    }
 
-                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                    // Ignore codec config data.
-                    bufferInfo.size = 0;
-                }
+    // the video mime type for a dart VideoCodec name other than "auto". avc by default
+    private static String namedVideoMimeType(String name) {
+        if ("hevc".equals(name)) {
+            return MediaFormat.MIMETYPE_VIDEO_HEVC;
+        } else if ("vp9".equals(name)) {
+            return MediaFormat.MIMETYPE_VIDEO_VP9;
+        } else if ("av1".equals(name)) {
+            return MediaFormat.MIMETYPE_VIDEO_AV1;
+        }
+        return MediaFormat.MIMETYPE_VIDEO_AVC;
+    }
 
-                if (bufferInfo.size != 0) {
-                    EncodedData data = new EncodedData(encodedData, bufferInfo);
-                    if (encoder == mVideoEncoder) {
-                        videoQueue.add(data);
-                    } else {
-                        audioQueue.add(data);
-                    }
-                    if (mMuxerStarted) {
-                        processQueues();
-                    }
-                }
+    /**
+     * Why the video codec cannot be used, or null if it can.
+     * MediaMuxer writes hevc to mp4 from API 24 & av1 from API 34.
+     * vp9 is only written to webm, which cannot hold our aac audio.
+     * Other containers are written by our own muxers, for avc & hevc only.
+     */
+    private static String checkVideoMimeType(String mimeType, String container, boolean hasAudio) {
+        if (CodecIndex.get().encoders(mimeType).isEmpty()) {
+            return "no " + mimeType + " encoder on this device";
+        }
+        if (!"mp4".equals(container)) {
+            boolean supported = MediaFormat.MIMETYPE_VIDEO_AVC.equals(mimeType) ||
+                MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mimeType);
+            return supported ? null : container + " supports avc & hevc only";
+        }
+        if (MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mimeType) && Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return "writing hevc requires API 24";
+        }
+        if (MediaFormat.MIMETYPE_VIDEO_AV1.equals(mimeType) && Build.VERSION.SDK_INT < 34) {
+            return "writing av1 requires API 34";
+        }
+        if (MediaFormat.MIMETYPE_VIDEO_VP9.equals(mimeType) && hasAudio) {
+            return "vp9 is written to webm, which does not support aac audio";
+        }
+        return null;
+    }
 
-                encoder.releaseOutputBuffer(encoderStatus, false);
+    // read an optional int argument
+    private static int intArgument(MethodCall call, String key, int defaultValue) {
+        Integer value = call.argument(key);
+        return value != null ? value : defaultValue;
+    }
 
-                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                    break; // Break out of the loop if EOS is reached.
-                }
-            }
-        }
+    // read an optional string argument
+    private static String stringArgument(MethodCall call, String key, String defaultValue) {
+        String value = call.argument(key);
+        return value != null ? value : defaultValue;
+    }
+
+    private int getColorFormat() {
+        return MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible;
     }
 }
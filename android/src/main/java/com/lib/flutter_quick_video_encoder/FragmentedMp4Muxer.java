@@ -0,0 +1,687 @@
+package com.lib.flutter_quick_video_encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes fragmented MP4 (CMAF style) as samples arrive, instead of one moov
+ * atom at the end like MediaMuxer.
+ *
+ * start() writes ftyp & an empty moov. Samples are then buffered & written as
+ * moof/mdat fragments of about 'fragmentDurationUs', each starting at a video
+ * key frame. Everything written so far is playable, so the file survives a
+ * crash & can be uploaded while encoding continues.
+ *
+ * Supports avc & hevc video, & aac audio. Samples of a track must arrive in
+ * presentation order, so B frames are not supported.
+ */
+class FragmentedMp4Muxer implements Muxer {
+    private static final String TAG = "[FQVE-Android]";
+
+    private static final int VIDEO_TIMESCALE = 90000;
+
+    // trun sample flags
+    private static final int SYNC_SAMPLE = 0x02000000;
+    private static final int NON_SYNC_SAMPLE = 0x01010000;
+
+    private final WritableByteChannel mChannel;
+    private final long mFragmentDurationUs;
+
+    private final List<Track> mTracks = new ArrayList<>();
+    // video if there is one. fragments are cut on its key frames
+    private Track mPrimary;
+    private long mFragmentStartUs = -1;
+    private int mSequence;
+    private boolean mStarted;
+
+    // one track's format & the samples of the current fragment
+    private static class Track {
+        final int id;
+        final MediaFormat format;
+        final String mimeType;
+        final boolean isVideo;
+        final int timescale;
+
+        ByteBuffer data = ByteBuffer.allocate(64 * 1024);
+        long[] ticks = new long[64];
+        int[] sizes = new int[64];
+        boolean[] sync = new boolean[64];
+        int count;
+
+        // duration of the last sample written, for the very last one
+        long lastDuration;
+
+        Track(int id, MediaFormat format) {
+            this.id = id;
+            this.format = format;
+            mimeType = format.getString(MediaFormat.KEY_MIME);
+            isVideo = mimeType.startsWith("video/");
+            timescale = isVideo ? VIDEO_TIMESCALE : format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            lastDuration = isVideo ? VIDEO_TIMESCALE / 30 : AudioPacker.SAMPLES_PER_FRAME;
+        }
+
+        long toTicks(long us) {
+            return (us * timescale + 500000) / 1000000;
+        }
+
+        void add(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+            long t = toTicks(info.presentationTimeUs);
+            if (count > 0 && t < ticks[count - 1]) {
+                throw new IllegalStateException("fragmented mp4 needs samples in presentation order. " +
+                    "B frames are not supported");
+            }
+            if (count == ticks.length) {
+                int capacity = 2 * count;
+                ticks = Arrays.copyOf(ticks, capacity);
+                sizes = Arrays.copyOf(sizes, capacity);
+                sync = Arrays.copyOf(sync, capacity);
+            }
+            buffer.position(info.offset);
+            buffer.limit(info.offset + info.size);
+            int size;
+            if (isVideo) {
+                // encoders output start codes. mp4 wants lengths, which can take 1 more byte per nal
+                while ((size = NalUnits.toLengthPrefixed(buffer, data)) < 0) {
+                    grow(info.size + info.size / 3 + 4);
+                }
+            } else {
+                if (data.remaining() < info.size) {
+                    grow(info.size);
+                }
+                size = info.size;
+                data.put(buffer);
+            }
+            ticks[count] = t;
+            sizes[count] = size;
+            sync[count] = !isVideo || (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+            count++;
+        }
+
+        private void grow(int needed) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(2 * data.capacity(), data.position() + needed));
+            data.flip();
+            grown.put(data);
+            data = grown;
+        }
+
+        // samples whose duration is known: all if the next sample's time is known, else all but the last
+        int ready(long nextTicks, boolean last) {
+            return nextTicks >= 0 || last ? count : Math.max(0, count - 1);
+        }
+
+        long duration(int i, long nextTicks) {
+            if (i + 1 < count) {
+                return ticks[i + 1] - ticks[i];
+            }
+            return nextTicks >= 0 ? nextTicks - ticks[i] : lastDuration;
+        }
+
+        int bytes(int n) {
+            int total = 0;
+            for (int i = 0; i < n; i++) {
+                total += sizes[i];
+            }
+            return total;
+        }
+
+        // drop the first n samples, keeping the rest for the next fragment
+        void remove(int n) {
+            int bytes = bytes(n);
+            data.flip();
+            data.position(bytes);
+            data.compact();
+            System.arraycopy(ticks, n, ticks, 0, count - n);
+            System.arraycopy(sizes, n, sizes, 0, count - n);
+            System.arraycopy(sync, n, sync, 0, count - n);
+            count -= n;
+        }
+    }
+
+    /**
+     * @param channel where the file is written, e.g. a FileChannel. closed by release()
+     * @param fragmentDurationUs target fragment duration. fragments start at key frames, so can be longer
+     */
+    FragmentedMp4Muxer(WritableByteChannel channel, long fragmentDurationUs) {
+        mChannel = channel;
+        mFragmentDurationUs = fragmentDurationUs;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        if (mStarted) {
+            throw new IllegalStateException("tracks must be added before start()");
+        }
+        Track track = new Track(mTracks.size() + 1, format);
+        String mime = track.mimeType;
+        if (!MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime) &&
+            !MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mime) &&
+            !MediaFormat.MIMETYPE_AUDIO_AAC.equals(mime)) {
+            throw new IllegalArgumentException("fragmented mp4 does not support " + mime);
+        }
+        mTracks.add(track);
+        if (track.isVideo || mPrimary == null) {
+            mPrimary = track;
+        }
+        return mTracks.size() - 1;
+    }
+
+    @Override
+    public void start() throws IOException {
+        mStarted = true;
+        Boxes boxes = new Boxes();
+        writeFtyp(boxes);
+        writeMoov(boxes);
+        write(boxes.toBuffer());
+    }
+
+    @Override
+    public void writeSampleData(int index, ByteBuffer buffer, MediaCodec.BufferInfo info) throws IOException {
+        Track track = mTracks.get(index);
+        boolean isSync = !track.isVideo || (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+
+        // a new fragment starts at the primary track's sync sample, once the current one is long enough
+        if (track == mPrimary && isSync) {
+            if (mFragmentStartUs < 0) {
+                mFragmentStartUs = info.presentationTimeUs;
+            } else if (info.presentationTimeUs - mFragmentStartUs >= mFragmentDurationUs) {
+                writeFragment(track.toTicks(info.presentationTimeUs), false);
+                mFragmentStartUs = info.presentationTimeUs;
+            }
+        }
+        track.add(buffer, info);
+    }
+
+    @Override
+    public void stop() throws IOException {
+        writeFragment(-1, true);
+    }
+
+    @Override
+    public void release() {
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing fragmented mp4", e);
+        }
+    }
+
+    ////////////////////////////
+    // fragments
+
+    // 'nextPrimaryTicks' is the time of the primary track's next sample, or -1
+    private void writeFragment(long nextPrimaryTicks, boolean last) throws IOException {
+        int[] ready = new int[mTracks.size()];
+        int total = 0;
+        for (int i = 0; i < mTracks.size(); i++) {
+            Track track = mTracks.get(i);
+            ready[i] = track.ready(track == mPrimary ? nextPrimaryTicks : -1, last);
+            total += ready[i];
+        }
+        if (total == 0) {
+            return;
+        }
+
+        // moof, with each trun's data offset patched once the moof size is known
+        Boxes moof = new Boxes();
+        moof.begin("moof");
+        moof.beginFull("mfhd", 0, 0);
+        moof.int32(++mSequence);
+        moof.end();
+        int[] dataOffsetPos = new int[mTracks.size()];
+        for (int i = 0; i < mTracks.size(); i++) {
+            Track track = mTracks.get(i);
+            int n = ready[i];
+            if (n == 0) {
+                continue;
+            }
+            long nextTicks = track == mPrimary ? nextPrimaryTicks : -1;
+            moof.begin("traf");
+            // default-base-is-moof
+            moof.beginFull("tfhd", 0, 0x020000);
+            moof.int32(track.id);
+            moof.end();
+            moof.beginFull("tfdt", 1, 0);
+            moof.int64(track.ticks[0]);
+            moof.end();
+            // data offset, sample duration, size & flags
+            moof.beginFull("trun", 0, 0x000701);
+            moof.int32(n);
+            dataOffsetPos[i] = moof.position();
+            moof.int32(0);
+            for (int s = 0; s < n; s++) {
+                long duration = track.duration(s, nextTicks);
+                moof.int32((int) duration);
+                moof.int32(track.sizes[s]);
+                moof.int32(track.sync[s] ? SYNC_SAMPLE : NON_SYNC_SAMPLE);
+                track.lastDuration = duration;
+            }
+            moof.end();
+            moof.end();
+        }
+        moof.end();
+
+        // mdat holds each track's samples back to back
+        int offset = moof.position() + 8;
+        long mdatSize = 8;
+        for (int i = 0; i < mTracks.size(); i++) {
+            if (ready[i] == 0) {
+                continue;
+            }
+            moof.patchInt32(dataOffsetPos[i], offset);
+            int bytes = mTracks.get(i).bytes(ready[i]);
+            offset += bytes;
+            mdatSize += bytes;
+        }
+        moof.int32((int) mdatSize);
+        moof.fourcc("mdat");
+        write(moof.toBuffer());
+
+        for (int i = 0; i < mTracks.size(); i++) {
+            if (ready[i] == 0) {
+                continue;
+            }
+            Track track = mTracks.get(i);
+            ByteBuffer data = track.data.duplicate();
+            data.flip();
+            data.limit(track.bytes(ready[i]));
+            write(data);
+            track.remove(ready[i]);
+        }
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+    }
+
+    ////////////////////////////
+    // header
+
+    private void writeFtyp(Boxes b) {
+        b.begin("ftyp");
+        b.fourcc("iso6");
+        b.int32(0);
+        b.fourcc("iso6");
+        b.fourcc("cmfc");
+        b.fourcc("isom");
+        b.fourcc("mp41");
+        b.end();
+    }
+
+    private void writeMoov(Boxes b) {
+        b.begin("moov");
+
+        b.beginFull("mvhd", 0, 0);
+        b.int32(0); // creation time
+        b.int32(0); // modification time
+        b.int32(1000); // timescale
+        b.int32(0); // duration, unknown
+        b.int32(0x00010000); // rate
+        b.int16(0x0100); // volume
+        b.zeros(10);
+        writeMatrix(b);
+        b.zeros(24);
+        b.int32(mTracks.size() + 1); // next track id
+        b.end();
+
+        for (Track track : mTracks) {
+            writeTrak(b, track);
+        }
+
+        b.begin("mvex");
+        for (Track track : mTracks) {
+            b.beginFull("trex", 0, 0);
+            b.int32(track.id);
+            b.int32(1); // sample description index
+            b.int32(0); // duration
+            b.int32(0); // size
+            b.int32(0); // flags
+            b.end();
+        }
+        b.end();
+
+        b.end();
+    }
+
+    private void writeTrak(Boxes b, Track track) {
+        b.begin("trak");
+
+        // enabled & in movie
+        b.beginFull("tkhd", 0, 3);
+        b.int32(0);
+        b.int32(0);
+        b.int32(track.id);
+        b.int32(0);
+        b.int32(0); // duration, unknown
+        b.zeros(8);
+        b.int16(0); // layer
+        b.int16(0); // alternate group
+        b.int16(track.isVideo ? 0 : 0x0100); // volume
+        b.int16(0);
+        writeMatrix(b);
+        b.int32(track.isVideo ? track.format.getInteger(MediaFormat.KEY_WIDTH) << 16 : 0);
+        b.int32(track.isVideo ? track.format.getInteger(MediaFormat.KEY_HEIGHT) << 16 : 0);
+        b.end();
+
+        b.begin("mdia");
+        b.beginFull("mdhd", 0, 0);
+        b.int32(0);
+        b.int32(0);
+        b.int32(track.timescale);
+        b.int32(0);
+        b.int16(0x55c4); // "und"
+        b.int16(0);
+        b.end();
+
+        b.beginFull("hdlr", 0, 0);
+        b.int32(0);
+        b.fourcc(track.isVideo ? "vide" : "soun");
+        b.zeros(12);
+        b.bytes((track.isVideo ? "VideoHandler" : "SoundHandler").getBytes());
+        b.int8(0);
+        b.end();
+
+        b.begin("minf");
+        if (track.isVideo) {
+            b.beginFull("vmhd", 0, 1);
+            b.zeros(8);
+            b.end();
+        } else {
+            b.beginFull("smhd", 0, 0);
+            b.zeros(4);
+            b.end();
+        }
+        b.begin("dinf");
+        b.beginFull("dref", 0, 0);
+        b.int32(1);
+        // media is in this file
+        b.beginFull("url ", 0, 1);
+        b.end();
+        b.end();
+        b.end();
+
+        // samples are described by the fragments, so the tables are empty
+        b.begin("stbl");
+        b.beginFull("stsd", 0, 0);
+        b.int32(1);
+        if (track.isVideo) {
+            writeVisualSampleEntry(b, track);
+        } else {
+            writeAudioSampleEntry(b, track);
+        }
+        b.end();
+        for (String type : new String[] {"stts", "stsc", "stco"}) {
+            b.beginFull(type, 0, 0);
+            b.int32(0);
+            b.end();
+        }
+        b.beginFull("stsz", 0, 0);
+        b.int32(0);
+        b.int32(0);
+        b.end();
+        b.end();
+
+        b.end(); // minf
+        b.end(); // mdia
+        b.end(); // trak
+    }
+
+    private void writeVisualSampleEntry(Boxes b, Track track) {
+        boolean hevc = MediaFormat.MIMETYPE_VIDEO_HEVC.equals(track.mimeType);
+        b.begin(hevc ? "hvc1" : "avc1");
+        b.zeros(6);
+        b.int16(1); // data reference index
+        b.zeros(16);
+        b.int16(track.format.getInteger(MediaFormat.KEY_WIDTH));
+        b.int16(track.format.getInteger(MediaFormat.KEY_HEIGHT));
+        b.int32(0x00480000); // 72 dpi
+        b.int32(0x00480000);
+        b.int32(0);
+        b.int16(1); // frame count
+        b.zeros(32); // compressor name
+        b.int16(0x0018); // depth
+        b.int16(-1);
+
+        List<byte[]> nalUnits = NalUnits.split(track.format.getByteBuffer("csd-0"), track.format.getByteBuffer("csd-1"));
+        if (hevc) {
+            writeHvcC(b, nalUnits);
+        } else {
+            writeAvcC(b, nalUnits);
+        }
+        b.end();
+    }
+
+    private static void writeAvcC(Boxes b, List<byte[]> nalUnits) {
+        List<byte[]> sps = new ArrayList<>();
+        List<byte[]> pps = new ArrayList<>();
+        for (byte[] nal : nalUnits) {
+            int type = nal[0] & 0x1f;
+            if (type == 7) {
+                sps.add(nal);
+            } else if (type == 8) {
+                pps.add(nal);
+            }
+        }
+        if (sps.isEmpty()) {
+            throw new IllegalStateException("avc output format has no SPS");
+        }
+        byte[] first = sps.get(0);
+        int profile = first[1] & 0xff;
+
+        b.begin("avcC");
+        b.int8(1);
+        b.int8(profile);
+        b.int8(first[2] & 0xff);
+        b.int8(first[3] & 0xff);
+        b.int8(0xff); // 4 byte lengths
+        b.int8(0xe0 | sps.size());
+        for (byte[] nal : sps) {
+            b.int16(nal.length);
+            b.bytes(nal);
+        }
+        b.int8(pps.size());
+        for (byte[] nal : pps) {
+            b.int16(nal.length);
+            b.bytes(nal);
+        }
+        if (profile == 100 || profile == 110 || profile == 122 || profile == 144) {
+            b.int8(0xfd); // 4:2:0
+            b.int8(0xf8); // 8 bit luma
+            b.int8(0xf8); // 8 bit chroma
+            b.int8(0);
+        }
+        b.end();
+    }
+
+    private static void writeHvcC(Boxes b, List<byte[]> nalUnits) {
+        List<List<byte[]>> arrays = new ArrayList<>();
+        int[] types = {32, 33, 34}; // VPS, SPS, PPS
+        for (int type : types) {
+            List<byte[]> array = new ArrayList<>();
+            for (byte[] nal : nalUnits) {
+                if (((nal[0] >> 1) & 0x3f) == type) {
+                    array.add(nal);
+                }
+            }
+            arrays.add(array);
+        }
+        if (arrays.get(1).isEmpty()) {
+            throw new IllegalStateException("hevc output format has no SPS");
+        }
+
+        // general profile, tier & level: 12 bytes after the SPS nal header & its first byte
+        byte[] sps = NalUnits.unescape(arrays.get(1).get(0));
+        byte[] ptl = new byte[12];
+        System.arraycopy(sps, 3, ptl, 0, 12);
+
+        b.begin("hvcC");
+        b.int8(1);
+        b.bytes(ptl);
+        b.int16(0xf000); // min spatial segmentation
+        b.int8(0xfc); // parallelism
+        b.int8(0xfd); // 4:2:0
+        b.int8(0xf8); // 8 bit luma
+        b.int8(0xf8); // 8 bit chroma
+        b.int16(0); // avg frame rate
+        b.int8(0x0f); // 1 temporal layer, nested, 4 byte lengths
+        int count = 0;
+        for (List<byte[]> array : arrays) {
+            count += array.isEmpty() ? 0 : 1;
+        }
+        b.int8(count);
+        for (int i = 0; i < types.length; i++) {
+            List<byte[]> array = arrays.get(i);
+            if (array.isEmpty()) {
+                continue;
+            }
+            b.int8(0x80 | types[i]);
+            b.int16(array.size());
+            for (byte[] nal : array) {
+                b.int16(nal.length);
+                b.bytes(nal);
+            }
+        }
+        b.end();
+    }
+
+    private void writeAudioSampleEntry(Boxes b, Track track) {
+        int channels = track.format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        ByteBuffer csd = track.format.getByteBuffer("csd-0").duplicate();
+        byte[] config = new byte[csd.remaining()];
+        csd.get(config);
+
+        b.begin("mp4a");
+        b.zeros(6);
+        b.int16(1); // data reference index
+        b.zeros(8);
+        b.int16(channels);
+        b.int16(16); // sample size
+        b.int32(0);
+        b.int32(Math.min(track.timescale, 0xffff) << 16);
+
+        // ES descriptor > decoder config > decoder specific info (the AudioSpecificConfig)
+        b.beginFull("esds", 0, 0);
+        b.int8(0x03);
+        b.int8(3 + (2 + 13 + 2 + config.length) + 3);
+        b.int16(track.id);
+        b.int8(0);
+        b.int8(0x04);
+        b.int8(13 + 2 + config.length);
+        b.int8(0x40); // aac
+        b.int8(0x15); // audio stream
+        b.zeros(3); // buffer size
+        int bitrate = track.format.containsKey(MediaFormat.KEY_BIT_RATE) ?
+            track.format.getInteger(MediaFormat.KEY_BIT_RATE) : 0;
+        b.int32(bitrate);
+        b.int32(bitrate);
+        b.int8(0x05);
+        b.int8(config.length);
+        b.bytes(config);
+        b.int8(0x06);
+        b.int8(1);
+        b.int8(0x02);
+        b.end();
+
+        b.end();
+    }
+
+    private static void writeMatrix(Boxes b) {
+        int[] unity = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+        for (int v : unity) {
+            b.int32(v);
+        }
+    }
+
+    // builds big endian boxes in a growable array. begin() & end() nest
+    private static class Boxes {
+        private byte[] mBuf = new byte[1024];
+        private int mPos;
+        private final int[] mStarts = new int[16];
+        private int mDepth;
+
+        void begin(String type) {
+            mStarts[mDepth++] = mPos;
+            int32(0);
+            fourcc(type);
+        }
+
+        void beginFull(String type, int version, int flags) {
+            begin(type);
+            int32((version << 24) | flags);
+        }
+
+        // patch the size of the innermost open box
+        void end() {
+            int start = mStarts[--mDepth];
+            patchInt32(start, mPos - start);
+        }
+
+        int position() {
+            return mPos;
+        }
+
+        void int8(int v) {
+            ensure(1);
+            mBuf[mPos++] = (byte) v;
+        }
+
+        void int16(int v) {
+            int8(v >> 8);
+            int8(v);
+        }
+
+        void int32(int v) {
+            int16(v >> 16);
+            int16(v);
+        }
+
+        void int64(long v) {
+            int32((int) (v >> 32));
+            int32((int) v);
+        }
+
+        void fourcc(String type) {
+            for (int i = 0; i < 4; i++) {
+                int8(type.charAt(i));
+            }
+        }
+
+        void zeros(int n) {
+            ensure(n);
+            Arrays.fill(mBuf, mPos, mPos + n, (byte) 0);
+            mPos += n;
+        }
+
+        void bytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, mBuf, mPos, bytes.length);
+            mPos += bytes.length;
+        }
+
+        void patchInt32(int at, int v) {
+            mBuf[at] = (byte) (v >> 24);
+            mBuf[at + 1] = (byte) (v >> 16);
+            mBuf[at + 2] = (byte) (v >> 8);
+            mBuf[at + 3] = (byte) v;
+        }
+
+        ByteBuffer toBuffer() {
+            return ByteBuffer.wrap(mBuf, 0, mPos);
+        }
+
+        private void ensure(int n) {
+            if (mPos + n > mBuf.length) {
+                mBuf = Arrays.copyOf(mBuf, Math.max(2 * mBuf.length, mPos + n));
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.lib.flutter_quick_video_encoder;
+
+class InputData {
+    enum DataType { VIDEO, AUDIO, STOP }
+    public static final InputData STOP = new InputData(DataType.STOP, null);
+    public DataType type;
+    public byte[] data;
+
+    // number of valid bytes in data
+    public int length;
+
+    // caller supplied presentation time, or -1 to derive it from the frame index
+    public long ptsUs = -1;
+
+    // pooled buffer owned by this entry, reused across frames
+    public byte[] frameBuffer;
+
+    public InputData(DataType type, byte[] frameBuffer) {
+        this.type = type;
+        this.data = frameBuffer;
+        this.length = frameBuffer != null ? frameBuffer.length : 0;
+        this.frameBuffer = frameBuffer;
+    }
+}
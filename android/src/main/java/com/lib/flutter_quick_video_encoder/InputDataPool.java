@@ -0,0 +1,77 @@
+package com.lib.flutter_quick_video_encoder;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of recycled InputData entries.
+ *
+ * Each entry owns a frame buffer, allocated on first use & sized to the frame,
+ * so once the pool has warmed up the encode loop does not allocate. acquire()
+ * never blocks: when every entry is in use it creates an extra one, which is
+ * dropped again on release. Flow control is up to the input queues.
+ */
+class InputDataPool {
+    private final BlockingQueue<InputData> free;
+    private final int capacity;
+
+    // total allocations made by the pool (entries + frame buffers).
+    // stays flat once the pool is warm. acquired from any thread
+    private final AtomicLong allocations = new AtomicLong();
+
+    InputDataPool(int capacity) {
+        this.capacity = capacity;
+        this.free = new ArrayBlockingQueue<>(capacity);
+    }
+
+    InputData acquire(InputData.DataType type) {
+        InputData inputData = free.poll();
+        if (inputData == null) {
+            inputData = create();
+        }
+        inputData.type = type;
+        inputData.ptsUs = -1;
+        return inputData;
+    }
+
+    /**
+     * Acquire an entry whose frame buffer holds at least 'size' bytes.
+     * The buffer only grows when a caller sends a larger payload than before.
+     */
+    InputData acquire(InputData.DataType type, int size) {
+        InputData inputData = acquire(type);
+        if (inputData.frameBuffer == null || inputData.frameBuffer.length < size) {
+            inputData.frameBuffer = new byte[size];
+            allocations.incrementAndGet();
+        }
+        inputData.data = inputData.frameBuffer;
+        inputData.length = size;
+        return inputData;
+    }
+
+    void release(InputData inputData) {
+        if (inputData == null || inputData.type == InputData.DataType.STOP) {
+            return;
+        }
+        // drop reference to caller owned data
+        if (inputData.data != inputData.frameBuffer) {
+            inputData.data = null;
+        }
+        // an extra entry is dropped if the pool is full
+        free.offer(inputData);
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    long allocationCount() {
+        return allocations.get();
+    }
+
+    private InputData create() {
+        allocations.incrementAndGet();
+        return new InputData(InputData.DataType.VIDEO, null);
+    }
+}
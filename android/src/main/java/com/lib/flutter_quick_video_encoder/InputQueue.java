@@ -0,0 +1,302 @@
+package com.lib.flutter_quick_video_encoder;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One track's frames waiting to be encoded, bounded by a frame count and
+ * optionally a byte count.
+ *
+ * offer() never blocks the calling thread. When the queue is full the
+ * OverflowPolicy decides: BLOCK parks the frame & tells the caller once it
+ * is accepted, so the caller waits without holding up its thread. Parked
+ * frames are bounded by the same limits as the queue, beyond which offer()
+ * throws, so a caller that does not wait cannot grow memory without bound.
+ * The frames of one message are admitted together, see admit(), so a batch
+ * is accepted or rejected whole.
+ * STOP is always accepted, after every parked frame.
+ */
+class InputQueue {
+
+    enum OverflowPolicy {
+        // wait for room. the frame is accepted later
+        BLOCK,
+        // throw QueueFullException. the caller can retry
+        FAIL,
+        // drop the oldest queued frame to make room
+        DROP_OLDEST,
+        // drop the new frame
+        DROP_NEWEST,
+    }
+
+    // told once a frame is accepted, or with the error if it never will be
+    interface Listener {
+        void onAccepted(Exception error);
+    }
+
+    // the queue is full & the policy is FAIL. retrying later can succeed
+    static class QueueFullException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        QueueFullException(String message) {
+            super(message);
+        }
+    }
+
+    private final int mMaxFrames;
+    private final long mMaxBytes;
+    private final OverflowPolicy mPolicy;
+    private final InputDataPool mPool;
+
+    // guarded by 'this'
+    private final ArrayDeque<InputData> mQueue = new ArrayDeque<>();
+    private long mBytes;
+    private final ArrayDeque<InputData> mParked = new ArrayDeque<>();
+    private final ArrayDeque<Listener> mParkedListeners = new ArrayDeque<>();
+    private long mParkedBytes;
+    // frames of the admitted batch not offered yet. BLOCK parks them regardless of the limits
+    private int mAdmitted;
+    private long mDropped;
+    private Exception mClosedError;
+
+    /**
+     * @param maxFrames max queued frames, at least 1
+     * @param maxBytes max queued bytes, or 0 for no limit. one frame is always allowed
+     */
+    InputQueue(int maxFrames, long maxBytes, OverflowPolicy policy, InputDataPool pool) {
+        mMaxFrames = Math.max(1, maxFrames);
+        mMaxBytes = maxBytes;
+        mPolicy = policy;
+        mPool = pool;
+    }
+
+    /**
+     * Queue a frame. The listener is called once it is accepted, maybe right away
+     * on this thread, maybe later on the consumer's thread. Dropped frames count as
+     * accepted. On error the frame is returned to the pool & the error is thrown.
+     * Returns false if the frame itself was dropped.
+     */
+    boolean offer(InputData inputData, Listener listener) throws Exception {
+        boolean queued = true;
+        synchronized (this) {
+            boolean admitted = mAdmitted > 0;
+            if (admitted) {
+                mAdmitted--;
+            }
+            if (mClosedError != null) {
+                mPool.release(inputData);
+                throw mClosedError;
+            }
+            if (mParked.isEmpty() && hasRoom(inputData)) {
+                add(inputData);
+            } else {
+                switch (mPolicy) {
+                    case BLOCK:
+                        if (!admitted && !hasParkingRoom(1, inputData.length)) {
+                            mPool.release(inputData);
+                            throw new QueueFullException("input queue is full & " + mParked.size() +
+                                " frames are already waiting (" + mParkedBytes + " bytes)");
+                        }
+                        mParked.add(inputData);
+                        mParkedListeners.add(listener);
+                        mParkedBytes += inputData.length;
+                        return true;
+                    case FAIL:
+                        mPool.release(inputData);
+                        throw new QueueFullException("input queue is full (" + mQueue.size() +
+                            " frames, " + mBytes + " bytes)");
+                    case DROP_OLDEST:
+                        while (!hasRoom(inputData)) {
+                            mPool.release(remove());
+                            mDropped++;
+                        }
+                        add(inputData);
+                        break;
+                    case DROP_NEWEST:
+                        mPool.release(inputData);
+                        mDropped++;
+                        queued = false;
+                        break;
+                }
+            }
+            notifyAll();
+        }
+        listener.onAccepted(null);
+        return queued;
+    }
+
+    /**
+     * Check there is room for the next 'frames' frames of one message, 'bytes' in
+     * total, before offering any of them. Under BLOCK they are parked as one unit:
+     * a batch is admitted if nothing is waiting, or if it fits the parking limits.
+     * Under FAIL it must fit in the queue. Throws QueueFullException otherwise.
+     */
+    synchronized void checkRoom(int frames, long bytes) throws QueueFullException {
+        if (frames == 0 || mClosedError != null) {
+            // offer() throws the close error
+            return;
+        }
+        switch (mPolicy) {
+            case BLOCK:
+                if (!hasParkingRoom(frames, bytes)) {
+                    throw new QueueFullException("input queue is full & " + mParked.size() +
+                        " frames are already waiting (" + mParkedBytes + " bytes)");
+                }
+                break;
+            case FAIL:
+                if (frames > mMaxFrames || (mMaxBytes > 0 && frames > 1 && bytes > mMaxBytes)) {
+                    throw new IllegalArgumentException("a batch of " + frames + " frames (" + bytes +
+                        " bytes) never fits the input queue");
+                }
+                if (!hasRoom(frames, bytes)) {
+                    throw new QueueFullException("input queue is full (" + mQueue.size() +
+                        " frames, " + mBytes + " bytes)");
+                }
+                break;
+            default:
+                // dropping makes room
+                break;
+        }
+    }
+
+    // the next 'frames' offers were checked together by checkRoom()
+    synchronized void admit(int frames) {
+        mAdmitted = frames;
+    }
+
+    // queue STOP after everything else, regardless of the limits
+    synchronized void offerStop() {
+        if (mParked.isEmpty()) {
+            mQueue.add(InputData.STOP);
+        } else {
+            mParked.add(InputData.STOP);
+            mParkedListeners.add(error -> { });
+        }
+        notifyAll();
+    }
+
+    // wait for a frame
+    InputData take() throws InterruptedException {
+        InputData inputData;
+        List<Listener> accepted;
+        synchronized (this) {
+            while (mQueue.isEmpty()) {
+                wait();
+            }
+            inputData = remove();
+            accepted = unpark();
+        }
+        notifyAccepted(accepted, null);
+        return inputData;
+    }
+
+    // the next frame, or null
+    InputData poll() {
+        InputData inputData;
+        List<Listener> accepted;
+        synchronized (this) {
+            if (mQueue.isEmpty()) {
+                return null;
+            }
+            inputData = remove();
+            accepted = unpark();
+        }
+        notifyAccepted(accepted, null);
+        return inputData;
+    }
+
+    synchronized int size() {
+        return mQueue.size();
+    }
+
+    synchronized long droppedCount() {
+        return mDropped;
+    }
+
+    // fail every parked frame & release everything queued. later offers throw 'error'
+    void close(Exception error) {
+        List<Listener> failed = new ArrayList<>();
+        synchronized (this) {
+            if (mClosedError != null) {
+                return;
+            }
+            mClosedError = error;
+            while (!mQueue.isEmpty()) {
+                mPool.release(remove());
+            }
+            while (!mParked.isEmpty()) {
+                mPool.release(mParked.poll());
+                failed.add(mParkedListeners.poll());
+            }
+            mParkedBytes = 0;
+            mAdmitted = 0;
+        }
+        notifyAccepted(failed, error);
+    }
+
+    private boolean hasRoom(InputData inputData) {
+        return hasRoom(1, inputData.length);
+    }
+
+    // room for 'frames' more frames. a lone frame always fits an empty queue
+    private boolean hasRoom(int frames, long bytes) {
+        if (mQueue.isEmpty() && frames == 1) {
+            return true;
+        }
+        if (mQueue.size() + frames > mMaxFrames) {
+            return false;
+        }
+        return mMaxBytes <= 0 || mBytes + bytes <= mMaxBytes;
+    }
+
+    // BLOCK parks at most as many frames & bytes as the queue holds,
+    // except for one message's frames when nothing is waiting
+    private boolean hasParkingRoom(int frames, long bytes) {
+        if (mParked.isEmpty()) {
+            return true;
+        }
+        if (mParked.size() + frames > mMaxFrames) {
+            return false;
+        }
+        return mMaxBytes <= 0 || mParkedBytes + bytes <= mMaxBytes;
+    }
+
+    private void add(InputData inputData) {
+        mQueue.add(inputData);
+        mBytes += inputData.length;
+    }
+
+    private InputData remove() {
+        InputData inputData = mQueue.poll();
+        mBytes -= inputData.length;
+        return inputData;
+    }
+
+    // move parked frames into the queue, while there is room
+    private List<Listener> unpark() {
+        List<Listener> accepted = null;
+        while (!mParked.isEmpty()) {
+            InputData next = mParked.peek();
+            if (next.type != InputData.DataType.STOP && !hasRoom(next)) {
+                break;
+            }
+            add(mParked.poll());
+            mParkedBytes -= next.length;
+            if (accepted == null) {
+                accepted = new ArrayList<>();
+            }
+            accepted.add(mParkedListeners.poll());
+        }
+        return accepted;
+    }
+
+    private static void notifyAccepted(List<Listener> listeners, Exception error) {
+        if (listeners == null) {
+            return;
+        }
+        for (Listener listener : listeners) {
+            listener.onAccepted(error);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.lib.flutter_quick_video_encoder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size, lock free histogram of durations.
+ *
+ * Bucket 0 counts durations under 1us, bucket i counts [2^(i-1), 2^i) us,
+ * and the last bucket everything longer. Recording is a few atomic adds,
+ * so it can be called per frame from any thread.
+ */
+class LatencyHistogram {
+    static final int BUCKETS = 32;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSumNs = new AtomicLong();
+    private final AtomicLong mMaxNs = new AtomicLong();
+
+    void record(long nanos) {
+        long us = nanos / 1000;
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(us));
+        mBuckets.incrementAndGet(bucket);
+        mCount.incrementAndGet();
+        mSumNs.addAndGet(nanos);
+        long max;
+        while (nanos > (max = mMaxNs.get()) && !mMaxNs.compareAndSet(max, nanos)) {
+            // retry
+        }
+    }
+
+    // upper bound of a bucket, in microseconds
+    static long bucketLimitUs(int bucket) {
+        return 1L << bucket;
+    }
+
+    /**
+     * count, meanUs, maxUs, p50Us, p90Us, p99Us & buckets.
+     * Percentiles are bucket upper bounds, so at most 2x the real value,
+     * & never above the max.
+     */
+    Map<String, Object> toMap() {
+        long[] buckets = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = mBuckets.get(i);
+            total += buckets[i];
+        }
+        long count = mCount.get();
+        long maxUs = mMaxNs.get() / 1000;
+
+        Map<String, Object> map = new HashMap<>();
+        map.put("count", count);
+        map.put("meanUs", count > 0 ? mSumNs.get() / count / 1000 : 0L);
+        map.put("maxUs", maxUs);
+        map.put("p50Us", Math.min(maxUs, percentileUs(buckets, total, 0.50)));
+        map.put("p90Us", Math.min(maxUs, percentileUs(buckets, total, 0.90)));
+        map.put("p99Us", Math.min(maxUs, percentileUs(buckets, total, 0.99)));
+        List<Long> list = new ArrayList<>(BUCKETS);
+        for (long b : buckets) {
+            list.add(b);
+        }
+        map.put("buckets", list);
+        return map;
+    }
+
+    private static long percentileUs(long[] buckets, long total, double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= target) {
+                return bucketLimitUs(i);
+            }
+        }
+        return bucketLimitUs(BUCKETS - 1);
+    }
+}
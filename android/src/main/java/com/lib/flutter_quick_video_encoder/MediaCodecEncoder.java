@@ -0,0 +1,84 @@
+package com.lib.flutter_quick_video_encoder;
+
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Bundle;
+
+import java.nio.ByteBuffer;
+
+// the platform codec
+class MediaCodecEncoder implements Encoder {
+    private final MediaCodec mCodec;
+
+    MediaCodecEncoder(MediaCodec codec) {
+        mCodec = codec;
+    }
+
+    // for callback mode, see AsyncEngine
+    MediaCodec codec() {
+        return mCodec;
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return mCodec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mCodec.getInputBuffer(index);
+    }
+
+    @Override
+    public Plane[] getInputPlanes(int index) {
+        Image.Plane[] planes = mCodec.getInputImage(index).getPlanes();
+        return new Plane[] {
+            new Plane(planes[0].getBuffer(), planes[0].getRowStride(), planes[0].getPixelStride()),
+            new Plane(planes[1].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride()),
+            new Plane(planes[2].getBuffer(), planes[2].getRowStride(), planes[2].getPixelStride()),
+        };
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        return mCodec.dequeueOutputBuffer(info, timeoutUs);
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return mCodec.getOutputBuffer(index);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        mCodec.releaseOutputBuffer(index, false);
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return mCodec.getOutputFormat();
+    }
+
+    @Override
+    public void requestSyncFrame() {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        mCodec.setParameters(params);
+    }
+
+    @Override
+    public void stop() {
+        mCodec.stop();
+    }
+
+    @Override
+    public void release() {
+        mCodec.release();
+    }
+}
@@ -0,0 +1,43 @@
+package com.lib.flutter_quick_video_encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// the platform muxer. the file is only readable after stop(), which writes the moov atom
+class MediaMuxerAdapter implements Muxer {
+    private final MediaMuxer mMuxer;
+
+    // 'outputFormat' is a MediaMuxer.OutputFormat
+    MediaMuxerAdapter(String path, int outputFormat) throws IOException {
+        mMuxer = new MediaMuxer(path, outputFormat);
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        return mMuxer.addTrack(format);
+    }
+
+    @Override
+    public void start() {
+        mMuxer.start();
+    }
+
+    @Override
+    public void writeSampleData(int track, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        mMuxer.writeSampleData(track, buffer, info);
+    }
+
+    @Override
+    public void stop() {
+        mMuxer.stop();
+    }
+
+    @Override
+    public void release() {
+        mMuxer.release();
+    }
+}
@@ -0,0 +1,28 @@
+package com.lib.flutter_quick_video_encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Where encoded samples are written. Same contract as MediaMuxer:
+ * add every track, start, write samples, stop, then release.
+ * Only called from one thread at a time, see EncodeEngine.
+ */
+interface Muxer {
+
+    // returns the track index for writeSampleData
+    int addTrack(MediaFormat format);
+
+    void start() throws IOException;
+
+    void writeSampleData(int track, ByteBuffer buffer, MediaCodec.BufferInfo info) throws IOException;
+
+    // finalize the output
+    void stop() throws IOException;
+
+    // free resources. the output is not finalized unless stop() was called
+    void release();
+}
@@ -0,0 +1,117 @@
+package com.lib.flutter_quick_video_encoder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// splitting & unescaping H.264 / HEVC nal units
+class NalUnits {
+
+    /**
+     * The nal units in Annex-B buffers (e.g. csd-0 & csd-1), without start codes.
+     * A buffer without a start code is taken as one nal unit. null buffers are skipped.
+     */
+    static List<byte[]> split(ByteBuffer... buffers) {
+        List<byte[]> nalUnits = new ArrayList<>();
+        for (ByteBuffer buffer : buffers) {
+            if (buffer == null) {
+                continue;
+            }
+            ByteBuffer b = buffer.duplicate();
+            byte[] data = new byte[b.remaining()];
+            b.get(data);
+
+            int start = -1;
+            int i = 0;
+            while (i + 2 < data.length) {
+                if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+                    if (start >= 0) {
+                        addNal(nalUnits, data, start, i);
+                    }
+                    i += 3;
+                    start = i;
+                } else {
+                    i++;
+                }
+            }
+            addNal(nalUnits, data, Math.max(0, start), data.length);
+        }
+        return nalUnits;
+    }
+
+    /**
+     * Copy the Annex-B nal units of 'src' (position to limit) into 'dst', with 4 byte
+     * lengths instead of start codes, as mp4 stores them. Returns the bytes written,
+     * or -1 if 'dst' is too small, in which case nothing is written.
+     */
+    static int toLengthPrefixed(ByteBuffer src, ByteBuffer dst) {
+        int start = dst.position();
+        int end = src.limit();
+        int nal = -1;
+        int i = src.position();
+        while (i + 2 < end) {
+            if (src.get(i) == 0 && src.get(i + 1) == 0 && src.get(i + 2) == 1) {
+                if (nal >= 0 && !putNal(src, nal, i, dst)) {
+                    dst.position(start);
+                    return -1;
+                }
+                i += 3;
+                nal = i;
+            } else {
+                i++;
+            }
+        }
+        if (!putNal(src, Math.max(src.position(), nal), end, dst)) {
+            dst.position(start);
+            return -1;
+        }
+        return dst.position() - start;
+    }
+
+    // remove emulation prevention bytes (00 00 03 -> 00 00)
+    static byte[] unescape(byte[] nal) {
+        byte[] out = new byte[nal.length];
+        int n = 0;
+        int zeros = 0;
+        for (byte b : nal) {
+            if (zeros >= 2 && b == 3) {
+                zeros = 0;
+                continue;
+            }
+            zeros = b == 0 ? zeros + 1 : 0;
+            out[n++] = b;
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static boolean putNal(ByteBuffer src, int from, int to, ByteBuffer dst) {
+        while (to > from && src.get(to - 1) == 0) {
+            to--;
+        }
+        if (to == from) {
+            return true;
+        }
+        if (dst.remaining() < 4 + to - from) {
+            return false;
+        }
+        ByteBuffer nal = src.duplicate();
+        nal.limit(to);
+        nal.position(from);
+        dst.putInt(to - from);
+        dst.put(nal);
+        return true;
+    }
+
+    // nal units end before the zeros of the next start code
+    private static void addNal(List<byte[]> nalUnits, byte[] data, int start, int end) {
+        while (end > start && data[end - 1] == 0) {
+            end--;
+        }
+        if (end > start) {
+            byte[] nal = new byte[end - start];
+            System.arraycopy(data, start, nal, 0, nal.length);
+            nalUnits.add(nal);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.lib.flutter_quick_video_encoder;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Replies to an append once every one of its frames is accepted by the
+ * input queues, or with the first error.
+ *
+ * Frames may be accepted later on an encoder thread, while Flutter replies
+ * must be sent from the main thread, so replies are posted there if needed.
+ *
+ * Usage: expect() before each put, then sent() once every frame is put,
+ * or fail() if putting threw.
+ */
+abstract class PendingReply implements InputQueue.Listener {
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    // frames not yet accepted, + 1 until sent()
+    private final AtomicInteger mRemaining = new AtomicInteger(1);
+    private final AtomicBoolean mReplied = new AtomicBoolean();
+
+    // called on the main thread
+    abstract void onSuccess();
+
+    // called on the main thread
+    abstract void onError(Exception error);
+
+    void expect() {
+        mRemaining.incrementAndGet();
+    }
+
+    void sent() {
+        if (mRemaining.decrementAndGet() == 0) {
+            reply(null);
+        }
+    }
+
+    void fail(Exception error) {
+        reply(error);
+    }
+
+    @Override
+    public void onAccepted(Exception error) {
+        if (error != null) {
+            reply(error);
+        } else if (mRemaining.decrementAndGet() == 0) {
+            reply(null);
+        }
+    }
+
+    private void reply(Exception error) {
+        if (!mReplied.compareAndSet(false, true)) {
+            return;
+        }
+        Runnable send = () -> {
+            if (error == null) {
+                onSuccess();
+            } else {
+                onError(error);
+            }
+        };
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            send.run();
+        } else {
+            sMainHandler.post(send);
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package com.lib.flutter_quick_video_encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Encodes on a staged pipeline, so that conversion, encoding & muxing overlap.
+ *
+ *   channel thread  --> [video input queue] --> video feed thread --> video encoder
+ *                   --> [audio input queue] --> audio feed thread --> audio encoder
+ *
+ *   video encoder --> video drain thread --+
+ *                                          +--> [mux queue] --> mux thread --> Muxer
+ *   audio encoder --> audio drain thread --+
+ *
+ * The video feed thread converts RGBA directly into the encoder's input image
+ * (see YuvConverter), so the codec's input buffers are the queue between
+ * conversion & encoding. Drain threads hand codec output buffers to the mux
+ * thread, which writes & then releases them, so muxing never stalls the encoder.
+ *
+ * Every queue is bounded. finish() sends STOP through the input queues, each
+ * stage then drains & exits in order, and the muxer is stopped last.
+ */
+class PipelinedEngine extends EncodeEngine {
+
+    // how long blocking codec & queue calls wait before re-checking for errors
+    private static final long POLL_TIMEOUT_MS = 10;
+    private static final long POLL_TIMEOUT_USEC = POLL_TIMEOUT_MS * 1000;
+
+    // an item flowing from the drain threads to the mux thread
+    private static class MuxItem {
+        enum Kind { FORMAT, SAMPLE, END }
+        Kind kind;
+        int track;
+        MediaFormat format;
+        int bufferIndex;
+        ByteBuffer buffer;
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    }
+
+    // stage queues. the input queues live in EncodeEngine
+    private final BlockingQueue<MuxItem> mMuxQueue;
+    private final BlockingQueue<MuxItem> mFreeMuxItems;
+
+    // only touched by the mux thread
+    private int mEndedCount;
+
+    private final List<Thread> mThreads = new ArrayList<>();
+
+    /**
+     * @param muxQueueDepth max encoded samples waiting for the mux thread
+     * see EncodeEngine for the rest
+     */
+    PipelinedEngine(int fps, Muxer muxer, YuvConverter converter, SampleStagingBuffer stagingBuffer,
+                    int inputQueueDepth, long inputQueueBytes, InputQueue.OverflowPolicy overflowPolicy,
+                    int muxQueueDepth) {
+        super(fps, muxer, converter, stagingBuffer, inputQueueDepth, inputQueueBytes, overflowPolicy);
+
+        // each drain thread may hold one item while the mux queue is full
+        mMuxQueue = new ArrayBlockingQueue<>(muxQueueDepth);
+        mFreeMuxItems = new ArrayBlockingQueue<>(muxQueueDepth + 2);
+        for (int i = 0; i < muxQueueDepth + 2; i++) {
+            mFreeMuxItems.add(new MuxItem());
+        }
+    }
+
+    @Override
+    void start() {
+        if (mEncoders[VIDEO] != null) {
+            addStage("fqve-video-feed", this::runVideoFeed);
+            addStage("fqve-video-drain", () -> runDrain(VIDEO));
+        }
+        if (mEncoders[AUDIO] != null) {
+            addStage("fqve-audio-feed", this::runAudioFeed);
+            addStage("fqve-audio-drain", () -> runDrain(AUDIO));
+        }
+        addStage("fqve-mux", this::runMux);
+
+        // start once the list is complete, so stages can safely iterate it
+        for (Thread thread : mThreads) {
+            thread.start();
+        }
+    }
+
+    @Override
+    void finish() throws Exception {
+        checkError();
+        queueStop();
+        mResult.get();
+    }
+
+    @Override
+    void close() throws InterruptedException {
+        fail(new IllegalStateException("encoder was closed"));
+        for (Thread thread : mThreads) {
+            thread.join();
+        }
+        release();
+    }
+
+    ////////////////////////////
+    // stages
+
+    private interface Stage {
+        void run() throws Exception;
+    }
+
+    private void addStage(String name, Stage stage) {
+        Thread thread = new Thread(() -> {
+            try {
+                stage.run();
+            } catch (Exception e) {
+                if (!mResult.isDone()) {
+                    Log.e(TAG, "Error in " + name, e);
+                }
+                fail(e);
+            }
+        }, name);
+        mThreads.add(thread);
+    }
+
+    private void fail(Exception e) {
+        if (mResult.completeExceptionally(e)) {
+            for (Thread thread : mThreads) {
+                if (thread != Thread.currentThread()) {
+                    thread.interrupt();
+                }
+            }
+            // release queued frames & fail waiting ones
+            closeInputQueues(e);
+        }
+    }
+
+    private void runVideoFeed() throws Exception {
+        applyConversionPriority();
+        Encoder encoder = mEncoders[VIDEO];
+        while (true) {
+            InputData inputData = mInputQueues[VIDEO].take(); // Blocks if queue is empty
+            if (inputData.type == InputData.DataType.STOP) {
+                signalEndOfStream(encoder);
+                return;
+            }
+            try {
+                feedVideoEncoder(encoder, inputData);
+            } finally {
+                mInputPool.release(inputData);
+            }
+        }
+    }
+
+    private void runAudioFeed() throws Exception {
+        Encoder encoder = mEncoders[AUDIO];
+        // bytes of whole frames per input buffer. known once we have one
+        int target = mAudioPacker.frameBytes();
+        while (true) {
+            InputData inputData = mInputQueues[AUDIO].take(); // Blocks if queue is empty
+            if (inputData.type == InputData.DataType.STOP) {
+                // the last partial frame, then end of stream
+                while (mAudioPacker.available() > 0) {
+                    queuePackedAudio(encoder, dequeueInputBuffer(encoder), true);
+                }
+                signalEndOfStream(encoder);
+                return;
+            }
+            try {
+                target = feedAudioEncoder(encoder, inputData, target);
+            } finally {
+                mInputPool.release(inputData);
+            }
+        }
+    }
+
+    private void runDrain(int track) throws Exception {
+        Encoder encoder = mEncoders[track];
+        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        while (true) {
+            int encoderStatus = encoder.dequeueOutputBuffer(bufferInfo, POLL_TIMEOUT_USEC);
+
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+
+            if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER)
+            {
+                continue;
+            }
+            else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED)
+            {
+                MuxItem item = mFreeMuxItems.take();
+                item.kind = MuxItem.Kind.FORMAT;
+                item.track = track;
+                item.format = encoder.getOutputFormat();
+                mMuxQueue.put(item);
+            }
+            else if (encoderStatus < 0)
+            {
+                // Ignore unexpected status.
+                Log.e(TAG, "encoderStatus < 0");
+            }
+            else
+            {
+                ByteBuffer encodedData = encoder.getOutputBuffer(encoderStatus);
+                if (encodedData == null) {
+                    throw new RuntimeException("encoderOutputBuffer " + encoderStatus + " was null");
+                }
+
+                boolean endOfStream = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+
+                if (bufferInfo.size != 0) {
+                    // the mux thread releases the buffer, after writing it
+                    long start = stageStart();
+                    MuxItem item = mFreeMuxItems.take();
+                    item.kind = MuxItem.Kind.SAMPLE;
+                    item.track = track;
+                    item.bufferIndex = encoderStatus;
+                    item.buffer = encodedData;
+                    item.info.set(bufferInfo.offset, bufferInfo.size,
+                        bufferInfo.presentationTimeUs, bufferInfo.flags);
+                    mMuxQueue.put(item);
+                    stageEnd(EncodeStats.Stage.OUTPUT_DRAIN, start);
+                } else {
+                    encoder.releaseOutputBuffer(encoderStatus);
+                }
+
+                if (endOfStream) {
+                    MuxItem item = mFreeMuxItems.take();
+                    item.kind = MuxItem.Kind.END;
+                    item.track = track;
+                    mMuxQueue.put(item);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void runMux() throws Exception {
+        int expectedTracks = expectedTrackCount();
+
+        while (mEndedCount < expectedTracks) {
+            MuxItem item = mMuxQueue.take();
+            try {
+                switch (item.kind) {
+                    case FORMAT:
+                        onOutputFormatChanged(item.track, item.format);
+                        break;
+                    case SAMPLE:
+                        try {
+                            writeSample(item.track, item.buffer, item.info);
+                        } finally {
+                            mEncoders[item.track].releaseOutputBuffer(item.bufferIndex);
+                        }
+                        break;
+                    case END:
+                        mEndedCount++;
+                        break;
+                }
+            } finally {
+                item.format = null;
+                item.buffer = null;
+                mFreeMuxItems.put(item);
+            }
+        }
+
+        // all encoders reached end of stream, finalize the file
+        for (Thread thread : mThreads) {
+            if (thread != Thread.currentThread()) {
+                thread.join();
+            }
+        }
+        release();
+
+        // Complete successfully
+        mResult.complete(null);
+    }
+
+    ////////////////////////////
+    // feeding
+
+    // dequeue an input buffer, waking up periodically to check for errors
+    private int dequeueInputBuffer(Encoder encoder) throws InterruptedException {
+        long start = stageStart();
+        while (true) {
+            int inIdx = encoder.dequeueInputBuffer(POLL_TIMEOUT_USEC);
+            if (inIdx >= 0) {
+                stageEnd(EncodeStats.Stage.INPUT_DEQUEUE, start);
+                return inIdx;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    private void feedVideoEncoder(Encoder encoder, InputData inputData) throws Exception {
+        // Presentation time, set by put()
+        long presentationTime = inputData.ptsUs;
+
+        // Dequeue input buffer
+        int inIdx = dequeueInputBuffer(encoder);
+
+        // Convert RGBA straight into the input image & queue it
+        fillImage(encoder, inIdx, inputData.data, presentationTime);
+    }
+
+    // pack a chunk, queueing input buffers as they fill up. returns the new fill target
+    private int feedAudioEncoder(Encoder encoder, InputData inputData, int target) throws Exception {
+        mAudioPacker.startChunk(inputData.ptsUs);
+        int offset = 0;
+        while (offset < inputData.length) {
+            offset += mAudioPacker.write(inputData.data, offset, inputData.length - offset);
+            while (mAudioPacker.available() >= target) {
+                int inIdx = dequeueInputBuffer(encoder);
+                target = mAudioPacker.fillTarget(encoder.getInputBuffer(inIdx).capacity());
+                queuePackedAudio(encoder, inIdx, false);
+            }
+        }
+        return target;
+    }
+
+    private void signalEndOfStream(Encoder encoder) throws InterruptedException {
+        int inputBufferIndex = dequeueInputBuffer(encoder);
+        // No data, but signal end of stream through the buffer flag.
+        encoder.queueInputBuffer(inputBufferIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+    }
+}
@@ -0,0 +1,192 @@
+package com.lib.flutter_quick_video_encoder;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Holds encoded samples produced before the muxer has started.
+ *
+ * The muxer can only start once every track's output format is known, and one
+ * encoder can be far ahead of the other. Samples are copied into a direct-memory
+ * ring allocated on first use, with their metadata in primitive arrays, so the
+ * codec's output buffers can be released right away & memory stays bounded.
+ *
+ * Each sample is stored contiguously. A sample that does not fit at the end of
+ * the ring starts over at the beginning.
+ */
+class SampleStagingBuffer {
+    private static final String TAG = "[FQVE-Android]";
+
+    // what to do when a sample does not fit
+    enum OverflowPolicy {
+        // fail encoding
+        FAIL,
+        // drop the oldest samples. video then resumes at the next key frame
+        DROP_OLDEST,
+    }
+
+    static final int DEFAULT_CAPACITY_BYTES = 4 * 1024 * 1024;
+
+    private final int mCapacityBytes;
+    private final int mMaxSamples;
+    private final OverflowPolicy mPolicy;
+
+    // allocated on first use
+    private ByteBuffer mData;
+    private ByteBuffer mView;
+
+    // sample metadata, a ring of mMaxSamples entries
+    private final int[] mTrack;
+    private final int[] mOffset;
+    private final int[] mSize;
+    private final int[] mFlags;
+    private final long[] mPts;
+    private int mHead;
+    private int mCount;
+
+    // next free byte in mData
+    private int mWritePos;
+
+    // after dropping video, skip video until a key frame
+    private boolean mVideoNeedsKeyFrame;
+
+    private long mDroppedSamples;
+
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+    interface Sink {
+        void write(int track, ByteBuffer buffer, MediaCodec.BufferInfo info) throws IOException;
+    }
+
+    SampleStagingBuffer(int capacityBytes, OverflowPolicy policy) {
+        mCapacityBytes = capacityBytes;
+        mPolicy = policy;
+
+        // encoded samples are rarely under 64 bytes
+        mMaxSamples = Math.max(16, capacityBytes / 64);
+        mTrack = new int[mMaxSamples];
+        mOffset = new int[mMaxSamples];
+        mSize = new int[mMaxSamples];
+        mFlags = new int[mMaxSamples];
+        mPts = new long[mMaxSamples];
+    }
+
+    boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    long droppedSamples() {
+        return mDroppedSamples;
+    }
+
+    // copy a sample in. the caller keeps ownership of 'src'
+    void add(int track, ByteBuffer src, MediaCodec.BufferInfo info) {
+        int size = info.size;
+        if (size > mCapacityBytes) {
+            throw new IllegalStateException("encoded sample of " + size +
+                " bytes is larger than the staging buffer (" + mCapacityBytes + " bytes)");
+        }
+        if (mData == null) {
+            mData = ByteBuffer.allocateDirect(mCapacityBytes);
+            mView = mData.duplicate();
+        }
+
+        int pos = reserve(size);
+        while (pos < 0) {
+            if (mPolicy == OverflowPolicy.FAIL) {
+                throw new IllegalStateException("staging buffer overflow: " + mCapacityBytes +
+                    " bytes were encoded before every track's format was known");
+            }
+            dropOldest();
+            pos = reserve(size);
+        }
+
+        ByteBuffer source = src.duplicate();
+        source.limit(info.offset + size);
+        source.position(info.offset);
+        mView.limit(pos + size);
+        mView.position(pos);
+        mView.put(source);
+
+        int idx = (mHead + mCount) % mMaxSamples;
+        mTrack[idx] = track;
+        mOffset[idx] = pos;
+        mSize[idx] = size;
+        mFlags[idx] = info.flags;
+        mPts[idx] = info.presentationTimeUs;
+        mCount++;
+        mWritePos = pos + size;
+    }
+
+    // write out every staged sample, oldest first, & empty the buffer
+    void drainTo(Sink sink) throws IOException {
+        while (mCount > 0) {
+            int idx = mHead;
+            boolean isVideo = mTrack[idx] == EncodeEngine.VIDEO;
+            boolean isKeyFrame = (mFlags[idx] & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+            if (isVideo && mVideoNeedsKeyFrame && isKeyFrame) {
+                mVideoNeedsKeyFrame = false;
+            }
+            if (isVideo && mVideoNeedsKeyFrame) {
+                mDroppedSamples++;
+            } else {
+                mView.limit(mOffset[idx] + mSize[idx]);
+                mView.position(mOffset[idx]);
+                mInfo.set(mOffset[idx], mSize[idx], mPts[idx], mFlags[idx]);
+                sink.write(mTrack[idx], mView, mInfo);
+            }
+            pop();
+        }
+        if (mDroppedSamples > 0) {
+            Log.w(TAG, "staging buffer dropped " + mDroppedSamples + " samples");
+        }
+    }
+
+    // true if video was dropped & no key frame was staged after it, so the
+    // writer must keep skipping video until one arrives
+    boolean videoNeedsKeyFrame() {
+        return mVideoNeedsKeyFrame;
+    }
+
+    // byte offset where 'size' bytes fit, or -1
+    private int reserve(int size) {
+        if (mCount == mMaxSamples) {
+            return -1;
+        }
+        if (mCount == 0) {
+            return 0;
+        }
+        int readPos = mOffset[mHead];
+        boolean wrapped = mWritePos <= readPos;
+        if (wrapped) {
+            return size <= readPos - mWritePos ? mWritePos : -1;
+        }
+        if (size <= mCapacityBytes - mWritePos) {
+            return mWritePos;
+        }
+        if (size <= readPos) {
+            return 0;
+        }
+        return -1;
+    }
+
+    private void dropOldest() {
+        if (mTrack[mHead] == EncodeEngine.VIDEO) {
+            mVideoNeedsKeyFrame = true;
+        }
+        mDroppedSamples++;
+        pop();
+    }
+
+    private void pop() {
+        mHead = (mHead + 1) % mMaxSamples;
+        mCount--;
+        if (mCount == 0) {
+            mHead = 0;
+            mWritePos = 0;
+        }
+    }
+}
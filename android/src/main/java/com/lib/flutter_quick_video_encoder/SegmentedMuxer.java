@@ -0,0 +1,239 @@
+package com.lib.flutter_quick_video_encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits long recordings into segment files, each starting at a key frame.
+ *
+ * A segment ends at the first key frame after 'segmentDurationUs' or
+ * 'segmentBytes', whichever comes first. A sync frame is requested once the
+ * limit is reached, so segments stay close to the target even with a long gop.
+ *
+ * The next segment's muxer is opened with its tracks ahead of time, & only
+ * started when it takes over, since a started muxer without samples cannot be
+ * stopped or released cleanly. Finished segments are finalized on a background
+ * thread, so rolling over never waits on file io. With 'keepSegments' > 0 only
+ * the newest finished segments stay on disk, plus the one being written.
+ *
+ * Segment i of "dir/name.mp4" is "dir/name_0000i.mp4".
+ */
+class SegmentedMuxer implements Muxer {
+    private static final String TAG = "[FQVE-Android]";
+
+    // creates the muxer of one segment file
+    interface Factory {
+        Muxer create(String path) throws IOException;
+    }
+
+    private final String mFilepath;
+    private final Factory mFactory;
+    private final long mSegmentDurationUs;
+    private final long mSegmentBytes;
+    private final int mKeepSegments;
+
+    // asks the video encoder for a key frame. may be null
+    private Runnable mSyncFrameRequest;
+
+    private final List<MediaFormat> mFormats = new ArrayList<>();
+    // cut segments on this track's key frames. video if there is one
+    private int mPrimaryTrack = -1;
+
+    private Muxer mCurrent;
+    private String mCurrentPath;
+    private Muxer mNext;
+    private String mNextPath;
+    private int mNextIndex;
+
+    private long mSegmentStartUs = -1;
+    private long mSegmentSize;
+    private boolean mSyncFrameRequested;
+
+    // finalizes & deletes segments off the muxing thread
+    private final ExecutorService mCloser = Executors.newSingleThreadExecutor(r -> new Thread(r, "fqve-segments"));
+    // only touched by the closer
+    private final ArrayDeque<String> mFinishedPaths = new ArrayDeque<>();
+    private volatile IOException mCloseError;
+
+    /**
+     * @param segmentDurationUs target segment duration, or 0 for no limit
+     * @param segmentBytes target segment size, or 0 for no limit
+     * @param keepSegments finished segments to keep on disk, or 0 to keep all
+     */
+    SegmentedMuxer(String filepath, Factory factory, long segmentDurationUs, long segmentBytes, int keepSegments) {
+        mFilepath = filepath;
+        mFactory = factory;
+        mSegmentDurationUs = segmentDurationUs;
+        mSegmentBytes = segmentBytes;
+        mKeepSegments = keepSegments;
+    }
+
+    // called from the muxing thread when a segment wants to end before the next key frame
+    void setSyncFrameRequest(Runnable request) {
+        mSyncFrameRequest = request;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        if (isVideo(format) || mPrimaryTrack < 0) {
+            mPrimaryTrack = mFormats.size();
+        }
+        mFormats.add(format);
+        return mFormats.size() - 1;
+    }
+
+    @Override
+    public void start() throws IOException {
+        openNext();
+        roll();
+    }
+
+    @Override
+    public void writeSampleData(int track, ByteBuffer buffer, MediaCodec.BufferInfo info) throws IOException {
+        checkCloseError();
+        if (track == mPrimaryTrack) {
+            boolean isSync = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0 ||
+                !isVideo(mFormats.get(track));
+            if (mSegmentStartUs < 0) {
+                mSegmentStartUs = info.presentationTimeUs;
+            } else if (segmentFull(info.presentationTimeUs)) {
+                if (isSync) {
+                    roll();
+                    mSegmentStartUs = info.presentationTimeUs;
+                } else if (!mSyncFrameRequested && mSyncFrameRequest != null) {
+                    mSyncFrameRequest.run();
+                    mSyncFrameRequested = true;
+                }
+            }
+        }
+        mSegmentSize += info.size;
+        mCurrent.writeSampleData(track, buffer, info);
+    }
+
+    @Override
+    public void stop() throws IOException {
+        finishSegment(mCurrent, mCurrentPath);
+        mCurrent = null;
+        // the pre-opened segment was never started & has no samples
+        discard(mNext, mNextPath);
+        mNext = null;
+        mCloser.shutdown();
+        try {
+            mCloser.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted finalizing segments", e);
+        }
+        checkCloseError();
+    }
+
+    @Override
+    public void release() {
+        mCloser.shutdownNow();
+        try {
+            if (mCurrent != null) {
+                // a started segment without samples throws, as it cannot be stopped
+                mCurrent.release();
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Error releasing segment " + mCurrentPath, e);
+        } finally {
+            discard(mNext, mNextPath);
+        }
+    }
+
+    ////////////////////////////
+    // segments
+
+    private boolean segmentFull(long ptsUs) {
+        return (mSegmentDurationUs > 0 && ptsUs - mSegmentStartUs >= mSegmentDurationUs) ||
+               (mSegmentBytes > 0 && mSegmentSize >= mSegmentBytes);
+    }
+
+    // switch to the pre-opened segment, finalize the current one, & open the next
+    private void roll() throws IOException {
+        if (mCurrent != null) {
+            finishSegment(mCurrent, mCurrentPath);
+            Log.i(TAG, "segment done: " + mCurrentPath);
+        }
+        mNext.start();
+        mCurrent = mNext;
+        mCurrentPath = mNextPath;
+        mSegmentSize = 0;
+        mSyncFrameRequested = false;
+        openNext();
+    }
+
+    private void openNext() throws IOException {
+        mNextPath = segmentPath(mFilepath, mNextIndex++);
+        mNext = mFactory.create(mNextPath);
+        for (MediaFormat format : mFormats) {
+            mNext.addTrack(format);
+        }
+    }
+
+    private void finishSegment(Muxer muxer, String path) {
+        mCloser.execute(() -> {
+            try {
+                muxer.stop();
+            } catch (Exception e) {
+                Log.e(TAG, "Error finalizing segment " + path, e);
+                if (mCloseError == null) {
+                    mCloseError = e instanceof IOException ? (IOException) e : new IOException(e);
+                }
+            } finally {
+                muxer.release();
+            }
+            mFinishedPaths.add(path);
+            while (mKeepSegments > 0 && mFinishedPaths.size() > mKeepSegments) {
+                deleteFile(mFinishedPaths.poll());
+            }
+        });
+    }
+
+    private static void discard(Muxer muxer, String path) {
+        if (muxer != null) {
+            muxer.release();
+            deleteFile(path);
+        }
+    }
+
+    private void checkCloseError() throws IOException {
+        if (mCloseError != null) {
+            throw mCloseError;
+        }
+    }
+
+    private static void deleteFile(String path) {
+        if (!new File(path).delete()) {
+            Log.w(TAG, "could not delete segment " + path);
+        }
+    }
+
+    private static boolean isVideo(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        return mime != null && mime.startsWith("video/");
+    }
+
+    // "dir/name.mp4" -> "dir/name_00003.mp4"
+    static String segmentPath(String filepath, int index) {
+        int slash = filepath.lastIndexOf('/');
+        int dot = filepath.lastIndexOf('.');
+        if (dot <= slash) {
+            dot = filepath.length();
+        }
+        return String.format(Locale.US, "%s_%05d%s", filepath.substring(0, dot), index, filepath.substring(dot));
+    }
+}
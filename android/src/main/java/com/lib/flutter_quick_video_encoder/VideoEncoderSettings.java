@@ -0,0 +1,262 @@
+package com.lib.flutter_quick_video_encoder;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Profile, rate control & latency settings of the video encoder.
+ *
+ * Each setting is checked against the chosen codec & the API level before it
+ * is set. Settings the codec cannot honor are left to the encoder's default,
+ * & listed as fallbacks in the report setup returns.
+ */
+class VideoEncoderSettings {
+    private static final String TAG = "[FQVE-Android]";
+
+    // profile & level, from the dart ProfileLevel name. 0 means the encoder's default
+    final int profile;
+    final int level;
+    final String profileLevelName;
+
+    // "vbr", "cbr", "cq", or null for the encoder's default
+    final String bitrateMode;
+    // constant quality, for "cq". < 0 for the encoder's default
+    final int quality;
+    // seconds between key frames. 0 for every frame, < 0 for only the first
+    final float keyFrameInterval;
+    // < 0 for the encoder's default
+    final int maxBFrames;
+    // frames the encoder may hold before output. < 0 for the encoder's default
+    final int latency;
+    // 0 realtime, 1 best effort. < 0 for the encoder's default
+    final int priority;
+    // frames per second the encoder should be able to sustain.
+    // 0 for the encoder's default, infinity for as fast as the codec can go
+    final double operatingRate;
+
+    VideoEncoderSettings(String profileLevel, Map<String, Object> settings) {
+        if (settings == null) {
+            settings = new HashMap<>();
+        }
+        profileLevelName = profileLevel != null ? profileLevel : "any";
+        int[] pl = parseProfileLevel(profileLevelName);
+        profile = pl[0];
+        level = pl[1];
+        bitrateMode = (String) settings.get("bitrateMode");
+        quality = intValue(settings.get("quality"), -1);
+        keyFrameInterval = settings.get("keyFrameInterval") != null ?
+            ((Number) settings.get("keyFrameInterval")).floatValue() : 1;
+        maxBFrames = intValue(settings.get("maxBFrames"), -1);
+        latency = intValue(settings.get("latency"), -1);
+        priority = intValue(settings.get("priority"), -1);
+        operatingRate = settings.get("operatingRate") != null ?
+            ((Number) settings.get("operatingRate")).doubleValue() : 0;
+    }
+
+    /**
+     * Set every setting the codec supports on the format.
+     * Returns a report: codec, hardwareAccelerated, applied (setting to value)
+     * & fallbacks (one message per setting that was not applied as asked).
+     */
+    Map<String, Object> applyTo(MediaFormat format, CodecIndex.Codec codec, int width, int height) {
+        Map<String, Object> applied = new HashMap<>();
+        List<String> fallbacks = new ArrayList<>();
+
+        // profile & level
+        if (profile != 0) {
+            if (!MediaFormat.MIMETYPE_VIDEO_AVC.equals(codec.mimeType)) {
+                fallbacks.add("profile " + profileLevelName + " is for H.264 only. using the " +
+                    codec.mimeType + " encoder's default");
+            } else if (!codec.supportsProfile(profile)) {
+                fallbacks.add("profile " + profileLevelName + " is not supported by " + codec.name);
+            } else {
+                format.setInteger(MediaFormat.KEY_PROFILE, profile);
+                applied.put("profile", profile);
+
+                // level 0 is auto
+                if (level != 0) {
+                    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+                        fallbacks.add("level requires API 23");
+                    } else if (level > codec.maxLevel(profile)) {
+                        fallbacks.add("level of " + profileLevelName + " is above the max level of " + codec.name);
+                    } else {
+                        format.setInteger(MediaFormat.KEY_LEVEL, level);
+                        applied.put("level", level);
+                    }
+                }
+            }
+        }
+
+        // bitrate mode
+        if (bitrateMode != null) {
+            int mode = parseBitrateMode(bitrateMode);
+            if (mode < 0) {
+                fallbacks.add("unknown bitrateMode " + bitrateMode);
+            } else if (codec.encoderCapabilities == null || !codec.encoderCapabilities.isBitrateModeSupported(mode)) {
+                fallbacks.add("bitrateMode " + bitrateMode + " is not supported by " + codec.name);
+            } else {
+                format.setInteger(MediaFormat.KEY_BITRATE_MODE, mode);
+                applied.put("bitrateMode", bitrateMode);
+                if (mode == MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ && quality >= 0) {
+                    applyQuality(format, codec, applied, fallbacks);
+                }
+            }
+        }
+
+        // gop length. fractional intervals need API 25
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N_MR1) {
+            format.setFloat(MediaFormat.KEY_I_FRAME_INTERVAL, keyFrameInterval);
+            applied.put("keyFrameInterval", (double) keyFrameInterval);
+        } else {
+            int interval = keyFrameInterval > 0 ? (int) Math.ceil(keyFrameInterval) : (int) keyFrameInterval;
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, interval);
+            applied.put("keyFrameInterval", (double) interval);
+            if (interval != keyFrameInterval) {
+                fallbacks.add("fractional keyFrameInterval requires API 25. using " + interval);
+            }
+        }
+
+        // b frames
+        if (maxBFrames >= 0) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+                fallbacks.add("maxBFrames requires API 29");
+            } else if (maxBFrames > 0 && profile == MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline &&
+                       MediaFormat.MIMETYPE_VIDEO_AVC.equals(codec.mimeType)) {
+                fallbacks.add("the baseline profile has no B frames");
+            } else {
+                format.setInteger(MediaFormat.KEY_MAX_B_FRAMES, maxBFrames);
+                applied.put("maxBFrames", maxBFrames);
+            }
+        }
+
+        // latency
+        if (latency >= 0) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.R) {
+                fallbacks.add("latency requires API 30");
+            } else {
+                format.setInteger(MediaFormat.KEY_LATENCY, Math.max(1, latency));
+                applied.put("latency", Math.max(1, latency));
+            }
+        }
+
+        // priority
+        if (priority >= 0) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+                fallbacks.add("priority requires API 23");
+            } else {
+                format.setInteger(MediaFormat.KEY_PRIORITY, Math.min(1, priority));
+                applied.put("priority", Math.min(1, priority));
+            }
+        }
+
+        // operating rate
+        if (operatingRate > 0) {
+            applyOperatingRate(format, codec, width, height, applied, fallbacks);
+        }
+
+        for (String fallback : fallbacks) {
+            Log.w(TAG, "video encoder setting fallback: " + fallback);
+        }
+
+        Map<String, Object> report = new HashMap<>();
+        report.put("codec", codec.name);
+        report.put("mimeType", codec.mimeType);
+        report.put("hardwareAccelerated", codec.hardwareAccelerated);
+        report.put("applied", applied);
+        report.put("fallbacks", fallbacks);
+        return report;
+    }
+
+    private void applyQuality(MediaFormat format, CodecIndex.Codec codec,
+                              Map<String, Object> applied, List<String> fallbacks) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.P) {
+            fallbacks.add("quality requires API 28");
+            return;
+        }
+        int value = quality;
+        Range<Integer> range = codec.encoderCapabilities.getQualityRange();
+        if (range != null && !range.contains(value)) {
+            value = range.clamp(value);
+            fallbacks.add("quality " + quality + " is outside " + range + ". using " + value);
+        }
+        format.setInteger(MediaFormat.KEY_QUALITY, value);
+        applied.put("quality", value);
+    }
+
+    private void applyOperatingRate(MediaFormat format, CodecIndex.Codec codec, int width, int height,
+                                    Map<String, Object> applied, List<String> fallbacks) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            fallbacks.add("operatingRate requires API 23");
+            return;
+        }
+
+        // the codec's frame rate limit at this size
+        Range<Double> supported = null;
+        if (codec.videoCapabilities != null) {
+            try {
+                supported = codec.videoCapabilities.getSupportedFrameRatesFor(width, height);
+            } catch (IllegalArgumentException e) {
+                // size not supported. configure() will say so
+            }
+        }
+
+        double rate = operatingRate;
+        if (supported == null) {
+            if (Double.isInfinite(rate)) {
+                fallbacks.add("max operatingRate is unknown for " + codec.name);
+                return;
+            }
+        } else if (rate > supported.getUpper()) {
+            rate = supported.getUpper();
+            if (!Double.isInfinite(operatingRate)) {
+                fallbacks.add("operatingRate " + operatingRate + " is above the max of " + codec.name + ". using " + rate);
+            }
+        }
+        format.setFloat(MediaFormat.KEY_OPERATING_RATE, (float) rate);
+        applied.put("operatingRate", rate);
+    }
+
+    // "vbr", "cbr" or "cq", or -1
+    private static int parseBitrateMode(String name) {
+        switch (name) {
+            case "vbr": return MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR;
+            case "cbr": return MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR;
+            case "cq":  return MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ;
+            default:    return -1;
+        }
+    }
+
+    // {profile, level}, same names as the ios plugin. level 0 means auto
+    private static int[] parseProfileLevel(String name) {
+        int high = MediaCodecInfo.CodecProfileLevel.AVCProfileHigh;
+        int main = MediaCodecInfo.CodecProfileLevel.AVCProfileMain;
+        int baseline = MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline;
+        switch (name) {
+            case "high40":            return new int[] {high, MediaCodecInfo.CodecProfileLevel.AVCLevel4};
+            case "high41":            return new int[] {high, MediaCodecInfo.CodecProfileLevel.AVCLevel41};
+            case "main30":            return new int[] {main, MediaCodecInfo.CodecProfileLevel.AVCLevel3};
+            case "main31":            return new int[] {main, MediaCodecInfo.CodecProfileLevel.AVCLevel31};
+            case "main32":            return new int[] {main, MediaCodecInfo.CodecProfileLevel.AVCLevel32};
+            case "main41":            return new int[] {main, MediaCodecInfo.CodecProfileLevel.AVCLevel41};
+            case "baseline30":        return new int[] {baseline, MediaCodecInfo.CodecProfileLevel.AVCLevel3};
+            case "baseline31":        return new int[] {baseline, MediaCodecInfo.CodecProfileLevel.AVCLevel31};
+            case "baseline41":        return new int[] {baseline, MediaCodecInfo.CodecProfileLevel.AVCLevel41};
+            case "highAutoLevel":     return new int[] {high, 0};
+            case "mainAutoLevel":     return new int[] {main, 0};
+            case "baselineAutoLevel": return new int[] {baseline, 0};
+            default:                  return new int[] {0, 0};
+        }
+    }
+
+    private static int intValue(Object value, int defaultValue) {
+        return value != null ? ((Number) value).intValue() : defaultValue;
+    }
+}
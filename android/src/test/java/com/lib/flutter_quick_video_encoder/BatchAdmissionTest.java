@@ -0,0 +1,128 @@
+package com.lib.flutter_quick_video_encoder;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+// batches admitted as one unit, like the frame channel does, on an engine that is never started
+public class BatchAdmissionTest {
+
+    private static final int DEPTH = 5;
+    private static final int FRAME_BYTES = 16;
+
+    @Test
+    public void blockAcceptsBatchLargerThanQueue() throws Exception {
+        EncodeEngine engine = engine(InputQueue.OverflowPolicy.BLOCK);
+        AtomicInteger accepted = new AtomicInteger();
+        int count = 2 * DEPTH + 3;
+        putBatch(engine, 0, count, accepted);
+
+        // everything past the queue waits, & is accepted as the queue drains
+        assertEquals(DEPTH, accepted.get());
+        for (int i = 0; i < count; i++) {
+            assertFrame(engine, i);
+        }
+        assertNull(engine.mInputQueues[EncodeEngine.VIDEO].poll());
+        assertEquals(count, accepted.get());
+    }
+
+    @Test
+    public void blockRejectsWholeBatchWhileFramesWait() throws Exception {
+        EncodeEngine engine = engine(InputQueue.OverflowPolicy.BLOCK);
+        AtomicInteger accepted = new AtomicInteger();
+        putBatch(engine, 0, 2 * DEPTH + 3, accepted);
+
+        // the parked frames already exceed the limits, so none of this batch goes in
+        try {
+            putBatch(engine, 100, 2, accepted);
+            fail("batch should be rejected");
+        } catch (InputQueue.QueueFullException e) {
+            // expected
+        }
+        for (int i = 0; i < 2 * DEPTH + 3; i++) {
+            assertFrame(engine, i);
+        }
+        assertNull(engine.mInputQueues[EncodeEngine.VIDEO].poll());
+
+        // & retrying once they are accepted succeeds
+        putBatch(engine, 100, 2, accepted);
+        assertFrame(engine, 100);
+        assertFrame(engine, 101);
+    }
+
+    @Test
+    public void failRejectsWholeBatch() throws Exception {
+        EncodeEngine engine = engine(InputQueue.OverflowPolicy.FAIL);
+        AtomicInteger accepted = new AtomicInteger();
+        putBatch(engine, 0, DEPTH - 1, accepted);
+        try {
+            putBatch(engine, 100, 2, accepted);
+            fail("batch should be rejected");
+        } catch (InputQueue.QueueFullException e) {
+            // expected
+        }
+        assertEquals(DEPTH - 1, accepted.get());
+        for (int i = 0; i < DEPTH - 1; i++) {
+            assertFrame(engine, i);
+        }
+        assertNull(engine.mInputQueues[EncodeEngine.VIDEO].poll());
+    }
+
+    @Test
+    public void parkedFramesAreRecycled() throws Exception {
+        EncodeEngine engine = engine(InputQueue.OverflowPolicy.BLOCK);
+        engine.addEncoder(EncodeEngine.AUDIO, new IdleEncoder());
+        engine.setAudioFormat(48000, 2);
+
+        // both tracks full & as many frames again waiting, then drained
+        long warm = 0;
+        for (int round = 0; round < 3; round++) {
+            int count = 2 * DEPTH;
+            engine.admit(new int[] {count, count}, new long[] {(long) count * FRAME_BYTES, (long) count * FRAME_BYTES});
+            for (int i = 0; i < count; i++) {
+                engine.put(engine.inputPool().acquire(InputData.DataType.VIDEO, FRAME_BYTES), error -> { });
+                engine.put(engine.inputPool().acquire(InputData.DataType.AUDIO, FRAME_BYTES), error -> { });
+            }
+            for (InputQueue queue : engine.mInputQueues) {
+                InputData inputData;
+                while ((inputData = queue.poll()) != null) {
+                    engine.inputPool().release(inputData);
+                }
+            }
+            if (round == 0) {
+                warm = engine.inputPool().allocationCount();
+            }
+        }
+        assertEquals(warm, engine.inputPool().allocationCount());
+    }
+
+    private static EncodeEngine engine(InputQueue.OverflowPolicy policy) {
+        EncodeEngine engine = new PipelinedEngine(30, null, null, null, DEPTH, 0, policy, 4);
+        engine.addEncoder(EncodeEngine.VIDEO, new IdleEncoder());
+        return engine;
+    }
+
+    // admit 'count' video frames, then put them. frame i starts with 'first' + i
+    private static void putBatch(EncodeEngine engine, int first, int count, AtomicInteger accepted) throws Exception {
+        engine.admit(new int[] {count, 0}, new long[] {(long) count * FRAME_BYTES, 0});
+        for (int i = 0; i < count; i++) {
+            InputData inputData = engine.inputPool().acquire(InputData.DataType.VIDEO, FRAME_BYTES);
+            inputData.data[0] = (byte) (first + i);
+            engine.put(inputData, error -> {
+                if (error == null) {
+                    accepted.incrementAndGet();
+                }
+            });
+        }
+    }
+
+    private static void assertFrame(EncodeEngine engine, int value) {
+        InputData inputData = engine.mInputQueues[EncodeEngine.VIDEO].poll();
+        assertEquals((byte) value, inputData.data[0]);
+        engine.inputPool().release(inputData);
+    }
+}
@@ -0,0 +1,131 @@
+package com.lib.flutter_quick_video_encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+// Annex-B video & ADTS audio, written to temporary files & read back
+public class ElementaryStreamMuxerTest {
+
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1e, 0x11, 0x22};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+    // AAC LC, 44.1 kHz, stereo
+    private static final byte[] AUDIO_CONFIG = {0x12, 0x10};
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void videoRepeatsParameterSetsBeforeKeyFrames() throws Exception {
+        File file = mFolder.newFile("video.h264");
+        ElementaryStreamMuxer muxer = new ElementaryStreamMuxer(open(file), null);
+        MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, 320, 240);
+        format.setByteBuffer("csd-0", ByteBuffer.wrap(annexB(SPS)));
+        format.setByteBuffer("csd-1", ByteBuffer.wrap(annexB(PPS)));
+        int track = muxer.addTrack(format);
+        muxer.start();
+
+        // the last key frame is larger than a batch, so skips it
+        byte[] key0 = annexB(nal(0x65, 100));
+        byte[] delta = annexB(nal(0x41, 50));
+        byte[] key1 = annexB(nal(0x65, 300 * 1024));
+        write(muxer, track, key0, true);
+        write(muxer, track, delta, false);
+        write(muxer, track, key1, true);
+        muxer.stop();
+        muxer.release();
+
+        // the parameter sets lead the stream, & precede each later key frame
+        byte[] parameterSets = concat(annexB(SPS), annexB(PPS));
+        byte[] expected = concat(parameterSets, key0, delta, parameterSets, key1);
+        assertArrayEquals(expected, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void audioFramesHaveAdtsHeaders() throws Exception {
+        File file = mFolder.newFile("audio.aac");
+        ElementaryStreamMuxer muxer = new ElementaryStreamMuxer(null, open(file));
+        MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, 44100, 2);
+        format.setByteBuffer("csd-0", ByteBuffer.wrap(AUDIO_CONFIG));
+        int track = muxer.addTrack(format);
+        muxer.start();
+
+        int[] sizes = {10, 371, 4000};
+        for (int i = 0; i < sizes.length; i++) {
+            byte[] frame = new byte[sizes[i]];
+            Arrays.fill(frame, (byte) (i + 1));
+            write(muxer, track, frame, false);
+        }
+        muxer.stop();
+        muxer.release();
+
+        byte[] data = Files.readAllBytes(file.toPath());
+        int pos = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            // syncword, MPEG-4, no CRC
+            assertEquals(0xff, data[pos] & 0xff);
+            assertEquals(0xf1, data[pos + 1] & 0xff);
+            int profile = (data[pos + 2] & 0xff) >> 6;
+            int frequencyIndex = ((data[pos + 2] & 0xff) >> 2) & 0x0f;
+            int channels = ((data[pos + 2] & 0x01) << 2) | ((data[pos + 3] & 0xff) >> 6);
+            int frameLength = ((data[pos + 3] & 0x03) << 11) | ((data[pos + 4] & 0xff) << 3) |
+                ((data[pos + 5] & 0xff) >> 5);
+            assertEquals(1, profile);
+            assertEquals(4, frequencyIndex);
+            assertEquals(2, channels);
+            assertEquals(7 + sizes[i], frameLength);
+            for (int j = pos + 7; j < pos + frameLength; j++) {
+                assertEquals(i + 1, data[j]);
+            }
+            pos += frameLength;
+        }
+        assertEquals(data.length, pos);
+    }
+
+    private static FileChannel open(File file) throws Exception {
+        return FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    // from a direct buffer, like codec output
+    private static void write(ElementaryStreamMuxer muxer, int track, byte[] sample, boolean key) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(sample.length);
+        buffer.put(sample);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.set(0, sample.length, 0, key ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        muxer.writeSampleData(track, buffer, info);
+    }
+
+    // a nal unit of 'size' bytes with this header byte
+    private static byte[] nal(int header, int size) {
+        byte[] nal = new byte[size];
+        Arrays.fill(nal, (byte) 0x5a);
+        nal[0] = (byte) header;
+        return nal;
+    }
+
+    private static byte[] annexB(byte[] nal) {
+        return concat(new byte[] {0, 0, 0, 1}, nal);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,241 @@
+package com.lib.flutter_quick_video_encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+// writes a few fragments & walks the boxes back
+public class FragmentedMp4MuxerTest {
+
+    private static final int FPS = 30;
+    private static final int GOP = 30;
+    private static final int FRAMES = 90;
+    private static final int SAMPLE_RATE = 48000;
+
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1e, 0x11, 0x22};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+    private static final byte[] AUDIO_CONFIG = {0x11, (byte) 0x90};
+
+    @Test
+    public void fragmentsStartAtKeyFrames() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(Channels.newChannel(out), 1000000);
+        int video = muxer.addTrack(videoFormat());
+        int audio = muxer.addTrack(audioFormat());
+        muxer.start();
+
+        // video, then the audio up to the next video frame
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        int audioSamples = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            boolean key = i % GOP == 0;
+            byte[] frame = videoFrame(i, key);
+            info.set(0, frame.length, i * 1000000L / FPS, key ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+            muxer.writeSampleData(video, ByteBuffer.wrap(frame), info);
+            while (audioPtsUs(audioSamples) < (i + 1) * 1000000L / FPS) {
+                byte[] sample = audioSample(audioSamples);
+                info.set(0, sample.length, audioPtsUs(audioSamples), 0);
+                muxer.writeSampleData(audio, ByteBuffer.wrap(sample), info);
+                audioSamples++;
+            }
+        }
+        muxer.stop();
+        muxer.release();
+
+        byte[] file = out.toByteArray();
+        List<Box> boxes = Box.children(file, 0, file.length);
+        assertEquals("ftyp", boxes.get(0).type);
+        assertEquals("moov", boxes.get(1).type);
+        assertEquals(2 + 2 * FRAMES / GOP, boxes.size());
+
+        // the sample entries carry the codec config
+        Box moov = boxes.get(1);
+        assertEquals(2, moov.all(file, "trak").size());
+        assertNotNull(moov.find(file, "mvex", "trex"));
+        byte[] avcC = {
+            'a', 'v', 'c', 'C', 1, SPS[1], SPS[2], SPS[3], (byte) 0xff, (byte) 0xe1, 0, (byte) SPS.length,
+        };
+        int at = indexOf(file, avcC);
+        assertTrue(at > moov.start && at < moov.end());
+        assertArrayEquals(SPS, Arrays.copyOfRange(file, at + avcC.length, at + avcC.length + SPS.length));
+        int ppsAt = at + avcC.length + SPS.length;
+        assertArrayEquals(new byte[] {1, 0, (byte) PPS.length}, Arrays.copyOfRange(file, ppsAt, ppsAt + 3));
+        assertArrayEquals(PPS, Arrays.copyOfRange(file, ppsAt + 3, ppsAt + 3 + PPS.length));
+        byte[] esds = {0x05, (byte) AUDIO_CONFIG.length, AUDIO_CONFIG[0], AUDIO_CONFIG[1]};
+        at = indexOf(file, esds);
+        assertTrue(at > moov.start && at < moov.end());
+
+        long audioBase = 0;
+        int audioSeen = 0;
+        for (int f = 0; f < FRAMES / GOP; f++) {
+            Box moof = boxes.get(2 + 2 * f);
+            Box mdat = boxes.get(3 + 2 * f);
+            assertEquals("moof", moof.type);
+            assertEquals("mdat", mdat.type);
+            assertEquals(f + 1, readInt(file, moof.find(file, "mfhd").payload() + 4));
+
+            List<Box> trafs = moof.all(file, "traf");
+            long mdatBytes = 0;
+            for (Box traf : trafs) {
+                int trackId = readInt(file, traf.find(file, "tfhd").payload() + 4);
+                long baseTime = readLong(file, traf.find(file, "tfdt").payload() + 4);
+                Box trun = traf.find(file, "trun");
+                int count = readInt(file, trun.payload() + 4);
+                int dataOffset = readInt(file, trun.payload() + 8);
+                assertEquals(mdat.payload() + mdatBytes, moof.start + dataOffset);
+
+                long duration = 0;
+                for (int s = 0; s < count; s++) {
+                    int entry = trun.payload() + 12 + s * 12;
+                    duration += readInt(file, entry);
+                    mdatBytes += readInt(file, entry + 4);
+                }
+                if (trackId == video + 1) {
+                    // a whole gop per fragment, in 90 kHz ticks
+                    assertEquals(GOP, count);
+                    assertEquals((long) f * GOP * 90000 / FPS, baseTime);
+                    assertEquals(GOP * 90000 / FPS, duration);
+                    assertEquals(0x02000000, readInt(file, trun.payload() + 12 + 8));
+                    assertEquals(0x01010000, readInt(file, trun.payload() + 12 + 12 + 8));
+                } else {
+                    // audio continues where the last fragment stopped
+                    assertEquals(audio + 1, trackId);
+                    assertEquals(audioBase, baseTime);
+                    assertEquals(count * (long) AudioPacker.SAMPLES_PER_FRAME, duration);
+                    audioBase += duration;
+                    audioSeen += count;
+                }
+            }
+            assertEquals(2, trafs.size());
+            assertEquals(mdat.size - 8, mdatBytes);
+        }
+        assertEquals(audioSamples, audioSeen);
+    }
+
+    private static MediaFormat videoFormat() {
+        MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, 320, 240);
+        format.setByteBuffer("csd-0", ByteBuffer.wrap(annexB(SPS)));
+        format.setByteBuffer("csd-1", ByteBuffer.wrap(annexB(PPS)));
+        return format;
+    }
+
+    private static MediaFormat audioFormat() {
+        MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, SAMPLE_RATE, 2);
+        format.setByteBuffer("csd-0", ByteBuffer.wrap(AUDIO_CONFIG));
+        return format;
+    }
+
+    // one nal unit after a start code, sized by frame index
+    private static byte[] videoFrame(int i, boolean key) {
+        byte[] nal = new byte[20 + i];
+        nal[0] = (byte) (key ? 0x65 : 0x41);
+        Arrays.fill(nal, 1, nal.length, (byte) i);
+        return annexB(nal);
+    }
+
+    private static byte[] audioSample(int i) {
+        byte[] sample = new byte[10 + i % 7];
+        Arrays.fill(sample, (byte) i);
+        return sample;
+    }
+
+    private static long audioPtsUs(int sample) {
+        return sample * (long) AudioPacker.SAMPLES_PER_FRAME * 1000000L / SAMPLE_RATE;
+    }
+
+    private static byte[] annexB(byte[] nal) {
+        byte[] out = new byte[4 + nal.length];
+        out[3] = 1;
+        System.arraycopy(nal, 0, out, 4, nal.length);
+        return out;
+    }
+
+    private static int indexOf(byte[] data, byte[] part) {
+        for (int i = 0; i + part.length <= data.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(data, i, i + part.length), part)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int readInt(byte[] data, int at) {
+        return ByteBuffer.wrap(data, at, 4).getInt();
+    }
+
+    private static long readLong(byte[] data, int at) {
+        return ByteBuffer.wrap(data, at, 8).getLong();
+    }
+
+    // a box at 'start', 'size' bytes including its 8 byte header
+    private static class Box {
+        final String type;
+        final int start;
+        final int size;
+
+        Box(String type, int start, int size) {
+            this.type = type;
+            this.start = start;
+            this.size = size;
+        }
+
+        int end() {
+            return start + size;
+        }
+
+        // after the header. full boxes start with their version & flags
+        int payload() {
+            return start + 8;
+        }
+
+        // the boxes in [start, end), which must tile it exactly
+        static List<Box> children(byte[] data, int start, int end) {
+            List<Box> boxes = new ArrayList<>();
+            int pos = start;
+            while (pos < end) {
+                int size = readInt(data, pos);
+                assertTrue("box at " + pos + " has size " + size, size >= 8 && pos + size <= end);
+                boxes.add(new Box(new String(data, pos + 4, 4), pos, size));
+                pos += size;
+            }
+            assertEquals(end, pos);
+            return boxes;
+        }
+
+        // the first descendant along 'path', or null
+        Box find(byte[] data, String... path) {
+            Box box = this;
+            for (String type : path) {
+                List<Box> matches = box.all(data, type);
+                if (matches.isEmpty()) {
+                    return null;
+                }
+                box = matches.get(0);
+            }
+            return box;
+        }
+
+        List<Box> all(byte[] data, String type) {
+            List<Box> matches = new ArrayList<>();
+            for (Box child : children(data, payload(), end())) {
+                if (child.type.equals(type)) {
+                    matches.add(child);
+                }
+            }
+            return matches;
+        }
+    }
+}
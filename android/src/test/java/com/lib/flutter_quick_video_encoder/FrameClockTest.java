@@ -0,0 +1,57 @@
+package com.lib.flutter_quick_video_encoder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+// frames without a pts are timed by the frames before them, on an engine that is never started
+public class FrameClockTest {
+
+    private static final int FPS = 30;
+
+    @Test
+    public void rejectedFrameKeepsItsTime() throws Exception {
+        EncodeEngine engine = engine(InputQueue.OverflowPolicy.FAIL);
+        put(engine);
+        try {
+            put(engine);
+            fail("queue should be full");
+        } catch (InputQueue.QueueFullException e) {
+            // expected
+        }
+        assertPts(engine, 0);
+
+        // the retry is the second frame, not the third
+        put(engine);
+        assertPts(engine, 1000000L / FPS);
+    }
+
+    @Test
+    public void droppedFrameLeavesGap() throws Exception {
+        EncodeEngine engine = engine(InputQueue.OverflowPolicy.DROP_NEWEST);
+        put(engine);
+        put(engine);
+        assertEquals(1, engine.droppedFrames(EncodeEngine.VIDEO));
+        assertPts(engine, 0);
+
+        put(engine);
+        assertPts(engine, 2 * 1000000L / FPS);
+    }
+
+    private static EncodeEngine engine(InputQueue.OverflowPolicy policy) {
+        EncodeEngine engine = new PipelinedEngine(FPS, null, null, null, 1, 0, policy, 4);
+        engine.addEncoder(EncodeEngine.VIDEO, new IdleEncoder());
+        return engine;
+    }
+
+    private static void put(EncodeEngine engine) throws Exception {
+        engine.put(engine.inputPool().acquire(InputData.DataType.VIDEO, 16), error -> { });
+    }
+
+    private static void assertPts(EncodeEngine engine, long ptsUs) {
+        InputData inputData = engine.mInputQueues[EncodeEngine.VIDEO].poll();
+        assertEquals(ptsUs, inputData.ptsUs);
+        engine.inputPool().release(inputData);
+    }
+}
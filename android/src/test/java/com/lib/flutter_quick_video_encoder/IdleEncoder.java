@@ -0,0 +1,59 @@
+package com.lib.flutter_quick_video_encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+// enables a track on an engine that is never started, so it is never used
+class IdleEncoder implements Encoder {
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return -1;
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return null;
+    }
+
+    @Override
+    public Plane[] getInputPlanes(int index) {
+        return null;
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+    }
+
+    @Override
+    public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        return -1;
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return null;
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return null;
+    }
+
+    @Override
+    public void requestSyncFrame() {
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public void release() {
+    }
+}
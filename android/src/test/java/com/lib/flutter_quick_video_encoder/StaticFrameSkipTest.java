@@ -0,0 +1,84 @@
+package com.lib.flutter_quick_video_encoder;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+// static frame skipping, on an engine that is never started, so frames stay queued
+public class StaticFrameSkipTest {
+
+    private static final int WIDTH = 4;
+    private static final int HEIGHT = 2;
+
+    @Test
+    public void repeatsAreSkipped() throws Exception {
+        EncodeEngine engine = engine(InputQueue.OverflowPolicy.BLOCK, 4);
+        put(engine, 1);
+        put(engine, 1);
+        put(engine, 2);
+        assertEquals(1, engine.staticFrames());
+        assertFrame(engine, 1);
+        assertFrame(engine, 2);
+        assertNull(engine.mInputQueues[EncodeEngine.VIDEO].poll());
+    }
+
+    @Test
+    public void droppedChangeIsNotSkippedLater() throws Exception {
+        EncodeEngine engine = engine(InputQueue.OverflowPolicy.DROP_NEWEST, 1);
+        put(engine, 1);
+        // the change is dropped, as the queue is full
+        put(engine, 2);
+        assertEquals(1, engine.droppedFrames(EncodeEngine.VIDEO));
+
+        // once there is room, the same image must still be encoded
+        assertFrame(engine, 1);
+        put(engine, 2);
+        assertEquals(0, engine.staticFrames());
+        assertFrame(engine, 2);
+    }
+
+    @Test
+    public void rejectedChangeIsNotSkippedLater() throws Exception {
+        EncodeEngine engine = engine(InputQueue.OverflowPolicy.FAIL, 1);
+        put(engine, 1);
+        try {
+            put(engine, 2);
+            fail("queue should be full");
+        } catch (InputQueue.QueueFullException e) {
+            // expected
+        }
+
+        assertFrame(engine, 1);
+        put(engine, 2);
+        assertEquals(0, engine.staticFrames());
+        assertFrame(engine, 2);
+    }
+
+    private static EncodeEngine engine(InputQueue.OverflowPolicy policy, int queueDepth) {
+        EncodeEngine engine = new PipelinedEngine(30, null, null, null, queueDepth, 0, policy, 4);
+        engine.addEncoder(EncodeEngine.VIDEO, new IdleEncoder());
+        engine.enableStaticFrameSkip(WIDTH * 4, 1);
+        return engine;
+    }
+
+    // put a frame whose bytes are all 'value'
+    private static void put(EncodeEngine engine, int value) throws Exception {
+        InputData inputData = engine.inputPool().acquire(InputData.DataType.VIDEO, WIDTH * HEIGHT * 4);
+        Arrays.fill(inputData.data, (byte) value);
+        engine.put(inputData, error -> { });
+    }
+
+    // the next queued frame is all 'value'
+    private static void assertFrame(EncodeEngine engine, int value) {
+        InputData inputData = engine.mInputQueues[EncodeEngine.VIDEO].poll();
+        byte[] expected = new byte[WIDTH * HEIGHT * 4];
+        Arrays.fill(expected, (byte) value);
+        assertArrayEquals(expected, Arrays.copyOf(inputData.data, inputData.length));
+        engine.inputPool().release(inputData);
+    }
+}
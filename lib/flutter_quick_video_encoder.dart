@@ -1,5 +1,7 @@
 import 'dart:async';
+import 'dart:convert';
 import 'dart:io';
+import 'dart:math' show max, min;
 
 import 'package:flutter/services.dart';
 
@@ -27,9 +29,204 @@ enum ProfileLevel {
   baselineAutoLevel,
 }
 
+// Android: video codec
+enum VideoCodec {
+  // H.264
+  avc,
+  // H.265. about half the size of avc at the same quality. Requires API 24
+  hevc,
+  // written to WebM, so video only
+  vp9,
+  // Requires API 34
+  av1,
+  // the most efficient codec with a hardware encoder for the size & fps, else avc
+  auto,
+}
+
+// pixel format of appended video frames
+enum PixelFormat {
+  // 8 bits per channel
+  rgba,
+  // 8 bits per channel. Android only
+  bgra,
+  // YUV 420: the Y plane, then U, then V, each without padding. Android only
+  i420,
+  // YUV 420: the Y plane, then interleaved UV. Android only
+  nv12,
+  // YUV 420: the Y plane, then interleaved VU. Android only
+  nv21,
+}
+
+// Android: RGB to YUV conversion matrix, also written to the color metadata
+enum ColorStandard {
+  // bt709 for 720p & larger, else bt601
+  auto,
+  // standard definition
+  bt601,
+  // high definition
+  bt709,
+}
+
+// Android: output container
+enum ContainerFormat {
+  // regular mp4 (webm for vp9). only playable once finished
+  mp4,
+  // fragmented mp4, written as it encodes, so playable up to the last fragment
+  // even if encoding is interrupted. avc & hevc only, without B frames
+  fragmentedMp4,
+  // raw streams, for remuxing elsewhere: Annex-B avc or hevc to filepath,
+  // & ADTS aac to audioFilepath. no timestamps, so gaps are lost
+  elementary,
+}
+
+// Android encoding engine
+enum AndroidEngine {
+  // dedicated feed, drain & mux threads
+  pipelined,
+  // MediaCodec async callbacks, lower per frame latency. Requires API 23
+  callback,
+}
+
+// Android: what to do when the staging buffer is full.
+// Encoded samples are staged until every track's format is known
+enum StagingOverflow {
+  // fail encoding
+  fail,
+  // drop the oldest samples. video resumes at the next key frame
+  dropOldest,
+}
+
+// Android: what to do when an input queue is full.
+// Appended frames wait in a queue per track until the encoder takes them
+enum OverflowPolicy {
+  // the append completes once the frame is queued. as many frames again as
+  // the queue holds can wait, after which appends throw 'QueueFull'.
+  // a batch (appendFrames) waits whole if nothing else is waiting
+  block,
+  // the append throws a PlatformException with code 'QueueFull'.
+  // a batch is accepted whole or not at all, so must fit inputQueueDepth
+  fail,
+  // drop the oldest queued frame. see getDroppedFrames
+  dropOldest,
+  // drop the appended frame. see getDroppedFrames
+  dropNewest,
+}
+
+// video encoder bitrate mode
+enum BitrateMode {
+  // variable bitrate
+  vbr,
+  // constant bitrate
+  cbr,
+  // constant quality. see VideoEncoderSettings.quality
+  cq,
+}
+
+/// Android: video encoder rate control, latency & gop settings.
+/// Each setting is checked against the encoder. Unsupported settings are left
+/// to the encoder's default, & listed under 'fallbacks' in the report setup returns.
+class VideoEncoderSettings {
+  /// null for the encoder's default
+  final BitrateMode? bitrateMode;
+
+  /// constant quality, for BitrateMode.cq. clamped to the encoder's range (API 28)
+  final int? quality;
+
+  /// seconds between key frames. 0 for every frame, negative for only the first
+  final double keyFrameInterval;
+
+  /// max B frames between reference frames, 0 for none (API 29)
+  final int? maxBFrames;
+
+  /// frames the encoder may hold before outputting one (API 30)
+  final int? latency;
+
+  /// 0 realtime, 1 best effort (API 23)
+  final int? priority;
+
+  /// frames per second the encoder should sustain, or [maxOperatingRate] (API 23)
+  final double? operatingRate;
+
+  /// as fast as the encoder can go, at this size
+  static const double maxOperatingRate = double.infinity;
+
+  const VideoEncoderSettings(
+      {this.bitrateMode,
+      this.quality,
+      this.keyFrameInterval = 1,
+      this.maxBFrames,
+      this.latency,
+      this.priority,
+      this.operatingRate});
+
+  /// live capture: realtime priority, constant bitrate, & output as soon as possible
+  const VideoEncoderSettings.realtime()
+      : bitrateMode = BitrateMode.cbr,
+        quality = null,
+        keyFrameInterval = 1,
+        maxBFrames = 0,
+        latency = 1,
+        priority = 0,
+        operatingRate = null;
+
+  /// offline export: run the encoder at its max rate, for throughput
+  const VideoEncoderSettings.offline()
+      : bitrateMode = BitrateMode.vbr,
+        quality = null,
+        keyFrameInterval = 1,
+        maxBFrames = null,
+        latency = null,
+        priority = 1,
+        operatingRate = maxOperatingRate;
+
+  Map<String, dynamic> _toMap() {
+    return {
+      'bitrateMode': bitrateMode?.toString().split('.')[1],
+      'quality': quality,
+      'keyFrameInterval': keyFrameInterval,
+      'maxBFrames': maxBFrames,
+      'latency': latency,
+      'priority': priority,
+      'operatingRate': operatingRate,
+    };
+  }
+}
+
+/// a video or audio frame, for appendFrames
+class EncoderFrame {
+  final bool isVideo;
+  final Uint8List data;
+
+  /// raw rgba video frame, 8 bits per channel
+  const EncoderFrame.video(this.data) : isVideo = true;
+
+  /// raw pcm audio samples. see [FlutterQuickVideoEncoder.appendAudioFrame]
+  const EncoderFrame.audio(this.data) : isVideo = false;
+}
+
 class FlutterQuickVideoEncoder {
   static const MethodChannel _channel = const MethodChannel('flutter_quick_video_encoder/methods');
 
+  // android: frames are sent as raw bytes, with a small header
+  //   [0]     frame type
+  //   [1..3]  reserved
+  //   [4..7]  session id, int32
+  //   [8..15] presentation time in microseconds, int64. -1 = from frame index
+  //   [16..]  rgba pixels or pcm samples
+  // batches use frame type 3, a frame count at [8..11], then a 16 byte
+  // table entry per frame (type, length, pts) & then every frame's bytes
+  static const EventChannel _statsChannel = const EventChannel('flutter_quick_video_encoder/stats');
+  static const BasicMessageChannel<ByteData> _frameChannel =
+      const BasicMessageChannel('flutter_quick_video_encoder/frames', BinaryCodec());
+  static const int _frameHeaderSize = 16;
+  static const int _frameTableEntrySize = 16;
+  static const int _frameTypeVideo = 1;
+  static const int _frameTypeAudio = 2;
+  static const int _frameTypeBatch = 3;
+
+  // buffers from allocateFrame, whose first bytes are free for the frame header
+  static final Expando<bool> _headerRoom = Expando();
+
   // setup values
   static int width = 0;
   static int height = 0;
@@ -41,14 +238,208 @@ class FlutterQuickVideoEncoder {
   // log level
   static LogLevel logLevel = LogLevel.standard;
 
+  // used by the static api
+  static final QuickVideoEncoderSession _defaultSession = QuickVideoEncoderSession._(0);
+  static int _nextSessionId = 1;
+
   /// set log level
   static Future<void> setLogLevel(LogLevel level) async {
     logLevel = level;
     return await _invokeMethod('setLogLevel', {'log_level': level.index});
   }
 
+  /// how many sessions can encode at the same time with this video codec.
+  /// android: derived from the video & audio encoders' instance limits
+  static Future<int> maxSessions({VideoCodec videoCodec = VideoCodec.avc}) async {
+    if (!Platform.isAndroid) {
+      return 1;
+    }
+    int? sessions = await _invokeMethod<int>('maxSessions', {
+      'videoCodec': videoCodec.toString().split('.')[1],
+    });
+    return sessions ?? 1;
+  }
+
+  /// sessions holding encoders right now, including ones still finishing.
+  /// setup fails with 'TooManySessions' once this reaches [maxSessions]
+  static Future<int> activeSessions() async {
+    if (!Platform.isAndroid) {
+      return 0;
+    }
+    return await _invokeMethod<int>('activeSessions') ?? 0;
+  }
+
+  /// create an independent session, to encode several files at the same time.
+  /// Each session has its own encoders, muxer & threads. (android only)
+  static QuickVideoEncoderSession createSession() {
+    if (!Platform.isAndroid) {
+      throw UnsupportedError("multiple sessions are only supported on android");
+    }
+    return QuickVideoEncoderSession._(_nextSessionId++);
+  }
+
+  /// join chunk files, encoded by separate sessions set up alike, into one mp4
+  /// (webm for vp9 chunks) without re-encoding. each chunk's timestamps are shifted to follow the
+  /// previous chunk's last video frame. (android only)
+  /// returns {chunks, samples, droppedSamples, durationUs}
+  static Future<Map<String, dynamic>> stitch(List<String> chunkPaths, String filepath,
+      {bool deleteChunks = true}) async {
+    if (!Platform.isAndroid) {
+      throw UnsupportedError("stitch is only supported on android");
+    }
+    _createIntermediateDirectories(filepath);
+    var report = await _invokeMethod('stitch', {
+      'inputs': chunkPaths,
+      'filepath': filepath,
+      'deleteInputs': deleteChunks,
+    });
+    return Map<String, dynamic>.from(report);
+  }
+
+  /// offline export of frames [0, frameCount), split into chunks encoded at the
+  /// same time on separate sessions, then stitched into filepath. Scales with
+  /// the device's free encoder instances, see [maxSessions] & [activeSessions].
+  /// (android only)
+  ///  - videoFrame, audioFrame: provide frame i. called concurrently for different chunks.
+  ///    audioFrame gives sampleRate * audioChannels * 2 / fps bytes per frame
+  ///  - chunks: defaults to the free sessions. each chunk starts with a key frame.
+  ///    chunks beyond the free sessions wait for an earlier chunk to finish
+  ///  - videoCodec: avc, hevc, av1 or vp9, written to mp4 (webm for vp9). not auto,
+  ///    since the container must be known up front
+  ///  - AAC pads the end of each chunk, so overlapping audio is dropped at chunk
+  ///    boundaries. export audio in one chunk if it must be sample exact
+  /// returns the stitch report, see [stitch]
+  static Future<Map<String, dynamic>> exportParallel(
+      {required int frameCount,
+      required Future<Uint8List> Function(int frame) videoFrame,
+      Future<Uint8List> Function(int frame)? audioFrame,
+      required int width,
+      required int height,
+      required int fps,
+      required int videoBitrate,
+      required ProfileLevel profileLevel,
+      required String filepath,
+      int audioChannels = 0,
+      int audioBitrate = 0,
+      int sampleRate = 0,
+      int? chunks,
+      VideoEncoderSettings videoSettings = const VideoEncoderSettings.offline(),
+      VideoCodec videoCodec = VideoCodec.avc,
+      PixelFormat inputFormat = PixelFormat.rgba}) async {
+    if (videoCodec == VideoCodec.auto) {
+      throw ArgumentError.value(videoCodec, 'videoCodec', 'exportParallel needs a specific codec');
+    }
+    int free = max(1, await maxSessions(videoCodec: videoCodec) - await activeSessions());
+    int count = (chunks ?? free).clamp(1, frameCount);
+    String extension = videoCodec == VideoCodec.vp9 ? 'webm' : 'mp4';
+    List<String> paths = List.generate(count, (i) => '$filepath.chunk$i.$extension');
+
+    Future<void> encodeChunk(int chunk) async {
+      int start = chunk * frameCount ~/ count;
+      int end = (chunk + 1) * frameCount ~/ count;
+      var session = createSession();
+      try {
+        await session.setup(
+          width: width,
+          height: height,
+          fps: fps,
+          videoBitrate: videoBitrate,
+          profileLevel: profileLevel,
+          audioChannels: audioFrame != null ? audioChannels : 0,
+          audioBitrate: audioBitrate,
+          sampleRate: audioFrame != null ? sampleRate : 0,
+          filepath: paths[chunk],
+          videoSettings: videoSettings,
+          videoCodec: videoCodec,
+          inputFormat: inputFormat,
+        );
+        for (int i = start; i < end; i++) {
+          await session.appendVideoFrame(await videoFrame(i));
+          if (audioFrame != null) {
+            await session.appendAudioFrame(await audioFrame(i));
+          }
+        }
+      } catch (e) {
+        // release the session, but report the error that stopped it.
+        // finishing a failed or never setup session throws too
+        try {
+          await session.finish();
+        } catch (_) {}
+        rethrow;
+      }
+      await session.finish();
+    }
+
+    // at most 'free' chunks at once, each worker taking the next chunk
+    int next = 0;
+    bool failed = false;
+    Future<void> worker() async {
+      while (next < count && !failed) {
+        try {
+          await encodeChunk(next++);
+        } catch (e) {
+          failed = true;
+          rethrow;
+        }
+      }
+    }
+
+    try {
+      await Future.wait(List.generate(min(free, count), (_) => worker()));
+    } catch (e) {
+      for (var path in paths) {
+        var file = File(path);
+        if (file.existsSync()) {
+          file.deleteSync();
+        }
+      }
+      rethrow;
+    }
+    return await stitch(paths, filepath);
+  }
+
   /// setup encoder
-  static Future<void> setup(
+  ///  - conversionThreads: (android) number of threads used to convert
+  ///    each RGBA frame to YUV. Helps for large frames (1440p, 4K).
+  ///  - conversionPriority: (android) linux nice value, -20 to 19, of the thread
+  ///    converting frames: the video feed thread (pipelined) or codec callback
+  ///    thread (callback). higher values leave more cpu to the UI. 0 by default
+  ///  - androidEngine: (android) how frames are fed to MediaCodec
+  ///  - stagingBufferBytes: (android) max bytes of encoded samples held
+  ///    before the muxer starts
+  ///  - stagingOverflow: (android) what to do when the staging buffer is full
+  ///  - collectStats: (android) measure each pipeline stage. see [getStats]
+  ///  - inputQueueDepth: (android) max frames waiting per track
+  ///  - inputQueueBytes: (android) max bytes waiting per track, 0 for no limit
+  ///  - overflowPolicy: (android) what to do when an input queue is full.
+  ///    dropped frames leave a gap in presentation time
+  ///  - videoSettings: (android) rate control, latency & gop settings
+  ///  - videoCodec: (android) see [VideoCodec]. profileLevel only applies to avc
+  ///  - container: (android) see [ContainerFormat]
+  ///  - fragmentDuration: (android) target fragment length for fragmentedMp4.
+  ///    fragments start at key frames, so keyFrameInterval should divide it
+  ///  - audioFilepath: (android) where elementary audio is written when there
+  ///    is video too. defaults to filepath + '.aac'
+  ///  - segmentDuration, segmentBytes: (android) split the output into segment
+  ///    files, each starting at the first key frame past either limit.
+  ///    segment i of 'dir/name.mp4' is 'dir/name_0000i.mp4'. mp4 & fragmentedMp4 only
+  ///  - keepSegments: (android) keep only the newest finished segments, 0 for all
+  ///  - inputFormat: (android) pixel format of appended video frames. YUV frames
+  ///    are copied straight to the encoder, & are 62% smaller than rgba
+  ///  - skipStaticFrames: (android) do not encode video frames identical to the
+  ///    previous one. the previous frame lasts until the next change. for screen
+  ///    & UI captures. see [getDroppedFrames]
+  ///  - staticFrameRowStep: (android) compare every n'th row only, 4 by default.
+  ///    larger is faster, but misses changes confined to the rows in between.
+  ///    1 compares every byte
+  ///  - colorStandard: (android) matrix used to convert rgba & bgra frames. see [ColorStandard]
+  ///  - fullRange: (android) use the full 0-255 YUV range instead of 16-235.
+  ///    written to the color metadata. YUV input frames must already match
+  ///
+  /// On android, returns what was applied to the video encoder:
+  /// codec, mimeType, hardwareAccelerated, applied (setting to value) & fallbacks
+  /// (why a requested setting, or the profile level, was not applied)
+  static Future<Map<String, dynamic>?> setup(
       {required int width,
       required int height,
       required int fps,
@@ -57,49 +448,137 @@ class FlutterQuickVideoEncoder {
       required int audioChannels,
       required int audioBitrate,
       required int sampleRate,
-      required String filepath}) async {
-    _createIntermediateDirectories(filepath);
+      required String filepath,
+      int conversionThreads = 1,
+      int conversionPriority = 0,
+      AndroidEngine androidEngine = AndroidEngine.pipelined,
+      int stagingBufferBytes = 4 * 1024 * 1024,
+      StagingOverflow stagingOverflow = StagingOverflow.fail,
+      bool collectStats = false,
+      int inputQueueDepth = 5,
+      int inputQueueBytes = 0,
+      OverflowPolicy overflowPolicy = OverflowPolicy.block,
+      VideoEncoderSettings videoSettings = const VideoEncoderSettings(),
+      VideoCodec videoCodec = VideoCodec.avc,
+      ContainerFormat container = ContainerFormat.mp4,
+      Duration fragmentDuration = const Duration(seconds: 2),
+      String? audioFilepath,
+      Duration? segmentDuration,
+      int segmentBytes = 0,
+      int keepSegments = 0,
+      PixelFormat inputFormat = PixelFormat.rgba,
+      bool skipStaticFrames = false,
+      int staticFrameRowStep = 4,
+      ColorStandard colorStandard = ColorStandard.auto,
+      bool fullRange = false}) async {
     FlutterQuickVideoEncoder.width = width;
     FlutterQuickVideoEncoder.height = height;
     FlutterQuickVideoEncoder.fps = fps;
     FlutterQuickVideoEncoder.audioChannels = audioChannels;
     FlutterQuickVideoEncoder.sampleRate = sampleRate;
     FlutterQuickVideoEncoder.filepath = filepath;
-    return await _invokeMethod('setup', {
-      'width': width,
-      'height': height,
-      'fps': fps,
-      'videoBitrate': videoBitrate,
-      'profileLevel': profileLevel.toString().split('.')[1],
-      'audioChannels': audioChannels,
-      'audioBitrate': audioBitrate,
-      'sampleRate': sampleRate,
-      'filepath': filepath,
-    });
+    return await _defaultSession.setup(
+      width: width,
+      height: height,
+      fps: fps,
+      videoBitrate: videoBitrate,
+      profileLevel: profileLevel,
+      audioChannels: audioChannels,
+      audioBitrate: audioBitrate,
+      sampleRate: sampleRate,
+      filepath: filepath,
+      conversionThreads: conversionThreads,
+      conversionPriority: conversionPriority,
+      androidEngine: androidEngine,
+      stagingBufferBytes: stagingBufferBytes,
+      stagingOverflow: stagingOverflow,
+      collectStats: collectStats,
+      inputQueueDepth: inputQueueDepth,
+      inputQueueBytes: inputQueueBytes,
+      overflowPolicy: overflowPolicy,
+      videoSettings: videoSettings,
+      videoCodec: videoCodec,
+      container: container,
+      fragmentDuration: fragmentDuration,
+      audioFilepath: audioFilepath,
+      segmentDuration: segmentDuration,
+      segmentBytes: segmentBytes,
+      keepSegments: keepSegments,
+      inputFormat: inputFormat,
+      skipStaticFrames: skipStaticFrames,
+      staticFrameRowStep: staticFrameRowStep,
+      colorStandard: colorStandard,
+      fullRange: fullRange,
+    );
+  }
+
+  /// a frame buffer of 'length' bytes, e.g. one video frame, for appendVideoFrame
+  /// or appendAudioFrame. on android, frames in these buffers are sent without
+  /// being copied into a message first. reuse it once the append completes
+  static Uint8List allocateFrame(int length) {
+    Uint8List message = Uint8List(_frameHeaderSize + length);
+    _headerRoom[message.buffer] = true;
+    return Uint8List.sublistView(message, _frameHeaderSize);
   }
 
-  /// append raw rgba video frame, 8 bits per channel
+  /// append a video frame in the setup inputFormat. rgba by default, 8 bits per channel.
+  /// see [allocateFrame] to avoid a copy
   static Future<void> appendVideoFrame(Uint8List rawRgba) async {
-    assert(rawRgba.length == width * height * 4, "invalid data length");
-    return await _invokeMethod('appendVideoFrame', {
-      'rawRgba': rawRgba,
-    });
+    return await _defaultSession.appendVideoFrame(rawRgba);
   }
 
   /// append raw pcm audio samples
   ///  - 16 bit, little-endiant
   ///  - when using stereo audio, samples should be interleaved left channel first
+  ///  - android: any number of whole samples. iOS: exactly one video frame's worth,
+  ///    sampleRate * audioChannels * 2 / fps bytes
   static Future<void> appendAudioFrame(Uint8List rawPcm) async {
-    assert(rawPcm.length == (sampleRate * audioChannels * 2) / fps, "invalid data length");
-    return await _invokeMethod('appendAudioFrame', {
-      'rawPcm': rawPcm,
-    });
+    return await _defaultSession.appendAudioFrame(rawPcm);
+  }
+
+  /// stats of the current or last file, if setup with collectStats (android)
+  ///  - stages: latency histogram per pipeline stage, in microseconds
+  ///    (conversion, fillImage, inputDequeue, outputDrain, muxerWrite, putBlocked)
+  ///  - video, audio: input queue length, samples, bytes, bitrate & fps
+  ///  - elapsedMs: since setup
+  ///  - poolAllocations: frame buffers allocated so far. stays flat once warm
+  static Future<Map<String, dynamic>?> getStats() async {
+    return await _defaultSession.getStats();
+  }
+
+  /// frames dropped by the overflow policy so far, {video, audio}, unchanged
+  /// video frames skipped by skipStaticFrames, {staticVideo}, & frame buffers
+  /// allocated so far, {poolAllocations}, which stays flat once warm (android)
+  static Future<Map<String, int>> getDroppedFrames() async {
+    return await _defaultSession.getDroppedFrames();
+  }
+
+  /// stats of every session that collects them, by session id, every interval (android)
+  static Stream<Map<int, dynamic>> statsStream({Duration interval = const Duration(seconds: 1)}) {
+    return _statsChannel
+        .receiveBroadcastStream({'intervalMs': interval.inMilliseconds})
+        .map((event) => Map<int, dynamic>.from(event));
+  }
+
+  /// append several rgba video frames, back to back, in one call
+  static Future<void> appendVideoFrames(Uint8List rawRgba) async {
+    return await _defaultSession.appendVideoFrames(rawRgba);
+  }
+
+  /// append several audio frames, back to back, in one call
+  static Future<void> appendAudioFrames(Uint8List rawPcm) async {
+    return await _defaultSession.appendAudioFrames(rawPcm);
+  }
+
+  /// append interleaved video & audio frames in one call
+  static Future<void> appendFrames(List<EncoderFrame> frames) async {
+    return await _defaultSession.appendFrames(frames);
   }
 
   /// finish writing the video file
   static Future<void> finish() async {
     try {
-      await _invokeMethod('finish');
+      await _defaultSession.finish();
     } finally {
       width = 0;
       height = 0;
@@ -118,6 +597,78 @@ class FlutterQuickVideoEncoder {
     }
   }
 
+  static Future<void> _sendFrame(String method, int frameType, int sessionId, Uint8List data) async {
+    // log args
+    if (logLevel.index >= LogLevel.standard.index) {
+      print("[FQVE] '<$method>' frame: ${data.length} bytes");
+    }
+
+    // header + payload. frames from allocateFrame have room for the header in front
+    Uint8List message;
+    if (_headerRoom[data.buffer] == true && data.offsetInBytes == _frameHeaderSize) {
+      message = data.buffer.asUint8List(0, _frameHeaderSize + data.length);
+    } else {
+      message = Uint8List(_frameHeaderSize + data.length);
+      message.setRange(_frameHeaderSize, message.length, data);
+    }
+    ByteData header = ByteData.view(message.buffer, message.offsetInBytes, _frameHeaderSize);
+    header.setUint8(0, frameType);
+    header.setInt32(4, sessionId, Endian.little);
+    header.setInt64(8, -1, Endian.little);
+
+    return await _sendMessage(method, message);
+  }
+
+  static Future<void> _sendFrames(String method, int sessionId, List<EncoderFrame> frames) async {
+    // log args
+    if (logLevel.index >= LogLevel.standard.index) {
+      print("[FQVE] '<$method>' frames: ${frames.length}");
+    }
+
+    // header + frame table + payloads
+    int tableSize = frames.length * _frameTableEntrySize;
+    int payloadSize = frames.fold<int>(0, (sum, f) => sum + f.data.length);
+    Uint8List message = Uint8List(_frameHeaderSize + tableSize + payloadSize);
+    ByteData header = ByteData.view(message.buffer, 0, _frameHeaderSize + tableSize);
+    header.setUint8(0, _frameTypeBatch);
+    header.setInt32(4, sessionId, Endian.little);
+    header.setInt32(8, frames.length, Endian.little);
+    int offset = _frameHeaderSize + tableSize;
+    for (int i = 0; i < frames.length; i++) {
+      int entry = _frameHeaderSize + i * _frameTableEntrySize;
+      header.setUint8(entry, frames[i].isVideo ? _frameTypeVideo : _frameTypeAudio);
+      header.setInt32(entry + 4, frames[i].data.length, Endian.little);
+      header.setInt64(entry + 8, -1, Endian.little);
+      message.setRange(offset, offset + frames[i].data.length, frames[i].data);
+      offset += frames[i].data.length;
+    }
+
+    return await _sendMessage(method, message);
+  }
+
+  static Future<void> _sendMessage(String method, Uint8List message) async {
+    // send
+    ByteData? reply = await _frameChannel.send(ByteData.sublistView(message));
+
+    // null reply means success, otherwise it is an error code, a newline & the message
+    if (reply != null && reply.lengthInBytes > 0) {
+      String error = utf8.decode(reply.buffer.asUint8List(reply.offsetInBytes, reply.lengthInBytes));
+      if (logLevel.index >= LogLevel.error.index) {
+        print("[FQVE] <$method> error: $error");
+      }
+      int newline = error.indexOf('\n');
+      if (newline < 0) {
+        throw PlatformException(code: 'androidException', message: error);
+      }
+      throw PlatformException(code: error.substring(0, newline), message: error.substring(newline + 1));
+    }
+
+    // log result
+    if (logLevel.index >= LogLevel.standard.index) {
+      print("[FQVE] <$method> result: null");
+    }
+  }
+
   static Future<T?> _invokeMethod<T>(String method, [dynamic arguments]) async {
     // log args
     if (logLevel.index >= LogLevel.standard.index) {
@@ -141,3 +692,205 @@ class FlutterQuickVideoEncoder {
     return result;
   }
 }
+
+/// Encodes one file. Create with [FlutterQuickVideoEncoder.createSession].
+/// Sessions are independent, so several can encode at the same time.
+class QuickVideoEncoderSession {
+  final int id;
+
+  // setup values
+  int width = 0;
+  int height = 0;
+  int fps = 0;
+  int audioChannels = 0;
+  int sampleRate = 0;
+  String filepath = '';
+  PixelFormat inputFormat = PixelFormat.rgba;
+
+  QuickVideoEncoderSession._(this.id);
+
+  // bytes of one video frame in the input format
+  int get _videoFrameBytes => inputFormat == PixelFormat.rgba || inputFormat == PixelFormat.bgra
+      ? width * height * 4
+      : width * height + 2 * (width ~/ 2) * (height ~/ 2);
+
+  /// setup encoder. see [FlutterQuickVideoEncoder.setup]
+  Future<Map<String, dynamic>?> setup(
+      {required int width,
+      required int height,
+      required int fps,
+      required int videoBitrate,
+      required ProfileLevel profileLevel,
+      required int audioChannels,
+      required int audioBitrate,
+      required int sampleRate,
+      required String filepath,
+      int conversionThreads = 1,
+      int conversionPriority = 0,
+      AndroidEngine androidEngine = AndroidEngine.pipelined,
+      int stagingBufferBytes = 4 * 1024 * 1024,
+      StagingOverflow stagingOverflow = StagingOverflow.fail,
+      bool collectStats = false,
+      int inputQueueDepth = 5,
+      int inputQueueBytes = 0,
+      OverflowPolicy overflowPolicy = OverflowPolicy.block,
+      VideoEncoderSettings videoSettings = const VideoEncoderSettings(),
+      VideoCodec videoCodec = VideoCodec.avc,
+      ContainerFormat container = ContainerFormat.mp4,
+      Duration fragmentDuration = const Duration(seconds: 2),
+      String? audioFilepath,
+      Duration? segmentDuration,
+      int segmentBytes = 0,
+      int keepSegments = 0,
+      PixelFormat inputFormat = PixelFormat.rgba,
+      bool skipStaticFrames = false,
+      int staticFrameRowStep = 4,
+      ColorStandard colorStandard = ColorStandard.auto,
+      bool fullRange = false}) async {
+    if (!Platform.isAndroid && inputFormat != PixelFormat.rgba) {
+      throw UnsupportedError("only rgba input is supported on this platform");
+    }
+    FlutterQuickVideoEncoder._createIntermediateDirectories(filepath);
+    if (audioFilepath != null) {
+      FlutterQuickVideoEncoder._createIntermediateDirectories(audioFilepath);
+    }
+    this.width = width;
+    this.height = height;
+    this.fps = fps;
+    this.audioChannels = audioChannels;
+    this.sampleRate = sampleRate;
+    this.filepath = filepath;
+    this.inputFormat = inputFormat;
+    var report = await FlutterQuickVideoEncoder._invokeMethod('setup', {
+      'sessionId': id,
+      'width': width,
+      'height': height,
+      'fps': fps,
+      'videoBitrate': videoBitrate,
+      'profileLevel': profileLevel.toString().split('.')[1],
+      'audioChannels': audioChannels,
+      'audioBitrate': audioBitrate,
+      'sampleRate': sampleRate,
+      'filepath': filepath,
+      'conversionThreads': conversionThreads,
+      'conversionPriority': conversionPriority,
+      'androidEngine': androidEngine.toString().split('.')[1],
+      'stagingBufferBytes': stagingBufferBytes,
+      'stagingOverflow': stagingOverflow.toString().split('.')[1],
+      'collectStats': collectStats,
+      'inputQueueDepth': inputQueueDepth,
+      'inputQueueBytes': inputQueueBytes,
+      'overflowPolicy': overflowPolicy.toString().split('.')[1],
+      'videoSettings': videoSettings._toMap(),
+      'videoCodec': videoCodec.toString().split('.')[1],
+      'container': container.toString().split('.')[1],
+      'fragmentDurationMs': fragmentDuration.inMilliseconds,
+      'audioFilepath': audioFilepath,
+      'segmentDurationMs': segmentDuration?.inMilliseconds ?? 0,
+      'segmentBytes': segmentBytes,
+      'keepSegments': keepSegments,
+      'inputFormat': inputFormat.toString().split('.')[1],
+      'skipStaticFrames': skipStaticFrames,
+      'staticFrameRowStep': staticFrameRowStep,
+      'colorStandard': colorStandard == ColorStandard.auto ? null : colorStandard.toString().split('.')[1],
+      'colorRange': fullRange ? 'full' : 'limited',
+    });
+    return report != null ? Map<String, dynamic>.from(report) : null;
+  }
+
+  /// append a video frame in the input format. rgba by default, 8 bits per channel.
+  /// see [FlutterQuickVideoEncoder.allocateFrame] to avoid a copy
+  Future<void> appendVideoFrame(Uint8List rawRgba) async {
+    assert(rawRgba.length == _videoFrameBytes, "invalid data length");
+    if (Platform.isAndroid) {
+      return await FlutterQuickVideoEncoder._sendFrame(
+          'appendVideoFrame', FlutterQuickVideoEncoder._frameTypeVideo, id, rawRgba);
+    }
+    return await FlutterQuickVideoEncoder._invokeMethod('appendVideoFrame', {
+      'rawRgba': rawRgba,
+    });
+  }
+
+  /// append raw pcm audio samples. see [FlutterQuickVideoEncoder.appendAudioFrame]
+  Future<void> appendAudioFrame(Uint8List rawPcm) async {
+    if (Platform.isAndroid) {
+      assert(rawPcm.length % (audioChannels * 2) == 0, "invalid data length");
+      return await FlutterQuickVideoEncoder._sendFrame(
+          'appendAudioFrame', FlutterQuickVideoEncoder._frameTypeAudio, id, rawPcm);
+    }
+    assert(rawPcm.length == (sampleRate * audioChannels * 2) / fps, "invalid data length");
+    return await FlutterQuickVideoEncoder._invokeMethod('appendAudioFrame', {
+      'rawPcm': rawPcm,
+    });
+  }
+
+  /// stats of the current or last file. see [FlutterQuickVideoEncoder.getStats]
+  Future<Map<String, dynamic>?> getStats() async {
+    if (!Platform.isAndroid) {
+      return null;
+    }
+    var stats = await FlutterQuickVideoEncoder._invokeMethod('getStats', {'sessionId': id});
+    return stats != null ? Map<String, dynamic>.from(stats) : null;
+  }
+
+  /// frames dropped by the overflow policy, & unchanged video frames skipped ('staticVideo').
+  /// see [FlutterQuickVideoEncoder.getDroppedFrames]
+  Future<Map<String, int>> getDroppedFrames() async {
+    if (!Platform.isAndroid) {
+      return {'video': 0, 'audio': 0, 'staticVideo': 0, 'poolAllocations': 0};
+    }
+    var dropped = await FlutterQuickVideoEncoder._invokeMethod('droppedFrames', {'sessionId': id});
+    return Map<String, int>.from(dropped);
+  }
+
+  /// this session's stats, every interval. see [FlutterQuickVideoEncoder.statsStream]
+  Stream<Map<String, dynamic>> statsStream({Duration interval = const Duration(seconds: 1)}) {
+    return FlutterQuickVideoEncoder.statsStream(interval: interval)
+        .where((event) => event.containsKey(id))
+        .map((event) => Map<String, dynamic>.from(event[id]));
+  }
+
+  /// append several video frames in the input format, back to back, in one call
+  Future<void> appendVideoFrames(Uint8List rawRgba) async {
+    int frameSize = _videoFrameBytes;
+    assert(frameSize > 0 && rawRgba.length % frameSize == 0, "invalid data length");
+    return await appendFrames(List.generate(rawRgba.length ~/ frameSize,
+        (i) => EncoderFrame.video(Uint8List.sublistView(rawRgba, i * frameSize, (i + 1) * frameSize))));
+  }
+
+  /// append several audio frames, back to back, in one call
+  Future<void> appendAudioFrames(Uint8List rawPcm) async {
+    int frameSize = (sampleRate * audioChannels * 2) ~/ fps;
+    assert(frameSize > 0 && rawPcm.length % frameSize == 0, "invalid data length");
+    return await appendFrames(List.generate(rawPcm.length ~/ frameSize,
+        (i) => EncoderFrame.audio(Uint8List.sublistView(rawPcm, i * frameSize, (i + 1) * frameSize))));
+  }
+
+  /// append interleaved video & audio frames in one call.
+  /// android: one channel message for the whole batch, accepted or rejected whole
+  Future<void> appendFrames(List<EncoderFrame> frames) async {
+    if (Platform.isAndroid) {
+      return await FlutterQuickVideoEncoder._sendFrames('appendFrames', id, frames);
+    }
+    for (EncoderFrame frame in frames) {
+      if (frame.isVideo) {
+        await appendVideoFrame(frame.data);
+      } else {
+        await appendAudioFrame(frame.data);
+      }
+    }
+  }
+
+  /// finish writing the video file
+  Future<void> finish() async {
+    try {
+      await FlutterQuickVideoEncoder._invokeMethod('finish', {'sessionId': id});
+    } finally {
+      width = 0;
+      height = 0;
+      fps = 0;
+      audioChannels = 0;
+      sampleRate = 0;
+    }
+  }
+}